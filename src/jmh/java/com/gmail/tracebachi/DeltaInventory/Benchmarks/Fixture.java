@@ -0,0 +1,201 @@
+/*
+ * This file is part of DeltaInventory.
+ *
+ * DeltaInventory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DeltaInventory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DeltaInventory.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gmail.tracebachi.DeltaInventory.Benchmarks;
+
+import com.gmail.tracebachi.DeltaInventory.Storage.PlayerEntry;
+import com.gmail.tracebachi.DeltaInventory.Storage.SavedInventory;
+import org.bukkit.GameMode;
+import org.bukkit.Material;
+import org.bukkit.enchantments.Enchantment;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.meta.BookMeta;
+import org.bukkit.inventory.meta.ItemMeta;
+import org.bukkit.potion.PotionEffect;
+import org.bukkit.potion.PotionEffectType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntFunction;
+
+/**
+ * Player entries the benchmarks are run against, roughly ordered by how
+ * expensive they are to serialize.
+ */
+public enum Fixture
+{
+    /**
+     * A player that just joined for the first time.
+     */
+    EMPTY
+    {
+        @Override
+        protected void fill(PlayerEntry entry)
+        {
+        }
+    },
+
+    /**
+     * Every slot holds a plain vanilla item, like a player that has been
+     * mining for a while.
+     */
+    FULL_VANILLA
+    {
+        @Override
+        protected void fill(PlayerEntry entry)
+        {
+            Material[] materials = {Material.STONE, Material.COBBLESTONE, Material.DIRT,
+                Material.LOG, Material.COAL, Material.IRON_ORE, Material.TORCH, Material.BREAD};
+
+            entry.setSurvival(new SavedInventory(
+                new ItemStack[]{
+                    new ItemStack(Material.IRON_BOOTS), new ItemStack(Material.IRON_LEGGINGS),
+                    new ItemStack(Material.IRON_CHESTPLATE), new ItemStack(Material.IRON_HELMET)},
+                slots(36, (i) -> new ItemStack(materials[i % materials.length], 64))));
+            entry.setCreative(new SavedInventory(new ItemStack[4],
+                slots(36, (i) -> new ItemStack(materials[i % materials.length], 1))));
+            entry.setEnderChest(slots(27, (i) -> new ItemStack(Material.COBBLESTONE, 64)));
+        }
+    },
+
+    /**
+     * Enchanted gear with names and lore, plus written books, which have the
+     * most meta of any vanilla item.
+     */
+    HEAVY_NBT
+    {
+        @Override
+        protected void fill(PlayerEntry entry)
+        {
+            entry.setSurvival(new SavedInventory(
+                new ItemStack[]{
+                    enchanted(Material.DIAMOND_BOOTS, 0), enchanted(Material.DIAMOND_LEGGINGS, 1),
+                    enchanted(Material.DIAMOND_CHESTPLATE, 2), enchanted(Material.DIAMOND_HELMET, 3)},
+                slots(36, (i) -> (i % 2 == 0) ? book(i) : enchanted(Material.DIAMOND_SWORD, i))));
+            entry.setCreative(new SavedInventory(new ItemStack[4],
+                slots(36, (i) -> enchanted(Material.DIAMOND_PICKAXE, i))));
+            entry.setEnderChest(slots(27, Fixture::book));
+        }
+    },
+
+    /**
+     * A full vanilla inventory with every potion effect active.
+     */
+    MANY_EFFECTS
+    {
+        @Override
+        protected void fill(PlayerEntry entry)
+        {
+            FULL_VANILLA.fill(entry);
+
+            List<PotionEffect> effects = new ArrayList<>();
+            for(PotionEffectType type : PotionEffectType.values())
+            {
+                if(type != null)
+                {
+                    effects.add(new PotionEffect(type, 20 * 60 * 8, 1, false, true));
+                }
+            }
+            entry.setPotionEffects(effects);
+        }
+    };
+
+    /**
+     * @return New entry (which may be modified by the caller)
+     */
+    public PlayerEntry create()
+    {
+        PlayerEntry entry = new PlayerEntry("benchmark_" + name().toLowerCase());
+        entry.setHealth(20.0);
+        entry.setFoodLevel(20);
+        entry.setXpLevel(30);
+        entry.setXpProgress(0.5);
+        entry.setGameMode(GameMode.SURVIVAL);
+        entry.setPotionEffects(new ArrayList<>());
+        entry.setSurvival(new SavedInventory(new ItemStack[4], new ItemStack[36]));
+        entry.setCreative(new SavedInventory(new ItemStack[4], new ItemStack[36]));
+        entry.setEnderChest(new ItemStack[27]);
+        fill(entry);
+        return entry;
+    }
+
+    protected abstract void fill(PlayerEntry entry);
+
+    /**
+     * Replaces the inventories of the entry with equal, new ones, which have
+     * to be serialized again (saved inventories keep their serialized form).
+     */
+    public static void renewInventories(PlayerEntry entry)
+    {
+        SavedInventory survival = entry.getSurvival();
+        SavedInventory creative = entry.getCreative();
+
+        entry.setSurvival(new SavedInventory(survival.getArmor(), survival.getContents()));
+        entry.setCreative(new SavedInventory(creative.getArmor(), creative.getContents()));
+    }
+
+    private static ItemStack[] slots(int size, IntFunction<ItemStack> function)
+    {
+        ItemStack[] itemStacks = new ItemStack[size];
+
+        for(int i = 0; i < size; ++i)
+        {
+            itemStacks[i] = function.apply(i);
+        }
+        return itemStacks;
+    }
+
+    private static ItemStack enchanted(Material material, int seed)
+    {
+        ItemStack itemStack = new ItemStack(material);
+        ItemMeta meta = itemStack.getItemMeta();
+
+        meta.setDisplayName("\u00A76Legendary " + material.name().toLowerCase() + " #" + seed);
+        meta.setLore(Arrays.asList(
+            "\u00A77Forged in the depths of the nether",
+            "\u00A77Owned by benchmark_" + seed,
+            "\u00A78Kills: " + (seed * 37)));
+        itemStack.setItemMeta(meta);
+        itemStack.addUnsafeEnchantment(Enchantment.DURABILITY, 3);
+        itemStack.addUnsafeEnchantment(
+            material.name().endsWith("SWORD") ? Enchantment.DAMAGE_ALL :
+            material.name().endsWith("PICKAXE") ? Enchantment.DIG_SPEED :
+            Enchantment.PROTECTION_ENVIRONMENTAL, 4 + (seed % 2));
+        return itemStack;
+    }
+
+    private static ItemStack book(int seed)
+    {
+        ItemStack itemStack = new ItemStack(Material.WRITTEN_BOOK);
+        BookMeta meta = (BookMeta) itemStack.getItemMeta();
+        StringBuilder page = new StringBuilder(256);
+
+        while(page.length() < 240)
+        {
+            page.append("The quick brown fox jumps over the lazy dog ").append(seed).append(". ");
+        }
+
+        meta.setTitle("Journal " + seed);
+        meta.setAuthor("benchmark_" + seed);
+        for(int i = 0; i < 20; ++i)
+        {
+            meta.addPage(page.toString());
+        }
+        itemStack.setItemMeta(meta);
+        return itemStack;
+    }
+}
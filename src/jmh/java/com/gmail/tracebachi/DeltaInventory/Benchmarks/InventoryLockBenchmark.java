@@ -0,0 +1,145 @@
+/*
+ * This file is part of DeltaInventory.
+ *
+ * DeltaInventory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DeltaInventory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DeltaInventory.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gmail.tracebachi.DeltaInventory.Benchmarks;
+
+import com.gmail.tracebachi.DeltaInventory.Listeners.InventoryLockListener;
+import com.gmail.tracebachi.DeltaInventory.Storage.PlayerSessions;
+import com.gmail.tracebachi.DeltaInventory.Stats.PluginStats;
+import com.gmail.tracebachi.DeltaInventory.Tools.OfflineServer;
+import org.bukkit.entity.Item;
+import org.bukkit.entity.Player;
+import org.bukkit.event.player.PlayerDropItemEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.reflect.Proxy;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The lock check every inventory, drop and pickup event goes through. It
+ * runs on the main thread far more often than anything else in the plugin.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InventoryLockBenchmark
+{
+    @Param({"100"})
+    public int onlinePlayers;
+
+    /**
+     * Number of online players with locked inventories (0 takes the fast
+     * path that skips the session lookup).
+     */
+    @Param({"0", "1", "10"})
+    public int lockedPlayers;
+
+    private InventoryLockListener listener;
+    private PlayerDropItemEvent unlockedEvent;
+    private PlayerDropItemEvent lockedEvent;
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        PlayerSessions sessions = new PlayerSessions();
+        Item item = (Item) Proxy.newProxyInstance(Item.class.getClassLoader(),
+            new Class<?>[]{Item.class},
+            (proxy, method, args) -> OfflineServer.defaultValue(method.getReturnType()));
+        Player unlockedPlayer = null;
+        Player lockedPlayer = null;
+
+        listener = new InventoryLockListener(sessions, Long.MAX_VALUE, new PluginStats(), null);
+
+        for(int i = 0; i < onlinePlayers; ++i)
+        {
+            Player player = createPlayer("player_" + i);
+            sessions.getOrCreate(player);
+
+            if(i < lockedPlayers)
+            {
+                listener.addLock(player);
+                lockedPlayer = player;
+            }
+            else
+            {
+                unlockedPlayer = player;
+            }
+        }
+
+        unlockedEvent = new PlayerDropItemEvent(unlockedPlayer, item);
+        lockedEvent = (lockedPlayer != null) ? new PlayerDropItemEvent(lockedPlayer, item) : null;
+    }
+
+    @Benchmark
+    public boolean dropUnlocked()
+    {
+        unlockedEvent.setCancelled(false);
+        listener.onPlayerDropItemEvent(unlockedEvent);
+        return unlockedEvent.isCancelled();
+    }
+
+    @Benchmark
+    public boolean dropLocked()
+    {
+        if(lockedEvent == null)
+        {
+            return false;
+        }
+
+        lockedEvent.setCancelled(false);
+        listener.onPlayerDropItemEvent(lockedEvent);
+        return lockedEvent.isCancelled();
+    }
+
+    private static Player createPlayer(String name)
+    {
+        UUID uuid = UUID.nameUUIDFromBytes(name.getBytes());
+
+        return (Player) Proxy.newProxyInstance(Player.class.getClassLoader(),
+            new Class<?>[]{Player.class},
+            (proxy, method, args) ->
+            {
+                switch(method.getName())
+                {
+                    case "getUniqueId":
+                        return uuid;
+                    case "getName":
+                        return name;
+                    case "hashCode":
+                        return uuid.hashCode();
+                    case "equals":
+                        return proxy == args[0];
+                    default:
+                        return OfflineServer.defaultValue(method.getReturnType());
+                }
+            });
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * This file is part of DeltaInventory.
+ *
+ * DeltaInventory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DeltaInventory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DeltaInventory.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gmail.tracebachi.DeltaInventory.Benchmarks;
+
+import com.gmail.tracebachi.DeltaInventory.Storage.CompressionCodec;
+import com.gmail.tracebachi.DeltaInventory.Storage.IPlayerEntry;
+import com.gmail.tracebachi.DeltaInventory.Storage.ItemStackCache;
+import com.gmail.tracebachi.DeltaInventory.Storage.PlayerDataCodec;
+import com.gmail.tracebachi.DeltaInventory.Storage.PlayerDataFormat;
+import com.gmail.tracebachi.DeltaInventory.Storage.PlayerEntry;
+import com.gmail.tracebachi.DeltaInventory.Tools.OfflineServer;
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding of whole player entries, which is what every save
+ * and load pays for before touching the disk. Run with "-prof gc" (the
+ * default of the benchmarks profile) to see the bytes allocated per save.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PlayerDataCodecBenchmark
+{
+    @Param({"EMPTY", "FULL_VANILLA", "HEAVY_NBT", "MANY_EFFECTS"})
+    public Fixture fixture;
+
+    @Param({"YAML", "BINARY"})
+    public PlayerDataFormat format;
+
+    /**
+     * NONE benchmarks the format with compression disabled.
+     */
+    @Param({"NONE", "DEFLATE", "DEFLATE_DICTIONARY"})
+    public CompressionCodec compression;
+
+    @Param({"true", "false"})
+    public boolean itemCache;
+
+    /**
+     * Only used by the YAML format.
+     */
+    @Param({"UTF-16", "UTF-8"})
+    public String yamlCharset;
+
+    private PlayerDataCodec codec;
+    private PlayerEntry entry;
+    private byte[] encoded;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException
+    {
+        OfflineServer.start();
+
+        codec = new PlayerDataCodec(format,
+            itemCache ? new ItemStackCache(4096) : null,
+            (compression == CompressionCodec.NONE) ? null : compression,
+            6, 512, Charset.forName(yamlCharset));
+        entry = fixture.create();
+        encoded = codec.encode(entry);
+    }
+
+    /**
+     * Save of a player whose inventories all changed since the last save.
+     */
+    @Benchmark
+    public byte[] encode() throws IOException
+    {
+        Fixture.renewInventories(entry);
+        return codec.encode(entry);
+    }
+
+    /**
+     * Save of a player whose inventories did not change since the last save
+     * (the binary format reuses the bytes of unchanged sections).
+     */
+    @Benchmark
+    public byte[] encodeUnchanged() throws IOException
+    {
+        return codec.encode(entry);
+    }
+
+    @Benchmark
+    public IPlayerEntry decode() throws IOException, InvalidConfigurationException
+    {
+        return codec.decode(entry.getName(), encoded, format);
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * This file is part of DeltaInventory.
+ *
+ * DeltaInventory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DeltaInventory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DeltaInventory.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gmail.tracebachi.DeltaInventory.Benchmarks;
+
+import com.gmail.tracebachi.DeltaInventory.Storage.BufferPool;
+import com.gmail.tracebachi.DeltaInventory.Storage.IPlayerEntry;
+import com.gmail.tracebachi.DeltaInventory.Storage.PlayerDataCodec;
+import com.gmail.tracebachi.DeltaInventory.Storage.PlayerDataFormat;
+import com.gmail.tracebachi.DeltaInventory.Storage.PlayerEntry;
+import com.gmail.tracebachi.DeltaInventory.Storage.PlayerFileIo;
+import com.gmail.tracebachi.DeltaInventory.Tools.OfflineServer;
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full saves and loads through {@link PlayerFileIo}. The files are written
+ * to the default temporary directory, so results depend on that disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PlayerFileBenchmark
+{
+    @Param({"EMPTY", "FULL_VANILLA", "HEAVY_NBT"})
+    public Fixture fixture;
+
+    @Param({"YAML", "BINARY"})
+    public PlayerDataFormat format;
+
+    @Param({"false", "true"})
+    public boolean forceToDisk;
+
+    /**
+     * Smallest file size read through a memory mapping
+     */
+    @Param({"1048576", "1"})
+    public long mapThreshold;
+
+    private PlayerDataCodec codec;
+    private PlayerFileIo fileIo;
+    private PlayerEntry entry;
+    private Path folder;
+    private Path writePath;
+    private Path readPath;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException
+    {
+        OfflineServer.start();
+
+        codec = new PlayerDataCodec(format, null, null, 6, 512);
+        fileIo = new PlayerFileIo(new BufferPool(65536, 4), mapThreshold);
+        entry = fixture.create();
+        folder = Files.createTempDirectory("DeltaInventoryBenchmark");
+        writePath = folder.resolve("write" + format.getExtension());
+        readPath = folder.resolve("read" + format.getExtension());
+
+        if(!fileIo.write(codec.encode(entry), readPath, true))
+        {
+            throw new IOException("Failed to write " + readPath);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException
+    {
+        Files.deleteIfExists(writePath);
+        Files.deleteIfExists(readPath);
+        Files.deleteIfExists(folder);
+    }
+
+    @Benchmark
+    public boolean save() throws IOException
+    {
+        Fixture.renewInventories(entry);
+        return fileIo.write(codec.encode(entry), writePath, forceToDisk);
+    }
+
+    @Benchmark
+    public IPlayerEntry load() throws IOException, InvalidConfigurationException
+    {
+        return codec.decode(entry.getName(), fileIo.read(readPath), format);
+    }
+}
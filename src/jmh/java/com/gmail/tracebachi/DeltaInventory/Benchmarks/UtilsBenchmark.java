@@ -0,0 +1,114 @@
+/*
+ * This file is part of DeltaInventory.
+ *
+ * DeltaInventory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DeltaInventory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DeltaInventory.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gmail.tracebachi.DeltaInventory.Benchmarks;
+
+import com.gmail.tracebachi.DeltaInventory.Storage.CompressionCodec;
+import com.gmail.tracebachi.DeltaInventory.Storage.PlayerEntry;
+import com.gmail.tracebachi.DeltaInventory.Tools.OfflineServer;
+import com.gmail.tracebachi.DeltaInventory.Utils.CompressionUtils;
+import com.gmail.tracebachi.DeltaInventory.Utils.InventoryUtils;
+import com.gmail.tracebachi.DeltaInventory.Utils.PotionEffectUtils;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.potion.PotionEffect;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The utilities the codec is built from, to tell which part of a save or
+ * load got slower.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UtilsBenchmark
+{
+    @Param({"EMPTY", "FULL_VANILLA", "HEAVY_NBT", "MANY_EFFECTS"})
+    public Fixture fixture;
+
+    private PlayerEntry entry;
+    private List<String> serializedEffects;
+    private byte[] uncompressed;
+    private byte[] compressed;
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        OfflineServer.start();
+
+        entry = fixture.create();
+        serializedEffects = PotionEffectUtils.toStringList(entry.getPotionEffects());
+
+        YamlConfiguration configuration = InventoryUtils.toYamlSection(entry.getSurvival().getContents());
+        uncompressed = configuration.saveToString().getBytes(StandardCharsets.UTF_16);
+        compressed = CompressionUtils.encode(uncompressed, CompressionCodec.DEFLATE_DICTIONARY, 6, 0);
+    }
+
+    @Benchmark
+    public YamlConfiguration toYamlSection()
+    {
+        return InventoryUtils.toYamlSection(entry.getSurvival().getContents());
+    }
+
+    @Benchmark
+    public Map<String, Object> toYamlMap()
+    {
+        return InventoryUtils.toYamlMap(entry.getSurvival().getContents(), null);
+    }
+
+    @Benchmark
+    public List<String> effectsToStringList()
+    {
+        return PotionEffectUtils.toStringList(entry.getPotionEffects());
+    }
+
+    @Benchmark
+    public List<PotionEffect> effectsToEffectList()
+    {
+        return PotionEffectUtils.toEffectList(serializedEffects);
+    }
+
+    @Benchmark
+    public byte[] compress()
+    {
+        return CompressionUtils.encode(uncompressed, CompressionCodec.DEFLATE_DICTIONARY, 6, 0);
+    }
+
+    @Benchmark
+    public byte[] decompress() throws IOException
+    {
+        return CompressionUtils.decode(compressed);
+    }
+}
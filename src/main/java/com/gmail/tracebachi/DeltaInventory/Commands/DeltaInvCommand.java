@@ -0,0 +1,205 @@
+/*
+ * This file is part of DeltaInventory.
+ *
+ * DeltaInventory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DeltaInventory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DeltaInventory.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gmail.tracebachi.DeltaInventory.Commands;
+
+import com.gmail.tracebachi.DeltaInventory.DeltaInventoryPlugin;
+import com.gmail.tracebachi.DeltaInventory.Stats.PluginStats;
+import com.gmail.tracebachi.DeltaInventory.Storage.ItemIndex;
+import com.gmail.tracebachi.DeltaInventory.Storage.PlayerStorage;
+import com.google.common.base.Preconditions;
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandExecutor;
+import org.bukkit.command.CommandSender;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.yahoo.tracebachi.DeltaRedis.Spigot.Prefixes.FAILURE;
+import static com.yahoo.tracebachi.DeltaRedis.Spigot.Prefixes.INFO;
+import static com.yahoo.tracebachi.DeltaRedis.Spigot.Prefixes.SUCCESS;
+import static com.yahoo.tracebachi.DeltaRedis.Spigot.Prefixes.input;
+
+/**
+ * /deltainv stats [dump|reset]
+ * /deltainv items &lt;material|name:custom name|enchant:ENCHANTMENT[:level]&gt;
+ */
+public class DeltaInvCommand implements CommandExecutor
+{
+    private static final String USAGE = INFO + "/deltainv stats [dump|reset]";
+    private static final String ITEMS_USAGE = INFO + "/deltainv items <material|name:custom name|enchant:ENCHANTMENT[:level]>";
+    private static final int ITEMS_LIMIT = 20;
+
+    private final DeltaInventoryPlugin plugin;
+
+    public DeltaInvCommand(DeltaInventoryPlugin plugin)
+    {
+        Preconditions.checkNotNull(plugin, "Plugin cannot be null.");
+
+        this.plugin = plugin;
+    }
+
+    @Override
+    public boolean onCommand(CommandSender sender, Command command, String label, String[] args)
+    {
+        if(args.length >= 1 && args[0].equalsIgnoreCase("items"))
+        {
+            onItemsCommand(sender, args);
+            return true;
+        }
+
+        if(!sender.hasPermission("DeltaInv.Stats"))
+        {
+            sender.sendMessage(FAILURE + "You do not have permission to do that.");
+            return true;
+        }
+
+        if(args.length < 1 || !args[0].equalsIgnoreCase("stats"))
+        {
+            sender.sendMessage(USAGE);
+            return true;
+        }
+
+        PluginStats stats = plugin.getStats();
+
+        if(args.length < 2)
+        {
+            for(String line : stats.toLines())
+            {
+                sender.sendMessage(INFO + line);
+            }
+        }
+        else if(args[1].equalsIgnoreCase("dump"))
+        {
+            dumpAsync(sender, stats);
+        }
+        else if(args[1].equalsIgnoreCase("reset"))
+        {
+            stats.reset();
+            sender.sendMessage(SUCCESS + "Stats were reset.");
+        }
+        else
+        {
+            sender.sendMessage(USAGE);
+        }
+        return true;
+    }
+
+    private void onItemsCommand(CommandSender sender, String[] args)
+    {
+        if(!sender.hasPermission("DeltaInv.Index"))
+        {
+            sender.sendMessage(FAILURE + "You do not have permission to do that.");
+            return;
+        }
+
+        ItemIndex itemIndex = plugin.getItemIndex();
+
+        if(itemIndex == null)
+        {
+            sender.sendMessage(FAILURE + "The item index is not enabled.");
+            return;
+        }
+
+        if(args.length < 2)
+        {
+            sender.sendMessage(ITEMS_USAGE);
+            return;
+        }
+
+        // Custom names may contain spaces
+        String query = String.join(" ", Arrays.copyOfRange(args, 1, args.length));
+        queryAsync(sender, itemIndex, query);
+    }
+
+    private void queryAsync(CommandSender sender, ItemIndex itemIndex, String query)
+    {
+        plugin.getServer().getScheduler().runTaskAsynchronously(plugin, () ->
+        {
+            List<String> messages = new ArrayList<>();
+            long currentTime = System.currentTimeMillis();
+
+            try
+            {
+                List<ItemIndex.IndexedItem> items = itemIndex.query(query, ITEMS_LIMIT);
+
+                if(items.isEmpty())
+                {
+                    messages.add(INFO + "No saved inventories contain " + input(ItemIndex.toKey(query)));
+                }
+                else
+                {
+                    messages.add(INFO + "Saved inventories containing " + input(ItemIndex.toKey(query)) +
+                        " (most first):");
+                }
+
+                PlayerStorage storage = plugin.getPlayerStorage();
+
+                for(ItemIndex.IndexedItem item : items)
+                {
+                    long minutesAgo = TimeUnit.MILLISECONDS.toMinutes(currentTime - item.getSavedAt());
+
+                    // The player was saved since, possibly by another server
+                    boolean isStale = storage != null &&
+                        storage.getSavedAt(item.getPlayer()) > item.getSavedAt();
+
+                    messages.add(INFO + input(item.getPlayer()) + " has " + input(item.getAmount()) +
+                        " in " + item.getSection() + " (saved " + minutesAgo + " min ago" +
+                        (isStale ? ", changed since" : "") + ")");
+                }
+            }
+            catch(IOException ex)
+            {
+                ex.printStackTrace();
+                messages.add(FAILURE + "Failed to search the item index. " + ex.getMessage());
+            }
+
+            plugin.getServer().getScheduler().runTask(plugin, () ->
+            {
+                for(String message : messages)
+                {
+                    sender.sendMessage(message);
+                }
+            });
+        });
+    }
+
+    private void dumpAsync(CommandSender sender, PluginStats stats)
+    {
+        plugin.getServer().getScheduler().runTaskAsynchronously(plugin, () ->
+        {
+            String message;
+
+            try
+            {
+                File file = stats.dump(plugin.getDataFolder());
+                message = SUCCESS + "Stats were written to " + input(file.getPath());
+            }
+            catch(IOException ex)
+            {
+                ex.printStackTrace();
+                message = FAILURE + "Failed to write stats. " + ex.getMessage();
+            }
+
+            String finalMessage = message;
+            plugin.getServer().getScheduler().runTask(plugin, () -> sender.sendMessage(finalMessage));
+        });
+    }
+}
@@ -16,22 +16,69 @@
  */
 package com.gmail.tracebachi.DeltaInventory;
 
+import com.gmail.tracebachi.DeltaInventory.Commands.DeltaInvCommand;
+import com.gmail.tracebachi.DeltaInventory.Listeners.HandoffListener;
 import com.gmail.tracebachi.DeltaInventory.Listeners.InventoryLockListener;
 import com.gmail.tracebachi.DeltaInventory.Listeners.PlayerListener;
+import com.gmail.tracebachi.DeltaInventory.Listeners.SaveBroadcastListener;
+import com.gmail.tracebachi.DeltaInventory.Runnables.Autosaver;
+import com.gmail.tracebachi.DeltaInventory.Runnables.LoadAdmission;
+import com.gmail.tracebachi.DeltaInventory.Runnables.MainThreadApplyQueue;
+import com.gmail.tracebachi.DeltaInventory.Runnables.PlayerIoExecutor;
+import com.gmail.tracebachi.DeltaInventory.Storage.BufferPool;
+import com.gmail.tracebachi.DeltaInventory.Storage.CompressionCodec;
+import com.gmail.tracebachi.DeltaInventory.Storage.FilePlayerStorage;
+import com.gmail.tracebachi.DeltaInventory.Storage.ItemIndex;
+import com.gmail.tracebachi.DeltaInventory.Storage.ItemStackCache;
+import com.gmail.tracebachi.DeltaInventory.Storage.PlayerDataCodec;
+import com.gmail.tracebachi.DeltaInventory.Storage.PlayerDataFormat;
+import com.gmail.tracebachi.DeltaInventory.Storage.PlayerFileIo;
+import com.gmail.tracebachi.DeltaInventory.Storage.PlayerFileLayout;
+import com.gmail.tracebachi.DeltaInventory.Storage.PlayerSessions;
+import com.gmail.tracebachi.DeltaInventory.Storage.PlayerStorage;
+import com.gmail.tracebachi.DeltaInventory.Storage.RecentEntryCache;
+import com.gmail.tracebachi.DeltaInventory.Storage.SaveJournal;
+import com.gmail.tracebachi.DeltaInventory.Storage.SqlitePlayerStorage;
+import com.gmail.tracebachi.DeltaInventory.Stats.PluginStats;
 import com.yahoo.tracebachi.DeltaEssentials.DeltaEssentialsPlugin;
+import com.yahoo.tracebachi.DeltaRedis.Spigot.DeltaRedisPlugin;
 import org.bukkit.plugin.java.JavaPlugin;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 
 /**
  * Created by Trace Bachi (tracebachi@gmail.com, BigBossZee) on 12/11/15.
  */
 public class DeltaInventoryPlugin extends JavaPlugin
 {
+    private static final long SHUTDOWN_INTERRUPT_GRACE = 5000;
+
     private boolean debugMode;
+    private final PluginStats stats = new PluginStats();
     private String playerDataFolder;
+    private PlayerDataFormat playerDataFormat;
+    private boolean compressionEnabled;
+    private CompressionCodec compressionCodec;
+    private int compressionLevel;
+    private int compressionMinimumSize;
+    private ItemStackCache itemStackCache;
+    private PlayerDataCodec playerDataCodec;
+    private RecentEntryCache recentEntryCache;
+    private PlayerStorage playerStorage;
+    private ItemIndex itemIndex;
+    private SaveJournal saveJournal;
+    private PlayerIoExecutor ioExecutor;
+    private MainThreadApplyQueue applyQueue;
+    private LoadAdmission loadAdmission;
+    private PlayerSessions playerSessions;
     private PlayerListener playerListener;
+    private Autosaver autosaver;
     private InventoryLockListener inventoryLockListener;
+    private HandoffListener handoffListener;
+    private SaveBroadcastListener saveBroadcastListener;
 
     @Override
     public void onLoad()
@@ -46,43 +93,401 @@ public class DeltaInventoryPlugin extends JavaPlugin
         debugMode = getConfig().getBoolean("DebugMode", false);
         playerDataFolder = getConfig().getString("PlayerDataFolder", getDataFolder() +
             File.separator + "PlayerData" + File.separator);
+        playerDataFormat = PlayerDataFormat.fromName(getConfig().getString("PlayerDataFormat", "YAML"));
+        compressionEnabled = getConfig().getBoolean("Compression.Enabled", false);
+        compressionCodec = CompressionCodec.fromName(getConfig().getString("Compression.Codec", "DEFLATE_DICTIONARY"));
+        compressionLevel = Math.max(0, Math.min(9, getConfig().getInt("Compression.Level", 6)));
+        compressionMinimumSize = getConfig().getInt("Compression.MinimumSize", 512);
+
+        if(getConfig().getBoolean("ItemCache.Enabled", true))
+        {
+            itemStackCache = new ItemStackCache(Math.max(1, getConfig().getInt("ItemCache.MaxEntries", 4096)));
+        }
+
+        Charset yamlCharset = getConfig().getString("YamlEncoding", "UTF-16").equalsIgnoreCase("UTF-8") ?
+            StandardCharsets.UTF_8 : StandardCharsets.UTF_16;
+
+        playerDataCodec = new PlayerDataCodec(playerDataFormat, itemStackCache,
+            compressionEnabled ? compressionCodec : null, compressionLevel, compressionMinimumSize,
+            yamlCharset);
+
+        if(getConfig().getBoolean("RecentCache.Enabled", true))
+        {
+            recentEntryCache = new RecentEntryCache(
+                Math.max(1, getConfig().getInt("RecentCache.MaxEntries", 500)),
+                getConfig().getLong("RecentCache.MaxBytes", 33554432),
+                getConfig().getLong("RecentCache.ExpireAfter", 600000));
+        }
+
+        if(getConfig().getString("Storage.Type", "FILE").equalsIgnoreCase("SQLITE"))
+        {
+            File databaseFile = new File(getConfig().getString("Storage.Sqlite.File",
+                getDataFolder() + File.separator + "PlayerData.db"));
+
+            playerStorage = new SqlitePlayerStorage(databaseFile,
+                Math.max(1, getConfig().getInt("Storage.Sqlite.BatchSize", 64)), this);
+        }
+        else
+        {
+            BufferPool bufferPool = new BufferPool(
+                Math.max(4096, getConfig().getInt("Storage.File.BufferSize", 65536)),
+                Math.max(1, getConfig().getInt("Storage.File.MaxPooledBuffers", 16)));
+            PlayerFileIo fileIo = new PlayerFileIo(bufferPool,
+                Math.max(1, getConfig().getLong("Storage.File.MapThreshold", 1048576)));
+            PlayerFileLayout layout = PlayerFileLayout.fromName(
+                getConfig().getString("Storage.File.Layout", "FIRST_CHARACTER"));
+            FilePlayerStorage filePlayerStorage = new FilePlayerStorage(playerDataFolder,
+                playerDataFormat, recentEntryCache, fileIo, layout,
+                Math.max(0, getConfig().getInt("Storage.File.MigrationRate", 200)), this);
+
+            stats.setGauge("Pooled I/O buffers", bufferPool::getPooledCount);
+            stats.setGauge("I/O buffers in use", bufferPool::getInUseCount);
+            stats.setGauge("I/O buffers allocated", bufferPool::getAllocatedCount);
+            stats.setGauge("Memory mapped reads", fileIo::getMappedReadCount);
+
+            if(layout == PlayerFileLayout.HASHED)
+            {
+                stats.setGauge("Player files moved to hashed layout", filePlayerStorage::getMigratedCount);
+            }
+            playerStorage = filePlayerStorage;
+        }
 
-        File file = new File(playerDataFolder);
-        if(!file.exists() && !file.mkdirs())
+        try
         {
-            severe("Failed to create necessary directories! Shutting down ...");
+            playerStorage.start();
+        }
+        catch(IOException ex)
+        {
+            ex.printStackTrace();
+            playerStorage = null;
+            severe("Failed to start the player storage! Shutting down ...");
             getServer().getPluginManager().disablePlugin(this);
             return;
         }
 
+        if(getConfig().getBoolean("ItemIndex.Enabled", false))
+        {
+            File indexFile = new File(getConfig().getString("ItemIndex.File",
+                getDataFolder() + File.separator + "ItemIndex.db"));
+
+            itemIndex = new ItemIndex(indexFile,
+                Math.max(1, getConfig().getInt("ItemIndex.BatchSize", 64)),
+                Math.max(1, getConfig().getInt("ItemIndex.QueueLimit", 1000)));
+
+            try
+            {
+                itemIndex.start();
+                stats.setGauge("Item index updates queued", itemIndex::getQueuedCount);
+            }
+            catch(IOException ex)
+            {
+                // Searching items is not worth refusing to load and save players
+                ex.printStackTrace();
+                itemIndex = null;
+                severe("Failed to start the item index! Continuing without it ...");
+            }
+        }
+
+        if(getConfig().getBoolean("Journal.Enabled", false))
+        {
+            String journalFolder = getConfig().getString("Journal.Folder", getDataFolder() +
+                File.separator + "Journal" + File.separator);
+
+            saveJournal = new SaveJournal(new File(journalFolder),
+                getConfig().getLong("Journal.SegmentSize", 8388608),
+                getConfig().getLong("Journal.CompactDelay", 100), this);
+
+            try
+            {
+                // Replays anything left behind by a crash before loads can happen
+                saveJournal.start();
+            }
+            catch(IOException ex)
+            {
+                ex.printStackTrace();
+                saveJournal = null;
+                severe("Failed to start the save journal! Shutting down ...");
+                getServer().getPluginManager().disablePlugin(this);
+                return;
+            }
+        }
+
+        ioExecutor = new PlayerIoExecutor(
+            Math.max(1, getConfig().getInt("IoExecutor.Workers", 4)),
+            Math.max(1, getConfig().getInt("IoExecutor.QueueLimit", 1000)), this);
+        stats.setGauge("I/O tasks rejected", ioExecutor::getRejectedCount);
+
+        int maxConcurrentLoads = Math.max(1, getConfig().getInt("LoadAdmission.MaxConcurrent", 8));
+        loadAdmission = new LoadAdmission(
+            Math.max(1, Math.min(maxConcurrentLoads, getConfig().getInt("LoadAdmission.MinConcurrent", 2))),
+            maxConcurrentLoads,
+            Math.max(1, getConfig().getLong("LoadAdmission.TargetLatency", 250)),
+            ioExecutor, this);
+        stats.setGauge("Loads waiting for admission", loadAdmission::getWaitingCount);
+        stats.setGauge("Loads admitted", loadAdmission::getInFlightCount);
+        stats.setGauge("Concurrent load limit", loadAdmission::getLimit);
+
+        // Budget in ms, which may be fractional
+        applyQueue = new MainThreadApplyQueue(Math.max(1, (long) (getConfig()
+            .getDouble("ApplyQueue.TickBudget", 5.0) * 1000000)), this);
+        applyQueue.start();
+
         DeltaEssentialsPlugin dePlugin = (DeltaEssentialsPlugin) getServer()
             .getPluginManager().getPlugin("DeltaEssentials");
 
-        inventoryLockListener = new InventoryLockListener();
+        DeltaRedisPlugin drPlugin = (DeltaRedisPlugin) getServer()
+            .getPluginManager().getPlugin("DeltaRedis");
+
+        if(getConfig().getBoolean("Handoff.Enabled", false))
+        {
+            handoffListener = new HandoffListener(drPlugin,
+                getConfig().getLong("Handoff.ExpireAfter", 10000),
+                Math.max(0, getConfig().getLong("Handoff.MaxWait", 1000)), this);
+            getServer().getPluginManager().registerEvents(handoffListener, this);
+        }
+
+        playerSessions = new PlayerSessions();
+        inventoryLockListener = new InventoryLockListener(playerSessions,
+            getConfig().getLong("LockMessageInterval", 1000), stats, loadAdmission);
         getServer().getPluginManager().registerEvents(inventoryLockListener, this);
-        playerListener = new PlayerListener(dePlugin, inventoryLockListener, this);
+
+        long positionInterval = Math.max(1, getConfig().getLong("LoadAdmission.PositionMessageInterval", 5000) / 50);
+        getServer().getScheduler().runTaskTimer(this,
+            inventoryLockListener::notifyWaitingPlayers, positionInterval, positionInterval);
+        playerListener = new PlayerListener(dePlugin, inventoryLockListener, playerSessions, this);
         getServer().getPluginManager().registerEvents(playerListener, this);
+
+        saveBroadcastListener = new SaveBroadcastListener(drPlugin, playerListener.getPrefetchCache(),
+            recentEntryCache, this);
+        getServer().getPluginManager().registerEvents(saveBroadcastListener, this);
+
+        if(getConfig().getBoolean("Autosave.Enabled", false))
+        {
+            // Interval and jitter in seconds
+            long intervalTicks = Math.max(1, getConfig().getLong("Autosave.Interval", 300) * 20);
+            long jitterTicks = Math.min(intervalTicks - 1,
+                Math.max(0, getConfig().getLong("Autosave.Jitter", 30) * 20));
+
+            autosaver = new Autosaver(intervalTicks, jitterTicks,
+                Math.max(1, getConfig().getInt("Autosave.MaxPerTick", 2)), playerSessions,
+                playerListener, this);
+            autosaver.start();
+        }
+
+        getCommand("deltainv").setExecutor(new DeltaInvCommand(this));
     }
 
     @Override
     public void onDisable()
     {
+        // One deadline for saving online players and draining queued saves
+        long deadline = System.currentTimeMillis() + getConfig().getLong("ShutdownSave.Deadline", 15000);
+        boolean isIdle = true;
+
+        if(applyQueue != null)
+        {
+            // Apply loads that already completed before online players are saved
+            applyQueue.shutdown();
+            applyQueue = null;
+        }
+
+        if(autosaver != null)
+        {
+            autosaver.shutdown();
+            autosaver = null;
+        }
+
         if(playerListener != null)
         {
-            playerListener.shutdown();
+            isIdle = playerListener.shutdown(deadline, SHUTDOWN_INTERRUPT_GRACE);
             playerListener = null;
         }
 
-        if(inventoryLockListener != null)
+        // Locks and lock message times live in the sessions cleared below
+        inventoryLockListener = null;
+
+        if(playerSessions != null)
+        {
+            playerSessions.clear();
+            playerSessions = null;
+        }
+
+        if(loadAdmission != null)
+        {
+            stats.removeGauge("Loads waiting for admission");
+            stats.removeGauge("Loads admitted");
+            stats.removeGauge("Concurrent load limit");
+            loadAdmission = null;
+        }
+
+        if(ioExecutor != null)
+        {
+            // Let queued saves finish before the journal is closed
+            if(!ioExecutor.shutdown(Math.max(0, deadline - System.currentTimeMillis()),
+                SHUTDOWN_INTERRUPT_GRACE))
+            {
+                severe("Timed out waiting for queued loads and saves to finish.");
+            }
+            isIdle &= ioExecutor.isTerminated();
+            stats.removeGauge("I/O tasks rejected");
+            ioExecutor = null;
+        }
+
+        if(!isIdle)
+        {
+            // Closing them would fail writes that are still running. Anything
+            // left in the journal is replayed on the next start.
+            severe("Saves are still running after being interrupted. " +
+                "Leaving the save journal and player storage open.");
+            saveJournal = null;
+            playerStorage = null;
+        }
+
+        if(handoffListener != null)
+        {
+            handoffListener.shutdown();
+            handoffListener = null;
+        }
+
+        if(saveBroadcastListener != null)
         {
-            inventoryLockListener.shutdown();
-            inventoryLockListener = null;
+            saveBroadcastListener.shutdown();
+            saveBroadcastListener = null;
         }
+
+        if(saveJournal != null)
+        {
+            saveJournal.shutdown();
+            saveJournal = null;
+        }
+
+        if(itemIndex != null)
+        {
+            // After the saves above, so their updates are committed
+            stats.removeGauge("Item index updates queued");
+            itemIndex.shutdown();
+            itemIndex = null;
+        }
+
+        if(playerStorage != null)
+        {
+            stats.removeGauge("Player files moved to hashed layout");
+            stats.removeGauge("Pooled I/O buffers");
+            stats.removeGauge("I/O buffers in use");
+            stats.removeGauge("I/O buffers allocated");
+            stats.removeGauge("Memory mapped reads");
+            playerStorage.shutdown();
+            playerStorage = null;
+        }
+
+        if(recentEntryCache != null)
+        {
+            debug("Recent cache hit ratio: " + String.format("%.2f", recentEntryCache.getHitRatio()) +
+                " (" + recentEntryCache.getHits() + " hits, " + recentEntryCache.getMisses() + " misses)");
+            recentEntryCache.clear();
+            recentEntryCache = null;
+        }
+
+        if(itemStackCache != null)
+        {
+            debug("Item cache hit ratio: " + String.format("%.2f", itemStackCache.getEncodeHitRatio()) +
+                " (encode), " + String.format("%.2f", itemStackCache.getDecodeHitRatio()) + " (decode)");
+            itemStackCache.clear();
+            itemStackCache = null;
+        }
+
+        playerDataCodec = null;
+    }
+
+    public PluginStats getStats()
+    {
+        return stats;
+    }
+
+    public PlayerDataFormat getPlayerDataFormat()
+    {
+        return playerDataFormat;
+    }
+
+    public ItemStackCache getItemStackCache()
+    {
+        return itemStackCache;
+    }
+
+    public PlayerDataCodec getPlayerDataCodec()
+    {
+        return playerDataCodec;
+    }
+
+    public PlayerStorage getPlayerStorage()
+    {
+        return playerStorage;
+    }
+
+    /**
+     * @return Item index or null if it is disabled
+     */
+    public ItemIndex getItemIndex()
+    {
+        return itemIndex;
+    }
+
+    public SaveJournal getSaveJournal()
+    {
+        return saveJournal;
+    }
+
+    public HandoffListener getHandoffListener()
+    {
+        return handoffListener;
+    }
+
+    public SaveBroadcastListener getSaveBroadcastListener()
+    {
+        return saveBroadcastListener;
+    }
+
+    /**
+     * @return Autosaver or null if autosaving is disabled
+     */
+    public Autosaver getAutosaver()
+    {
+        return autosaver;
+    }
+
+    public MainThreadApplyQueue getApplyQueue()
+    {
+        return applyQueue;
+    }
+
+    public LoadAdmission getLoadAdmission()
+    {
+        return loadAdmission;
+    }
+
+    public PlayerIoExecutor getIoExecutor()
+    {
+        return ioExecutor;
+    }
+
+    public boolean isCompressionEnabled()
+    {
+        return compressionEnabled;
+    }
+
+    public CompressionCodec getCompressionCodec()
+    {
+        return compressionCodec;
+    }
+
+    public int getCompressionLevel()
+    {
+        return compressionLevel;
     }
 
-    public String getPlayerDataFolder()
+    public int getCompressionMinimumSize()
     {
-        return playerDataFolder;
+        return compressionMinimumSize;
     }
 
     public void info(String message)
@@ -0,0 +1,317 @@
+/*
+ * This file is part of DeltaInventory.
+ *
+ * DeltaInventory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DeltaInventory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DeltaInventory.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gmail.tracebachi.DeltaInventory.Listeners;
+
+import com.gmail.tracebachi.DeltaInventory.DeltaInventoryPlugin;
+import com.gmail.tracebachi.DeltaInventory.Storage.PlayerDataFormat;
+import com.google.common.base.Preconditions;
+import com.yahoo.tracebachi.DeltaRedis.Spigot.DeltaRedisPlugin;
+import com.yahoo.tracebachi.DeltaRedis.Spigot.Events.DeltaRedisMessageEvent;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Hands the serialized player data directly to the destination server when
+ * a player switches servers, so the destination does not have to read back
+ * the player file. The data is only published after it was stored, so the
+ * player file is never older than the handed off data.
+ *
+ * The switch is announced to the destination before the save starts, so
+ * only loads of announced players wait for the data (without holding an
+ * I/O thread) and every other login is loaded right away.
+ *
+ * Message format: name/format/base64(data) and name (announcement)
+ */
+public class HandoffListener implements Listener
+{
+    public static final String CHANNEL = "DeltaInv-Handoff";
+    public static final String SWITCH_CHANNEL = "DeltaInv-Switch";
+
+    private static final Pattern slashPattern = Pattern.compile("/");
+
+    private final long expireAfterMillis;
+    private final long waitMillis;
+    private final ConcurrentHashMap<String, CompletableFuture<Void>> waiting = new ConcurrentHashMap<>(32);
+    private final ConcurrentHashMap<String, Long> announced = new ConcurrentHashMap<>(32);
+    private DeltaRedisPlugin deltaRedisPlugin;
+    private DeltaInventoryPlugin plugin;
+    private ConcurrentHashMap<String, Handoff> received = new ConcurrentHashMap<>(32);
+
+    /**
+     * @param expireAfterMillis Time handed off data (or an announced switch)
+     *                          is kept for a player that has not arrived
+     * @param waitMillis Most time a load of a switching player waits for
+     *                   data that has not arrived yet
+     */
+    public HandoffListener(DeltaRedisPlugin deltaRedisPlugin, long expireAfterMillis, long waitMillis,
+        DeltaInventoryPlugin plugin)
+    {
+        Preconditions.checkNotNull(deltaRedisPlugin, "DeltaRedis plugin cannot be null.");
+        Preconditions.checkNotNull(plugin, "Plugin cannot be null.");
+
+        this.deltaRedisPlugin = deltaRedisPlugin;
+        this.expireAfterMillis = expireAfterMillis;
+        this.waitMillis = waitMillis;
+        this.plugin = plugin;
+    }
+
+    public void shutdown()
+    {
+        waiting.values().forEach((future) -> future.cancel(false));
+        waiting.clear();
+        announced.clear();
+        received.clear();
+        received = null;
+        deltaRedisPlugin = null;
+        plugin = null;
+    }
+
+    /**
+     * Tells the destination server that the player is about to switch to it,
+     * so it waits for the handed off data. Safe to call from any thread.
+     *
+     * @param destination Server the player is switching to
+     * @param name Name of the player
+     */
+    public void announce(String destination, String name)
+    {
+        deltaRedisPlugin.publish(destination, SWITCH_CHANNEL, name);
+        plugin.debug("Announced switch of {name:" + name + "} to " + destination);
+    }
+
+    /**
+     * Publishes the stored form of a player's data to the destination server.
+     * Safe to call from any thread.
+     *
+     * @param destination Server the player is switching to
+     * @param name Name of the player
+     * @param format Format of the data
+     * @param data Bytes as they would be stored in the player file
+     */
+    public void publish(String destination, String name, PlayerDataFormat format, byte[] data)
+    {
+        String message = name + "/" + format.name() + "/" + Base64.getEncoder().encodeToString(data);
+        deltaRedisPlugin.publish(destination, CHANNEL, message);
+        plugin.debug("Published handoff for {name:" + name + "} to " + destination);
+    }
+
+    /**
+     * Removes the data handed off for the player (and the announced switch).
+     *
+     * @param name Name of the player
+     * @return Handed off data or null if none arrived (or it expired)
+     */
+    public Handoff take(String name)
+    {
+        announced.remove(name);
+
+        Handoff handoff = received.remove(name);
+        return (handoff != null && !handoff.isExpired()) ? handoff : null;
+    }
+
+    /**
+     * @param name Name of the player
+     * @return True if data was handed off for the player or another server
+     * announced that the player is switching to this server
+     */
+    public boolean isSwitching(String name)
+    {
+        Long announcedAt = announced.get(name);
+
+        return hasHandoff(name) ||
+            (announcedAt != null && System.currentTimeMillis() - announcedAt <= expireAfterMillis);
+    }
+
+    /**
+     * Runs the load of a player once the handed off data has arrived. The
+     * load runs right away if the data is already here or the switch was not
+     * announced, and runs anyway if nothing arrives in time. The load does
+     * not occupy an I/O thread (or count as a running load) while waiting.
+     * A player that quits before that is not loaded (see {@link #discard}).
+     *
+     * @param name Name of the player
+     * @param load Load to run (on the thread the data arrives on or the
+     *             main thread)
+     */
+    public void runWhenArrived(String name, Runnable load)
+    {
+        if(waitMillis <= 0 || hasHandoff(name) || !isSwitching(name))
+        {
+            load.run();
+            return;
+        }
+
+        CompletableFuture<Void> arrived = new CompletableFuture<>();
+        CompletableFuture<Void> replaced = waiting.put(name, arrived);
+
+        if(replaced != null)
+        {
+            replaced.cancel(false);
+        }
+
+        arrived.thenRun(load);
+
+        // The data may have arrived before the future was registered
+        if(hasHandoff(name) && waiting.remove(name, arrived))
+        {
+            arrived.complete(null);
+            return;
+        }
+
+        long waitTicks = Math.max(1, (waitMillis + 49) / 50);
+        plugin.getServer().getScheduler().runTaskLater(plugin, () ->
+        {
+            if(waiting.remove(name, arrived))
+            {
+                plugin.debug("No handoff arrived in time for {name:" + name + "}");
+                arrived.complete(null);
+            }
+        }, waitTicks);
+    }
+
+    /**
+     * @param name Name of the player
+     * @return True if data handed off for the player is waiting to be taken
+     */
+    public boolean hasHandoff(String name)
+    {
+        Handoff handoff = received.get(name);
+        return handoff != null && !handoff.isExpired();
+    }
+
+    /**
+     * Removes the data handed off for the player and cancels a load that is
+     * still waiting for it.
+     *
+     * @param name Name of the player
+     */
+    public void discard(String name)
+    {
+        received.remove(name);
+        announced.remove(name);
+
+        CompletableFuture<Void> arrived = waiting.remove(name);
+        if(arrived != null)
+        {
+            arrived.cancel(false);
+        }
+    }
+
+    @EventHandler(priority = EventPriority.NORMAL)
+    public void onDeltaRedisMessage(DeltaRedisMessageEvent event)
+    {
+        if(SWITCH_CHANNEL.equals(event.getChannel()))
+        {
+            String name = event.getMessage().toLowerCase();
+
+            removeExpired();
+            announced.put(name, System.currentTimeMillis());
+            plugin.debug("Received switch announcement for {name:" + name + "} from " +
+                event.getSendingServer());
+            return;
+        }
+
+        if(!CHANNEL.equals(event.getChannel())) { return; }
+
+        String[] split = slashPattern.split(event.getMessage(), 3);
+        if(split.length != 3)
+        {
+            plugin.severe("Invalid handoff message from " + event.getSendingServer());
+            return;
+        }
+
+        try
+        {
+            String name = split[0].toLowerCase();
+            PlayerDataFormat format = PlayerDataFormat.fromName(split[1]);
+            byte[] data = Base64.getDecoder().decode(split[2]);
+
+            removeExpired();
+            received.put(name, new Handoff(format, data));
+
+            CompletableFuture<Void> arrived = waiting.remove(name);
+            if(arrived != null)
+            {
+                arrived.complete(null);
+            }
+            plugin.debug("Received handoff for {name:" + name + "} from " + event.getSendingServer());
+        }
+        catch(IllegalArgumentException ex)
+        {
+            plugin.severe("Invalid handoff message from " + event.getSendingServer());
+        }
+    }
+
+    private void removeExpired()
+    {
+        Iterator<Handoff> iterator = received.values().iterator();
+
+        while(iterator.hasNext())
+        {
+            if(iterator.next().isExpired())
+            {
+                iterator.remove();
+            }
+        }
+
+        long currentTime = System.currentTimeMillis();
+        Iterator<Long> announcedIterator = announced.values().iterator();
+
+        while(announcedIterator.hasNext())
+        {
+            if(currentTime - announcedIterator.next() > expireAfterMillis)
+            {
+                announcedIterator.remove();
+            }
+        }
+    }
+
+    public class Handoff
+    {
+        private final long receivedAt = System.currentTimeMillis();
+        private final PlayerDataFormat format;
+        private final byte[] data;
+
+        private Handoff(PlayerDataFormat format, byte[] data)
+        {
+            this.format = format;
+            this.data = data;
+        }
+
+        public PlayerDataFormat getFormat()
+        {
+            return format;
+        }
+
+        public byte[] getData()
+        {
+            return data;
+        }
+
+        private boolean isExpired()
+        {
+            return System.currentTimeMillis() - receivedAt > expireAfterMillis;
+        }
+    }
+}
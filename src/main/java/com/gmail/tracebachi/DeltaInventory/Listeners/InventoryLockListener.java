@@ -16,7 +16,13 @@
  */
 package com.gmail.tracebachi.DeltaInventory.Listeners;
 
+import com.gmail.tracebachi.DeltaInventory.Runnables.LoadAdmission;
+import com.gmail.tracebachi.DeltaInventory.Storage.PlayerSession;
+import com.gmail.tracebachi.DeltaInventory.Storage.PlayerSessions;
+import com.gmail.tracebachi.DeltaInventory.Stats.PluginStats;
 import com.yahoo.tracebachi.DeltaRedis.Spigot.Prefixes;
+import org.bukkit.Bukkit;
+import org.bukkit.entity.HumanEntity;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
@@ -25,36 +31,90 @@ import org.bukkit.event.inventory.InventoryInteractEvent;
 import org.bukkit.event.inventory.InventoryOpenEvent;
 import org.bukkit.event.player.PlayerDropItemEvent;
 import org.bukkit.event.player.PlayerPickupItemEvent;
-import org.bukkit.event.player.PlayerQuitEvent;
-
-import java.util.HashSet;
 
 /**
  * Created by Trace Bachi (tracebachi@gmail.com, BigBossZee) on 12/12/15.
  */
 public class InventoryLockListener implements Listener
 {
-    private HashSet<String> locked = new HashSet<>(32);
+    private static final String LOCKED_MESSAGE = Prefixes.INFO +
+        "Your inventory is locked. Wait until it is loaded.";
+
+    // The lock state lives in the player sessions, which are keyed by UUID
+    // so the event handlers do not have to build a lowercase name
+    private final PlayerSessions sessions;
+    private final long messageIntervalMillis;
+    private final PluginStats stats;
+    private final LoadAdmission loadAdmission;
+
+    /**
+     * @param sessions Sessions of online players
+     * @param messageIntervalMillis Minimum time between lock messages
+     * @param stats Stats to record lock durations in
+     * @param loadAdmission Admission control to report queue positions from
+     *                      or null
+     */
+    public InventoryLockListener(PlayerSessions sessions, long messageIntervalMillis,
+        PluginStats stats, LoadAdmission loadAdmission)
+    {
+        this.sessions = sessions;
+        this.messageIntervalMillis = messageIntervalMillis;
+        this.stats = stats;
+        this.loadAdmission = loadAdmission;
+    }
 
-    public void shutdown()
+    public boolean addLock(Player player)
     {
-        locked.clear();
-        locked = null;
+        return sessions.setLocked(sessions.getOrCreate(player), true);
     }
 
     public boolean addLock(String name)
     {
-        return locked.add(name.toLowerCase());
+        Player player = Bukkit.getPlayerExact(name);
+        return player != null && addLock(player);
+    }
+
+    public boolean removeLock(Player player)
+    {
+        return removeLock(sessions.get(player));
     }
 
+    /**
+     * Removes the lock of the player. If the player is no longer online (for
+     * example, when a save after logging out completes), the lock was already
+     * removed with the session.
+     *
+     * @param name Name of the player
+     * @return True if a lock was removed
+     */
     public boolean removeLock(String name)
     {
-        return locked.remove(name.toLowerCase());
+        return removeLock(sessions.get(name));
+    }
+
+    private boolean removeLock(PlayerSession session)
+    {
+        if(session == null || !sessions.setLocked(session, false))
+        {
+            return false;
+        }
+
+        stats.record(PluginStats.Timer.LOCK_HELD, System.nanoTime() - session.getLockedAt());
+        return true;
+    }
+
+    public boolean isLocked(Player player)
+    {
+        if(!sessions.hasLocked()) { return false; }
+
+        PlayerSession session = sessions.get(player);
+        return session != null && session.isLocked();
     }
 
     public boolean isLocked(String name)
     {
-        return locked.contains(name.toLowerCase());
+        PlayerSession session = sessions.get(name);
+        return session != null && session.isLocked();
     }
 
     /**
@@ -68,11 +128,8 @@ public class InventoryLockListener implements Listener
     @EventHandler(priority = EventPriority.NORMAL, ignoreCancelled = true)
     public void onInventoryOpen(InventoryOpenEvent event)
     {
-        String name = event.getPlayer().getName().toLowerCase();
-        if(locked.contains(name))
+        if(isLockedAndNotify(event.getPlayer()))
         {
-            event.getPlayer().sendMessage(Prefixes.INFO +
-                "Your inventory is locked. Wait until it is loaded.");
             event.setCancelled(true);
         }
     }
@@ -88,11 +145,8 @@ public class InventoryLockListener implements Listener
     @EventHandler(priority = EventPriority.NORMAL, ignoreCancelled = true)
     public void onInventoryInteract(InventoryInteractEvent event)
     {
-        String name = event.getWhoClicked().getName().toLowerCase();
-        if(locked.contains(name))
+        if(isLockedAndNotify(event.getWhoClicked()))
         {
-            event.getWhoClicked().sendMessage(Prefixes.INFO +
-                "Your inventory is locked. Wait until it is loaded.");
             event.setCancelled(true);
         }
     }
@@ -108,12 +162,8 @@ public class InventoryLockListener implements Listener
     @EventHandler(priority = EventPriority.NORMAL, ignoreCancelled = true)
     public void onPlayerDropItemEvent(PlayerDropItemEvent event)
     {
-        Player player = event.getPlayer();
-        String name = player.getName().toLowerCase();
-
-        if(locked.contains(name))
+        if(isLockedAndNotify(event.getPlayer()))
         {
-            player.sendMessage(Prefixes.INFO + "Your inventory is locked. Wait until it is loaded.");
             event.setCancelled(true);
         }
     }
@@ -129,18 +179,62 @@ public class InventoryLockListener implements Listener
     @EventHandler
     public void onPlayerPickupItemEvent(PlayerPickupItemEvent event)
     {
-        Player player = event.getPlayer();
-        String name = player.getName().toLowerCase();
-
-        if(locked.contains(name))
+        if(isLockedAndNotify(event.getPlayer()))
         {
-            player.sendMessage(Prefixes.INFO + "Your inventory is locked. Wait until it is loaded.");
             event.setCancelled(true);
         }
     }
 
-    public void onPlayerQuitEvent(PlayerQuitEvent event)
+    /**
+     * Checks for a lock and tells the player about it, at most once per
+     * message interval so spam clicking does not flood the player.
+     */
+    private boolean isLockedAndNotify(HumanEntity entity)
+    {
+        // Nearly always false, so skip the lookup
+        if(!sessions.hasLocked()) { return false; }
+
+        PlayerSession session = sessions.get(entity);
+        if(session == null || !session.isLocked()) { return false; }
+
+        if(session.shouldSendLockMessage(messageIntervalMillis))
+        {
+            entity.sendMessage(getLockedMessage(session));
+        }
+        return true;
+    }
+
+    /**
+     * Tells players whose loads are waiting for admission where they are in
+     * the queue. Called periodically on the main thread.
+     */
+    public void notifyWaitingPlayers()
     {
-        locked.remove(event.getPlayer().getName().toLowerCase());
+        if(loadAdmission == null) { return; }
+
+        for(String name : loadAdmission.getWaitingNames())
+        {
+            Player player = Bukkit.getPlayerExact(name);
+            PlayerSession session = (player != null) ? sessions.get(player) : null;
+
+            if(session != null && session.shouldSendLockMessage(messageIntervalMillis))
+            {
+                player.sendMessage(getLockedMessage(session));
+            }
+        }
+    }
+
+    private String getLockedMessage(PlayerSession session)
+    {
+        int position = (loadAdmission != null) ? loadAdmission.getPosition(session.getName()) : 0;
+
+        if(position == 0)
+        {
+            return LOCKED_MESSAGE;
+        }
+
+        long seconds = Math.max(1, (loadAdmission.estimateWaitMillis(position) + 999) / 1000);
+        return Prefixes.INFO + "Your inventory is locked. You are " + Prefixes.input(position) +
+            " in line to load (about " + Prefixes.input(seconds + " s") + ").";
     }
 }
@@ -20,12 +20,21 @@ import com.gmail.tracebachi.DeltaInventory.DeltaInventoryPlugin;
 import com.gmail.tracebachi.DeltaInventory.Events.PlayerLoadedEvent;
 import com.gmail.tracebachi.DeltaInventory.Events.PlayerPreSaveEvent;
 import com.gmail.tracebachi.DeltaInventory.Events.PlayerSavedEvent;
+import com.gmail.tracebachi.DeltaInventory.Runnables.Autosaver;
+import com.gmail.tracebachi.DeltaInventory.Runnables.LoadAdmission;
+import com.gmail.tracebachi.DeltaInventory.Runnables.PlayerIoExecutor;
 import com.gmail.tracebachi.DeltaInventory.Runnables.PlayerLoad;
 import com.gmail.tracebachi.DeltaInventory.Runnables.PlayerSave;
 import com.gmail.tracebachi.DeltaInventory.Storage.IPlayerEntry;
 import com.gmail.tracebachi.DeltaInventory.Storage.InventoryPair;
 import com.gmail.tracebachi.DeltaInventory.Storage.PlayerEntry;
+import com.gmail.tracebachi.DeltaInventory.Storage.PlayerSession;
+import com.gmail.tracebachi.DeltaInventory.Storage.PlayerSessions;
+import com.gmail.tracebachi.DeltaInventory.Storage.PrefetchCache;
 import com.gmail.tracebachi.DeltaInventory.Storage.SavedInventory;
+import com.gmail.tracebachi.DeltaInventory.Storage.SectionCache;
+import com.gmail.tracebachi.DeltaInventory.Stats.PluginStats;
+import com.gmail.tracebachi.DeltaInventory.Utils.InventoryUtils;
 import com.yahoo.tracebachi.DeltaEssentials.DeltaEssentialsPlugin;
 import com.yahoo.tracebachi.DeltaEssentials.Events.PlayerServerSwitchEvent;
 import de.luricos.bukkit.xAuth.event.command.player.xAuthCommandLoginEvent;
@@ -40,14 +49,23 @@ import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
+import org.bukkit.event.player.AsyncPlayerPreLoginEvent;
 import org.bukkit.event.player.PlayerGameModeChangeEvent;
 import org.bukkit.event.player.PlayerQuitEvent;
 import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.PlayerInventory;
 import org.bukkit.potion.PotionEffect;
 
 import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import static com.yahoo.tracebachi.DeltaRedis.Spigot.Prefixes.FAILURE;
 import static com.yahoo.tracebachi.DeltaRedis.Spigot.Prefixes.input;
@@ -87,19 +105,26 @@ public class PlayerListener implements Listener
     private HashSet<GameMode> disabledGameModes = new HashSet<>();
     private GameMode forcedGameMode = null;
 
-    private HashSet<String> authenticated = new HashSet<>(32);
-    private HashSet<String> ignoreModeChangeOnce = new HashSet<>(32);
-    private HashMap<String, ServerChangeRequest> serverChangeRequests = new HashMap<>(32);
-    private HashMap<String, InventoryPair> inventoryMap = new HashMap<>(32);
+    private PlayerSessions sessions;
+    private HashMap<String, PlayerSave> pendingSaves = new HashMap<>(32);
+    private PrefetchCache prefetchCache;
 
     public PlayerListener(DeltaEssentialsPlugin essPlugin, InventoryLockListener inventoryLockListener,
-        DeltaInventoryPlugin plugin)
+        PlayerSessions sessions, DeltaInventoryPlugin plugin)
     {
         this.deltaEssPlugin = essPlugin;
         this.inventoryLockListener = inventoryLockListener;
+        this.sessions = sessions;
         this.plugin = plugin;
         this.clearEffectsOnLogin = plugin.getConfig().getBoolean("ClearEffectsOnLogin", false);
 
+        if(plugin.getConfig().getBoolean("Prefetch.Enabled", false))
+        {
+            this.prefetchCache = new PrefetchCache(
+                plugin.getConfig().getLong("Prefetch.ExpireAfter", 60000),
+                plugin.getConfig().getLong("Prefetch.MaxWait", 5000));
+        }
+
         for(String modeName : plugin.getConfig().getStringList("DisabledGameModes"))
         {
             try
@@ -134,15 +159,51 @@ public class PlayerListener implements Listener
         }
     }
 
-    public void shutdown()
+    /**
+     * Saves all online players. Saves that have not finished by the deadline
+     * are interrupted.
+     *
+     * @param deadline Time (in ms) by which all saves must be finished
+     * @param interruptGraceMillis Maximum time to wait for interrupted saves
+     * @return True if no save is still running
+     */
+    public boolean shutdown(long deadline, long interruptGraceMillis)
     {
+        long startTime = System.currentTimeMillis();
+        HashMap<String, PlayerSave> shutdownSaves = new HashMap<>();
+        List<PlayerSave> newSaves = new ArrayList<>();
+
+        // Snapshots have to be taken on the main thread
         for(Player player : Bukkit.getOnlinePlayers())
         {
             try
             {
                 String name = player.getName().toLowerCase();
-                serverChangeRequests.remove(name);
-                saveInventorySync(player);
+                PlayerSession session = sessions.get(player);
+
+                // The player data was never read, so saving would overwrite it
+                if(plugin.getLoadAdmission().cancel(name))
+                {
+                    continue;
+                }
+
+                // The player data is still being read (or applied), so saving
+                // would overwrite it with the unloaded inventory
+                if(session == null || session.getInventoryPair() == null)
+                {
+                    continue;
+                }
+
+                session.clearSwitchRequest();
+
+                PlayerSave save = createShutdownSave(player);
+                shutdownSaves.put(name, save);
+
+                // Merged saves are already queued on the I/O executor
+                if(save != pendingSaves.get(name))
+                {
+                    newSaves.add(save);
+                }
             }
             catch(Exception ex)
             {
@@ -151,12 +212,79 @@ public class PlayerListener implements Listener
             }
         }
 
-        this.inventoryMap.clear();
-        this.inventoryMap = null;
-        this.serverChangeRequests.clear();
-        this.serverChangeRequests = null;
+        // Serialization and writes run in parallel with an overall deadline
+        int threads = Math.max(1, plugin.getConfig().getInt("ShutdownSave.Threads", 4));
+        ExecutorService shutdownExecutor = Executors.newFixedThreadPool(threads);
+        int saved = 0;
+        int failed = 0;
+        int timedOut = 0;
+
+        newSaves.forEach(shutdownExecutor::execute);
+        shutdownExecutor.shutdown();
+
+        for(Map.Entry<String, PlayerSave> entry : shutdownSaves.entrySet())
+        {
+            long remaining = Math.max(0, deadline - System.currentTimeMillis());
+
+            if(!entry.getValue().awaitCompletion(remaining))
+            {
+                plugin.severe("Timed out saving inventory on shutdown for " + entry.getKey());
+                timedOut++;
+            }
+            else if(entry.getValue().isSaved())
+            {
+                plugin.debug("Saved inventory on shutdown for {name:" + entry.getKey() + "}");
+                saved++;
+            }
+            else
+            {
+                plugin.severe("Failed to save inventory on shutdown for " + entry.getKey());
+                failed++;
+            }
+        }
+
+        boolean isTerminated = shutdownExecutor.isTerminated();
+
+        if(!isTerminated)
+        {
+            shutdownExecutor.shutdownNow();
+
+            try
+            {
+                isTerminated = shutdownExecutor.awaitTermination(interruptGraceMillis, TimeUnit.MILLISECONDS);
+            }
+            catch(InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        plugin.info("Saved " + saved + "/" + shutdownSaves.size() + " inventories on shutdown in " +
+            (System.currentTimeMillis() - startTime) + " ms (" + failed + " failed, " +
+            timedOut + " timed out)");
+
+        this.sessions.clear();
+        this.sessions = null;
+        this.pendingSaves.clear();
+        this.pendingSaves = null;
+
+        if(prefetchCache != null)
+        {
+            this.prefetchCache.clear();
+            this.prefetchCache = null;
+        }
         this.deltaEssPlugin = null;
         this.plugin = null;
+        return isTerminated;
+    }
+
+    /**
+     * @return Holding area of prefetched player data or null if prefetching
+     * is disabled
+     */
+    public PrefetchCache getPrefetchCache()
+    {
+        return prefetchCache;
     }
 
     /**
@@ -176,10 +304,13 @@ public class PlayerListener implements Listener
         // If the player is online, apply the entry
         if(player != null && player.isOnline())
         {
+            long startTime = System.nanoTime();
             loadFromEntry(player, entry);
 
             PlayerLoadedEvent event = new PlayerLoadedEvent(name, player);
             Bukkit.getPluginManager().callEvent(event);
+            plugin.getStats().record(PluginStats.Timer.LOAD_APPLY, System.nanoTime() - startTime);
+            scheduleAutosave(player);
         }
     }
 
@@ -193,22 +324,28 @@ public class PlayerListener implements Listener
     public void onInventoryNotFound(String name)
     {
         Player player = Bukkit.getPlayer(name);
+        PlayerSession session = sessions.get(name);
 
-        // Remove the lock and put an empty inventory pair by default
+        // Remove the lock
         inventoryLockListener.removeLock(name);
-        inventoryMap.put(name, new InventoryPair());
 
         // If the player is still online
-        if(player != null && player.isOnline())
+        if(player != null && player.isOnline() && session != null)
         {
+            // Put an empty inventory pair by default
+            session.setInventoryPair(new InventoryPair());
+            session.setSectionCache(new SectionCache());
+            session.refreshPermissions(player);
+
             if(player.getGameMode() != GameMode.SURVIVAL)
             {
-                ignoreModeChangeOnce.add(name);
+                session.setIgnoreModeChangeOnce();
                 player.setGameMode(GameMode.SURVIVAL);
             }
 
             PlayerLoadedEvent event = new PlayerLoadedEvent(name, player);
             Bukkit.getPluginManager().callEvent(event);
+            scheduleAutosave(player);
         }
     }
 
@@ -241,8 +378,11 @@ public class PlayerListener implements Listener
      */
     public void onInventorySaved(String name)
     {
+        removeStartedSave(name);
+
         Player player = Bukkit.getPlayer(name);
-        ServerChangeRequest request = serverChangeRequests.remove(name);
+        PlayerSession session = sessions.get(name);
+        String destination = (session != null) ? session.getSwitchDestination() : null;
 
         PlayerSavedEvent event = new PlayerSavedEvent(name, player);
         Bukkit.getPluginManager().callEvent(event);
@@ -251,18 +391,20 @@ public class PlayerListener implements Listener
         inventoryLockListener.removeLock(name);
 
         // If there is a server change request, send to server without DeltaEssentials event
-        if(player != null && player.isOnline() && request != null)
+        if(player != null && player.isOnline() && destination != null)
         {
-            // Reinsert the request to handle in the quit event
-            ServerChangeRequest newRequest = new ServerChangeRequest(
-                request.destination, System.currentTimeMillis());
-            serverChangeRequests.put(name, newRequest);
+            // Renew the request to handle in the quit event
+            session.setSwitchRequest(destination, System.currentTimeMillis());
 
             // Readd the lock to prevent changes until switch is finalized
-            inventoryLockListener.addLock(name);
+            inventoryLockListener.addLock(player);
 
             // Send to server without PlayerServerSwitchEvent
-            deltaEssPlugin.sendToServer(player, request.destination, false);
+            deltaEssPlugin.sendToServer(player, destination, false);
+        }
+        else if(session != null)
+        {
+            session.clearSwitchRequest();
         }
     }
 
@@ -273,6 +415,8 @@ public class PlayerListener implements Listener
      */
     public void onInventorySaveFailure(String name)
     {
+        removeStartedSave(name);
+
         // Remove the lock
         inventoryLockListener.removeLock(name);
 
@@ -285,6 +429,124 @@ public class PlayerListener implements Listener
         }
     }
 
+    /**
+     * Handles the completion of an autosave. Unlike other saves, the
+     * inventory was never locked and the player is not sent anywhere.
+     *
+     * @param name Name of the player whose inventory was autosaved
+     * @param isSaved True if the save succeeded
+     */
+    public void onAutosaveCompleted(String name, boolean isSaved)
+    {
+        removeStartedSave(name);
+
+        PlayerSession session = sessions.get(name);
+
+        // Save the player again next time even if nothing changes
+        if(!isSaved && session != null)
+        {
+            session.clearSavedFingerprint();
+        }
+    }
+
+    /**
+     * Saves the player without locking the inventory, unless nothing changed
+     * since the player was loaded or last autosaved. Since the player keeps
+     * playing, other plugins are not sent a {@link PlayerPreSaveEvent}.
+     *
+     * @param player Player to save
+     * @return True if a save was queued
+     */
+    public boolean autosave(Player player)
+    {
+        long startTime = System.nanoTime();
+        String name = player.getName().toLowerCase();
+        PlayerSession session = sessions.get(player);
+
+        // Still loading, or being saved for a quit or server switch
+        if(session == null || !session.isAuthenticated() || session.getInventoryPair() == null ||
+            session.isLocked() || session.getSwitchDestination() != null)
+        {
+            return false;
+        }
+
+        // The previous save has not finished, so try again next interval
+        if(pendingSaves.containsKey(name))
+        {
+            return false;
+        }
+
+        long fingerprint = getFingerprint(player, session);
+
+        if(session.isSavedFingerprint(fingerprint))
+        {
+            plugin.getStats().increment(PluginStats.Counter.AUTOSAVES_UNCHANGED);
+            return false;
+        }
+
+        IPlayerEntry entry = createPlayerEntry(player);
+        session.setSavedFingerprint(fingerprint);
+        plugin.getStats().record(PluginStats.Timer.SAVE_SNAPSHOT, System.nanoTime() - startTime);
+
+        PlayerSave runnable = new PlayerSave(entry, this, plugin, false, null, true);
+
+        // The I/O queue is full, so try again next interval
+        if(!runnable.execute(plugin.getIoExecutor(), PlayerIoExecutor.Priority.AUTOSAVE))
+        {
+            session.clearSavedFingerprint();
+            return false;
+        }
+
+        pendingSaves.put(name, runnable);
+        plugin.getStats().increment(PluginStats.Counter.AUTOSAVES);
+        plugin.debug("Autosaving inventory for {name:" + name + "}" );
+        return true;
+    }
+
+    /**
+     * Starts reading and decoding the player's data while the player is still
+     * logging in and authenticating. When authentication completes, the load
+     * only has to apply the prefetched entry (if the data has not changed
+     * since it was read).
+     *
+     * @param event Event to process
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onAsyncPlayerPreLogin(AsyncPlayerPreLoginEvent event)
+    {
+        if(prefetchCache == null) { return; }
+
+        if(event.getLoginResult() != AsyncPlayerPreLoginEvent.Result.ALLOWED) { return; }
+
+        String name = event.getName().toLowerCase();
+        PrefetchCache.Prefetch prefetch = prefetchCache.start(name);
+
+        if(prefetch == null) { return; }
+
+        PlayerLoad playerLoad = new PlayerLoad(name, this, plugin);
+        plugin.debug("Prefetching inventory for {name:" + name + "}" );
+        boolean isQueued = plugin.getIoExecutor().execute(() ->
+        {
+            // Skip if the player authenticated before the prefetch started
+            if(!prefetch.begin()) { return; }
+
+            try
+            {
+                prefetch.complete(playerLoad.load());
+            }
+            catch(Exception ex)
+            {
+                prefetch.fail(ex);
+            }
+        }, PlayerIoExecutor.Priority.PREFETCH_LOAD);
+
+        // The I/O queue is full, so the player is loaded as usual
+        if(!isQueued)
+        {
+            prefetchCache.discard(name);
+        }
+    }
+
     /**
      * Called when xAuth handles the login command. DeltaInventory will only queue
      * loading the player's inventory when they have been authenticated.
@@ -299,13 +561,13 @@ public class PlayerListener implements Listener
             Player player = Bukkit.getPlayer(event.getPlayerName());
             if(player != null && player.isOnline())
             {
-                // Lock the inventory to prevent changes and add to authenticated
+                // Lock the inventory to prevent changes and mark as authenticated
                 String name = player.getName().toLowerCase();
-                inventoryLockListener.addLock(name);
-                authenticated.add(name);
+                inventoryLockListener.addLock(player);
+                sessions.getOrCreate(player).setAuthenticated(true);
 
                 // Schedule an inventory load
-                loadInventoryAsync(name);
+                loadInventoryAsync(name, false);
             }
         }
     }
@@ -325,13 +587,14 @@ public class PlayerListener implements Listener
             Player player = Bukkit.getPlayer(event.getPlayerName());
             if(player != null && player.isOnline())
             {
-                // Lock the inventory to prevent changes and add to authenticated
+                // Lock the inventory to prevent changes and mark as authenticated
                 String name = player.getName().toLowerCase();
-                inventoryLockListener.addLock(name);
-                authenticated.add(name);
+                inventoryLockListener.addLock(player);
+                sessions.getOrCreate(player).setAuthenticated(true);
 
-                // Schedule an inventory load
-                loadInventoryAsync(name);
+                // A session that is still valid usually means the player
+                // arrived from another server, so the load goes first
+                loadInventoryAsync(name, true);
             }
         }
     }
@@ -350,19 +613,20 @@ public class PlayerListener implements Listener
 
         if(name == null) { return; }
 
-        if(authenticated.contains(name)) { return; }
-
         if(event.getAction() == xAuthCommandRegisterEvent.Action.PLAYER_REGISTERED)
         {
             Player player = Bukkit.getPlayer(name);
             if(player != null && player.isOnline())
             {
-                // Lock the inventory to prevent changes and add to authenticated
-                inventoryLockListener.addLock(name);
-                authenticated.add(name);
+                PlayerSession session = sessions.getOrCreate(player);
+                if(session.isAuthenticated()) { return; }
+
+                // Lock the inventory to prevent changes and mark as authenticated
+                inventoryLockListener.addLock(player);
+                session.setAuthenticated(true);
 
                 // Schedule an inventory load
-                loadInventoryAsync(name);
+                loadInventoryAsync(name, false);
             }
         }
     }
@@ -383,21 +647,69 @@ public class PlayerListener implements Listener
         Player player = event.getPlayer();
         String name = player.getName().toLowerCase();
 
-        if(!authenticated.contains(name)) { return; }
+        // Discard data prefetched for a player that never authenticated
+        if(prefetchCache != null)
+        {
+            prefetchCache.discard(name);
+        }
+
+        // Discard data handed off after the player was already loaded
+        if(plugin.getHandoffListener() != null)
+        {
+            plugin.getHandoffListener().discard(name);
+        }
 
-        ServerChangeRequest request = serverChangeRequests.remove(name);
+        if(plugin.getAutosaver() != null)
+        {
+            plugin.getAutosaver().unschedule(player);
+        }
+
+        PlayerSession session = sessions.get(player);
+
+        if(session == null || !session.isAuthenticated())
+        {
+            sessions.remove(player);
+            return;
+        }
+
+        // The player data was never read, so there is nothing to save
+        if(plugin.getLoadAdmission().cancel(name))
+        {
+            plugin.debug("Cancelled waiting load for {name:" + name + "}");
+            sessions.remove(player);
+            return;
+        }
+
+        // The load is still running or waiting to be applied (which is
+        // skipped for players that are no longer online), so saving would
+        // overwrite the player data with the unloaded inventory
+        if(session.getInventoryPair() == null)
+        {
+            plugin.debug("Skipped save of unloaded inventory for {name:" + name + "}");
+            sessions.remove(player);
+            return;
+        }
+
+        String destination = session.getSwitchDestination();
+        long requestedAt = session.getSwitchRequestedAt();
         long currentTime = System.currentTimeMillis();
+        session.clearSwitchRequest();
 
         // If there is no request or the request "timed out" (after 2 seconds)
-        if(request == null || (currentTime - request.requestAt) > 2000)
+        if(destination == null || (currentTime - requestedAt) > 2000)
         {
             // Schedule an inventory save
             saveInventoryAsync(player);
         }
+        else
+        {
+            plugin.getStats().increment(PluginStats.Counter.SERVER_SWITCHES);
+            plugin.getStats().record(PluginStats.Timer.SERVER_SWITCH,
+                System.nanoTime() - session.getSwitchStartedAt());
+        }
 
-        // Remove the inventory pair and authenticated
-        inventoryMap.remove(name);
-        authenticated.remove(name);
+        // Remove the session (including the inventory pair and lock)
+        sessions.remove(player);
     }
 
     /**
@@ -419,9 +731,24 @@ public class PlayerListener implements Listener
         event.setCancelled(true);
         plugin.debug("Cancelled server change event for {name:" + name + "}");
 
+        // There is nothing to save until the inventory is loaded
+        PlayerSession session = sessions.get(player);
+        if(session == null || session.getInventoryPair() == null)
+        {
+            player.sendMessage(FAILURE + "Your inventory is still loading. Try again in a moment.");
+            return;
+        }
+
         // Add request for when the save is complete
-        serverChangeRequests.put(name, new ServerChangeRequest(
-            event.getDestinationServer(), System.currentTimeMillis()));
+        session.setSwitchRequest(event.getDestinationServer(), System.currentTimeMillis());
+        session.setSwitchStartedAt(System.nanoTime());
+
+        // The destination waits for the handed off data only if it knows
+        // the player is coming
+        if(plugin.getHandoffListener() != null)
+        {
+            plugin.getHandoffListener().announce(event.getDestinationServer(), name);
+        }
 
         // Schedule an inventory save
         saveInventoryAsync(player);
@@ -442,17 +769,18 @@ public class PlayerListener implements Listener
     public void onPlayerGameModeChange(PlayerGameModeChangeEvent event)
     {
         Player player = event.getPlayer();
-        String name = player.getName().toLowerCase();
+        PlayerSession session = sessions.get(player);
         GameMode originalMode = player.getGameMode();
         GameMode newMode = event.getNewGameMode();
-        boolean isIgnoringChangeOnce = ignoreModeChangeOnce.remove(name);
+
+        // Ignore if player was not authenticated
+        if(session == null || !session.isAuthenticated()) { return; }
+
+        boolean isIgnoringChangeOnce = session.consumeIgnoreModeChangeOnce();
 
         // Ignore game mode changes where the game modes are the same
         if(originalMode == event.getNewGameMode()) { return; }
 
-        // Ignore if player was not authenticated
-        if(!authenticated.contains(name)) { return; }
-
         // Check if the game mode is disabled
         if(disabledGameModes.contains(newMode))
         {
@@ -466,7 +794,7 @@ public class PlayerListener implements Listener
         }
 
         // Prevent game mode change during saves
-        if(inventoryLockListener.isLocked(name))
+        if(inventoryLockListener.isLocked(player))
         {
             player.sendMessage(FAILURE + "Not allowed to change game modes while inventory is locked.");
             event.setCancelled(true);
@@ -476,7 +804,7 @@ public class PlayerListener implements Listener
         // Prevent game mode changes unless there is no forced game mode or player is exempt
         if(forcedGameMode != null)
         {
-            if(!isIgnoringChangeOnce && !player.hasPermission("DeltaInv.Forced.Bypass"))
+            if(!isIgnoringChangeOnce && !session.isForcedModeBypass())
             {
                 player.sendMessage(FAILURE + "Game mode is being forced. You are not allowed to change it.");
                 event.setCancelled(true);
@@ -485,9 +813,9 @@ public class PlayerListener implements Listener
         }
 
         // Ignore players that have the single inventory permission
-        if(player.hasPermission("DeltaInv.SingleInv")) { return; }
+        if(session.isSingleInventory()) { return; }
 
-        InventoryPair pair = inventoryMap.get(name);
+        InventoryPair pair = session.getInventoryPair();
         SavedInventory inventory = new SavedInventory(player);
 
         // Save the inventory associated with the old game mode
@@ -521,103 +849,189 @@ public class PlayerListener implements Listener
         }
     }
 
-    private void loadInventoryAsync(String name)
+    private void loadInventoryAsync(String name, boolean isServerSwitch)
     {
+        HandoffListener handoffListener = plugin.getHandoffListener();
+        LoadAdmission loadAdmission = plugin.getLoadAdmission();
         PlayerLoad runnable = new PlayerLoad(name, this, plugin);
 
         plugin.debug("Loading inventory async for {name:" + name + "}" );
-        plugin.getServer().getScheduler().runTaskAsynchronously(plugin, runnable);
+
+        if(handoffListener == null)
+        {
+            loadAdmission.submit(name, runnable, isServerSwitch);
+            return;
+        }
+
+        // Only switches announced by the previous server go first and wait
+        // for the handed off data (before the load is admitted)
+        boolean isAnnouncedSwitch = handoffListener.isSwitching(name);
+        handoffListener.runWhenArrived(name, () ->
+            loadAdmission.submit(name, runnable, isAnnouncedSwitch));
     }
 
     private void saveInventoryAsync(Player player)
     {
+        long startTime = System.nanoTime();
+
         // Allow others plugins to modify inventory and players before saving
-        PlayerPreSaveEvent preSaveEvent = new PlayerPreSaveEvent(player);
-        Bukkit.getPluginManager().callEvent(preSaveEvent);
+        callPreSaveEvent(player);
 
         // Create an entry and lock the inventory to prevent changes by the player
         IPlayerEntry entry = createPlayerEntry(player);
-        inventoryLockListener.addLock(entry.getName());
+        inventoryLockListener.addLock(player);
+        plugin.getStats().record(PluginStats.Timer.SAVE_SNAPSHOT, System.nanoTime() - startTime);
+
+        PlayerSession session = sessions.get(player);
+        String destination = (session != null) ? session.getSwitchDestination() : null;
+        PlayerIoExecutor.Priority priority = (destination != null) ?
+            PlayerIoExecutor.Priority.SERVER_SWITCH_SAVE : PlayerIoExecutor.Priority.QUIT_SAVE;
+
+        // If a save for the player is still queued (with at least this
+        // priority), let it write this newer entry
+        PlayerSave pending = pendingSaves.get(entry.getName());
+        if(pending != null && pending.merge(entry, destination, priority))
+        {
+            plugin.debug("Merged inventory save for {name:" + entry.getName() + "}" );
+            return;
+        }
 
-        // Create a runnable and schedule it
-        PlayerSave runnable = new PlayerSave(entry, this, plugin);
+        // Create a runnable and schedule it. A queued save of a lower priority
+        // is cancelled, so its requests complete with this one instead.
+        PlayerSave runnable = new PlayerSave(entry, this, plugin, false, destination);
+        if(pending != null && runnable.takeOver(pending))
+        {
+            plugin.debug("Requeued inventory save at " + priority + " for {name:" + entry.getName() + "}" );
+        }
+        else
+        {
+            runnable.setPrevious(pending);
+        }
+        pendingSaves.put(entry.getName(), runnable);
         plugin.debug("Saving inventory async for {name:" + entry.getName() + "}" );
-        plugin.getServer().getScheduler().runTaskAsynchronously(plugin, runnable);
+        runnable.execute(plugin.getIoExecutor(), priority);
     }
 
-    private void saveInventorySync(Player player)
+    /**
+     * Players are always saved on shutdown, even if they did not change since
+     * the last autosave, since a matching fingerprint does not prove that.
+     */
+    private PlayerSave createShutdownSave(Player player)
     {
+        long startTime = System.nanoTime();
+
         // Allow others plugins to modify inventory and players before saving
-        PlayerPreSaveEvent preSaveEvent = new PlayerPreSaveEvent(player);
-        Bukkit.getPluginManager().callEvent(preSaveEvent);
+        callPreSaveEvent(player);
+
+        PlayerSave pending = pendingSaves.get(player.getName().toLowerCase());
 
         // Create an entry and lock the inventory to prevent changes by the player
         IPlayerEntry entry = createPlayerEntry(player);
-        inventoryLockListener.addLock(entry.getName());
+        inventoryLockListener.addLock(player);
+        plugin.getStats().record(PluginStats.Timer.SAVE_SNAPSHOT, System.nanoTime() - startTime);
+
+        // If a save for the player is still queued, it will write this newer
+        // entry before the executor finishes shutting down
+        if(pending != null && pending.merge(entry, null))
+        {
+            plugin.debug("Merged inventory save for {name:" + entry.getName() + "}" );
+            return pending;
+        }
+
+        plugin.debug("Saving inventory on shutdown for {name:" + entry.getName() + "}" );
+        PlayerSave save = new PlayerSave(entry, this, plugin);
+        save.setPrevious(pending);
+        return save;
+    }
+
+    private void removeStartedSave(String name)
+    {
+        PlayerSave pending = pendingSaves.get(name);
 
-        // Create a runnable and schedule it
-        PlayerSave runnable = new PlayerSave(entry, this, plugin, true);
-        plugin.debug("Saving inventory sync for {name:" + entry.getName() + "}" );
-        runnable.run();
+        // A save that has not started is for a newer entry and must be kept
+        if(pending != null && pending.isStarted())
+        {
+            pendingSaves.remove(name);
+        }
     }
 
+    /**
+     * Takes a snapshot of the player. The items are copied here, on the main
+     * thread, since the live inventories must not be read by the save.
+     */
     private IPlayerEntry createPlayerEntry(Player player)
     {
         String name = player.getName().toLowerCase();
         PlayerEntry entry = new PlayerEntry(name);
-        SavedInventory inventory = new SavedInventory(player);
-        InventoryPair pair = inventoryMap.get(name);
+        PlayerSession session = sessions.get(player);
+        InventoryPair pair = (session != null) ? session.getInventoryPair() : null;
+        GameMode gameMode = player.getGameMode();
+        boolean hasLiveInventory = true;
+        boolean isLiveSurvival = true;
 
         entry.setHealth(player.getHealth());
         entry.setFoodLevel(player.getFoodLevel());
         entry.setXpLevel(player.getLevel());
         entry.setXpProgress(player.getExp());
         entry.setPotionEffects(player.getActivePotionEffects());
-        entry.setEnderChest(player.getEnderChest().getContents());
+        entry.setSectionCache((session != null) ? session.getSectionCache() : null);
+        entry.setGameMode(gameMode);
+        entry.setRevision((session != null) ? session.nextRevision() : 1);
 
-        if(player.hasPermission("DeltaInv.SingleInv"))
-        {
-            entry.setGameMode(player.getGameMode());
-            entry.setSurvival(inventory);
-            entry.setCreative(null);
-        }
-        else
+        if(!((session != null) ? session.isSingleInventory() : player.hasPermission("DeltaInv.SingleInv")))
         {
-            switch(player.getGameMode())
+            switch(gameMode)
             {
                 case SURVIVAL:
-                    entry.setGameMode(GameMode.SURVIVAL);
-                    entry.setSurvival(inventory);
                     entry.setCreative(pair.getCreative());
                     break;
                 case CREATIVE:
-                    entry.setGameMode(GameMode.CREATIVE);
-                    entry.setCreative(inventory);
                     entry.setSurvival(pair.getSurvival());
+                    isLiveSurvival = false;
                     break;
-                case ADVENTURE:
-                    entry.setGameMode(GameMode.ADVENTURE);
-                    entry.setSurvival(pair.getSurvival());
-                    entry.setCreative(pair.getCreative());
-                    break;
-                case SPECTATOR:
-                    entry.setGameMode(GameMode.SPECTATOR);
+                default:
                     entry.setSurvival(pair.getSurvival());
                     entry.setCreative(pair.getCreative());
+                    hasLiveInventory = false;
                     break;
             }
         }
+
+        if(hasLiveInventory)
+        {
+            PlayerInventory inventory = player.getInventory();
+            SavedInventory liveInventory = new SavedInventory(
+                InventoryUtils.copyOf(inventory.getArmorContents(), 4),
+                InventoryUtils.copyOf(inventory.getContents(), 36));
+
+            if(isLiveSurvival)
+            {
+                entry.setSurvival(liveInventory);
+            }
+            else
+            {
+                entry.setCreative(liveInventory);
+            }
+        }
+
+        entry.setEnderChest(InventoryUtils.copyOf(player.getEnderChest().getContents(), 27));
         return entry;
     }
 
     private void loadFromEntry(Player player, IPlayerEntry entry)
     {
         InventoryPair pair = new InventoryPair();
-        String name = player.getName().toLowerCase();
+        PlayerSession session = sessions.getOrCreate(player);
 
         pair.setSurvival(entry.getSurvival());
         pair.setCreative(entry.getCreative());
-        inventoryMap.put(name, pair);
+        session.setInventoryPair(pair);
+        session.setRevision(entry.getRevision());
+        session.refreshPermissions(player);
+
+        SectionCache sectionCache = (entry instanceof PlayerEntry) ?
+            ((PlayerEntry) entry).getSectionCache() : null;
+        session.setSectionCache((sectionCache != null) ? sectionCache : new SectionCache());
 
         player.setHealth(entry.getHealth());
         player.setFoodLevel(entry.getFoodLevel());
@@ -638,7 +1052,7 @@ public class PlayerListener implements Listener
             }
         }
 
-        if(player.hasPermission("DeltaInv.SingleInv"))
+        if(session.isSingleInventory())
         {
             // Single inventory players will get items loaded from survival every time
             player.getInventory().setContents(pair.getSurvival().getContents());
@@ -668,8 +1082,12 @@ public class PlayerListener implements Listener
             }
         }
 
+        // The player now matches the loaded data (a game mode change below
+        // makes the next autosave save the player, which is harmless)
+        session.setSavedFingerprint(getFingerprint(player, session));
+
         // If game mode is not forced
-        if(forcedGameMode == null || player.hasPermission("DeltaInv.Forced.Bypass"))
+        if(forcedGameMode == null || session.isForcedModeBypass())
         {
             if(player.getGameMode() != entry.getGameMode())
             {
@@ -680,12 +1098,65 @@ public class PlayerListener implements Listener
         {
             if(player.getGameMode() != forcedGameMode)
             {
-                ignoreModeChangeOnce.add(name);
+                session.setIgnoreModeChangeOnce();
                 player.setGameMode(forcedGameMode);
             }
         }
     }
 
+    private static void callPreSaveEvent(Player player)
+    {
+        // Usually nothing listens, so the event is not even created
+        if(PlayerPreSaveEvent.getHandlerList().getRegisteredListeners().length > 0)
+        {
+            Bukkit.getPluginManager().callEvent(new PlayerPreSaveEvent(player));
+        }
+    }
+
+    private void scheduleAutosave(Player player)
+    {
+        Autosaver autosaver = plugin.getAutosaver();
+        PlayerSession session = sessions.get(player);
+
+        if(autosaver != null && session != null)
+        {
+            autosaver.schedule(player, session);
+        }
+    }
+
+    /**
+     * Cheap hash of everything a save writes, used to skip saving players
+     * that did not change. The durations of potion effects are left out,
+     * since they change every tick.
+     */
+    private static long getFingerprint(Player player, PlayerSession session)
+    {
+        InventoryPair pair = session.getInventoryPair();
+        long hash = player.getGameMode().ordinal();
+        long effectsHash = 0;
+
+        hash = 31 * hash + Arrays.hashCode(player.getInventory().getContents());
+        hash = 31 * hash + Arrays.hashCode(player.getInventory().getArmorContents());
+        hash = 31 * hash + Arrays.hashCode(player.getEnderChest().getContents());
+        hash = 31 * hash + Double.hashCode(player.getHealth());
+        hash = 31 * hash + player.getFoodLevel();
+        hash = 31 * hash + player.getLevel();
+        hash = 31 * hash + Float.hashCode(player.getExp());
+
+        // The inventories of other game modes are replaced (not modified)
+        // when the game mode changes
+        hash = 31 * hash + System.identityHashCode(pair.getSurvival());
+        hash = 31 * hash + System.identityHashCode(pair.getCreative());
+
+        // In any order
+        for(PotionEffect effect : player.getActivePotionEffects())
+        {
+            effectsHash += 31 * effect.getType().hashCode() + effect.getAmplifier();
+        }
+
+        return 31 * hash + effectsHash;
+    }
+
     private String getPlayerNameFromRegisterEvent(xAuthCommandRegisterEvent event)
     {
         try
@@ -700,16 +1171,4 @@ public class PlayerListener implements Listener
             return null;
         }
     }
-
-    private class ServerChangeRequest
-    {
-        public final String destination;
-        public final long requestAt;
-
-        public ServerChangeRequest(String destination, long requestAt)
-        {
-            this.destination = destination;
-            this.requestAt = requestAt;
-        }
-    }
 }
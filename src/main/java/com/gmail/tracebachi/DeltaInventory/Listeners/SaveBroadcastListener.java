@@ -0,0 +1,133 @@
+/*
+ * This file is part of DeltaInventory.
+ *
+ * DeltaInventory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DeltaInventory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DeltaInventory.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gmail.tracebachi.DeltaInventory.Listeners;
+
+import com.gmail.tracebachi.DeltaInventory.DeltaInventoryPlugin;
+import com.gmail.tracebachi.DeltaInventory.Storage.PrefetchCache;
+import com.gmail.tracebachi.DeltaInventory.Storage.RecentEntryCache;
+import com.google.common.base.Preconditions;
+import com.yahoo.tracebachi.DeltaRedis.Shared.Servers;
+import com.yahoo.tracebachi.DeltaRedis.Spigot.DeltaRedisPlugin;
+import com.yahoo.tracebachi.DeltaRedis.Spigot.Events.DeltaRedisMessageEvent;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+
+import java.util.regex.Pattern;
+
+/**
+ * Announces every save to all servers, so data they read ahead of time
+ * (such as by a prefetch) or kept from their own saves is discarded once a
+ * newer revision was saved, instead of relying on the size and modification
+ * time of the player file.
+ *
+ * Message format: name/revision
+ */
+public class SaveBroadcastListener implements Listener
+{
+    public static final String CHANNEL = "DeltaInv-Saved";
+
+    private static final Pattern slashPattern = Pattern.compile("/");
+
+    private DeltaRedisPlugin deltaRedisPlugin;
+    private PrefetchCache prefetchCache;
+    private RecentEntryCache recentEntryCache;
+    private DeltaInventoryPlugin plugin;
+
+    /**
+     * @param prefetchCache Prefetched data to invalidate or null if
+     *                      prefetching is disabled
+     * @param recentEntryCache Data this server saved, to invalidate when
+     *                         another server saves, or null if disabled
+     */
+    public SaveBroadcastListener(DeltaRedisPlugin deltaRedisPlugin, PrefetchCache prefetchCache,
+        RecentEntryCache recentEntryCache, DeltaInventoryPlugin plugin)
+    {
+        Preconditions.checkNotNull(deltaRedisPlugin, "DeltaRedis plugin cannot be null.");
+        Preconditions.checkNotNull(plugin, "Plugin cannot be null.");
+
+        this.deltaRedisPlugin = deltaRedisPlugin;
+        this.prefetchCache = prefetchCache;
+        this.recentEntryCache = recentEntryCache;
+        this.plugin = plugin;
+    }
+
+    public void shutdown()
+    {
+        deltaRedisPlugin = null;
+        prefetchCache = null;
+        recentEntryCache = null;
+        plugin = null;
+    }
+
+    /**
+     * Announces a save that was stored to this and all other servers.
+     * Safe to call from any thread.
+     *
+     * @param name Name of the player
+     * @param revision Revision of the saved data
+     */
+    public void publish(String name, long revision)
+    {
+        onSaved(name, revision);
+        deltaRedisPlugin.publish(Servers.SPIGOT, CHANNEL, name + "/" + revision);
+    }
+
+    @EventHandler(priority = EventPriority.NORMAL)
+    public void onDeltaRedisMessage(DeltaRedisMessageEvent event)
+    {
+        if(!CHANNEL.equals(event.getChannel())) { return; }
+
+        // Saves of this server were already handled when they were published
+        if(deltaRedisPlugin.getServerName().equals(event.getSendingServer())) { return; }
+
+        String[] split = slashPattern.split(event.getMessage(), 2);
+        if(split.length != 2)
+        {
+            plugin.severe("Invalid save message from " + event.getSendingServer());
+            return;
+        }
+
+        try
+        {
+            String name = split[0].toLowerCase();
+            long revision = Long.parseLong(split[1]);
+
+            // The data kept from the last save of this server is outdated
+            if(recentEntryCache != null)
+            {
+                recentEntryCache.invalidate(name);
+            }
+
+            onSaved(name, revision);
+            plugin.debug("Received save of {name:" + name + ", revision:" + revision + "} from " +
+                event.getSendingServer());
+        }
+        catch(NumberFormatException ex)
+        {
+            plugin.severe("Invalid save message from " + event.getSendingServer());
+        }
+    }
+
+    private void onSaved(String name, long revision)
+    {
+        if(prefetchCache != null)
+        {
+            prefetchCache.onSaved(name, revision);
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * This file is part of DeltaInventory.
+ *
+ * DeltaInventory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DeltaInventory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DeltaInventory.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gmail.tracebachi.DeltaInventory.Runnables;
+
+import com.gmail.tracebachi.DeltaInventory.DeltaInventoryPlugin;
+import com.gmail.tracebachi.DeltaInventory.Listeners.PlayerListener;
+import com.gmail.tracebachi.DeltaInventory.Storage.PlayerSession;
+import com.gmail.tracebachi.DeltaInventory.Storage.PlayerSessions;
+import com.google.common.base.Preconditions;
+import org.bukkit.entity.Player;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Periodically saves online players without locking their inventories, so
+ * a crash only loses the changes since the last autosave. Every player is
+ * given a random first save time within the interval and then saved once
+ * per interval (give or take the jitter), which spreads the snapshots over
+ * the interval instead of taking them all in one tick. At most a few
+ * players are checked per tick; the rest of the players that are due wait
+ * for the next tick. A player has at most one scheduled save; scheduling
+ * the player again (such as after a reload) replaces it.
+ *
+ * Everything here runs on the main thread.
+ */
+public class Autosaver implements Runnable
+{
+    private final long intervalTicks;
+    private final long jitterTicks;
+    private final int maxPerTick;
+    private final PlayerSessions sessions;
+    private final PlayerListener listener;
+    private final DeltaInventoryPlugin plugin;
+    private final PriorityQueue<ScheduledSave> queue = new PriorityQueue<>();
+    private final HashMap<UUID, ScheduledSave> scheduled = new HashMap<>();
+    private long currentTick;
+    private BukkitTask task;
+
+    /**
+     * @param intervalTicks Time between saves of the same player
+     * @param jitterTicks Most time a save is moved earlier or later at random
+     * @param maxPerTick Most players saved in the same tick
+     * @param sessions Sessions of online players
+     * @param listener Listener that takes the snapshots and queues the saves
+     * @param plugin Plugin to schedule the task for
+     */
+    public Autosaver(long intervalTicks, long jitterTicks, int maxPerTick, PlayerSessions sessions,
+        PlayerListener listener, DeltaInventoryPlugin plugin)
+    {
+        Preconditions.checkArgument(intervalTicks > 0, "Interval must be positive.");
+        Preconditions.checkArgument(jitterTicks >= 0 && jitterTicks < intervalTicks,
+            "Jitter must be positive and less than the interval.");
+        Preconditions.checkArgument(maxPerTick > 0, "Max per tick must be positive.");
+        Preconditions.checkNotNull(sessions, "Sessions cannot be null.");
+        Preconditions.checkNotNull(listener, "Listener cannot be null.");
+        Preconditions.checkNotNull(plugin, "Plugin cannot be null.");
+
+        this.intervalTicks = intervalTicks;
+        this.jitterTicks = jitterTicks;
+        this.maxPerTick = maxPerTick;
+        this.sessions = sessions;
+        this.listener = listener;
+        this.plugin = plugin;
+    }
+
+    public void start()
+    {
+        task = plugin.getServer().getScheduler().runTaskTimer(plugin, this, 1, 1);
+        plugin.getStats().setGauge("Players scheduled for autosave", this::getScheduledCount);
+    }
+
+    public void shutdown()
+    {
+        if(task != null)
+        {
+            task.cancel();
+            task = null;
+        }
+
+        queue.clear();
+        scheduled.clear();
+        plugin.getStats().removeGauge("Players scheduled for autosave");
+    }
+
+    /**
+     * Schedules the first autosave of a player whose data was just loaded,
+     * replacing any save already scheduled for the player.
+     *
+     * @param player Player to autosave
+     * @param session Session of the player
+     */
+    public void schedule(Player player, PlayerSession session)
+    {
+        long delay = 1 + ThreadLocalRandom.current().nextLong(intervalTicks);
+        ScheduledSave scheduledSave = new ScheduledSave(player, session, currentTick + delay);
+        ScheduledSave replaced = scheduled.put(scheduledSave.uuid, scheduledSave);
+
+        if(replaced != null)
+        {
+            queue.remove(replaced);
+        }
+        queue.add(scheduledSave);
+    }
+
+    /**
+     * Stops autosaving a player (such as when they quit).
+     *
+     * @param player Player to stop autosaving
+     */
+    public void unschedule(Player player)
+    {
+        ScheduledSave scheduledSave = scheduled.remove(player.getUniqueId());
+
+        if(scheduledSave != null)
+        {
+            queue.remove(scheduledSave);
+        }
+    }
+
+    /**
+     * @return Number of players with a scheduled save
+     */
+    public int getScheduledCount()
+    {
+        return queue.size();
+    }
+
+    @Override
+    public void run()
+    {
+        currentTick++;
+
+        int checked = 0;
+        ScheduledSave scheduledSave;
+
+        while(checked < maxPerTick && (scheduledSave = queue.peek()) != null &&
+            scheduledSave.dueTick <= currentTick)
+        {
+            queue.poll();
+
+            Player player = scheduledSave.player;
+
+            // The player quit without being unscheduled (and may have
+            // rejoined with a new session)
+            if(!player.isOnline() || sessions.get(player) != scheduledSave.session)
+            {
+                scheduled.remove(scheduledSave.uuid, scheduledSave);
+                continue;
+            }
+
+            // Checking for changes reads the inventories too, so it counts
+            // towards the limit even if nothing is saved
+            listener.autosave(player);
+            checked++;
+
+            long jitter = (jitterTicks == 0) ? 0 :
+                ThreadLocalRandom.current().nextLong(-jitterTicks, jitterTicks + 1);
+            scheduledSave.dueTick = currentTick + intervalTicks + jitter;
+            queue.add(scheduledSave);
+        }
+    }
+
+    private static class ScheduledSave implements Comparable<ScheduledSave>
+    {
+        private final Player player;
+        private final UUID uuid;
+        private final PlayerSession session;
+        private long dueTick;
+
+        private ScheduledSave(Player player, PlayerSession session, long dueTick)
+        {
+            this.player = player;
+            this.uuid = player.getUniqueId();
+            this.session = session;
+            this.dueTick = dueTick;
+        }
+
+        @Override
+        public int compareTo(ScheduledSave other)
+        {
+            return Long.compare(dueTick, other.dueTick);
+        }
+    }
+}
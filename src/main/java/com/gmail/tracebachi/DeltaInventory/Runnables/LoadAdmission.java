@@ -0,0 +1,263 @@
+/*
+ * This file is part of DeltaInventory.
+ *
+ * DeltaInventory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DeltaInventory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DeltaInventory.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gmail.tracebachi.DeltaInventory.Runnables;
+
+import com.gmail.tracebachi.DeltaInventory.DeltaInventoryPlugin;
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Admission control for player loads. At most a limited number of loads
+ * are handed to the {@link PlayerIoExecutor} at once and the rest wait here,
+ * so a login storm does not saturate the (shared) disk. The limit adapts to
+ * how long loads take: it shrinks while loads are slower than the target
+ * and grows back while they are faster.
+ *
+ * Players arriving from another server are admitted before fresh logins.
+ * Safe to use from any thread (admitted loads complete on the I/O threads).
+ */
+public class LoadAdmission
+{
+    private static final long DECREASE_INTERVAL_NANOS = 1000000000L;
+
+    private final int minConcurrent;
+    private final int maxConcurrent;
+    private final long targetLatencyNanos;
+    private final PlayerIoExecutor ioExecutor;
+    private final DeltaInventoryPlugin plugin;
+
+    // Guarded by this
+    private final PriorityQueue<WaitingLoad> waiting = new PriorityQueue<>();
+    private long sequence;
+    private int inFlight;
+    private double limit;
+    private double averageLatencyNanos;
+    private long lastDecreaseAt;
+
+    /**
+     * @param minConcurrent Lowest the limit of concurrent loads may shrink to
+     * @param maxConcurrent Highest the limit of concurrent loads may grow to
+     * @param targetLatencyMillis Time a load should take at most
+     * @param ioExecutor Executor to hand admitted loads to
+     * @param plugin Plugin to log with
+     */
+    public LoadAdmission(int minConcurrent, int maxConcurrent, long targetLatencyMillis,
+        PlayerIoExecutor ioExecutor, DeltaInventoryPlugin plugin)
+    {
+        Preconditions.checkArgument(minConcurrent > 0, "Minimum must be positive.");
+        Preconditions.checkArgument(maxConcurrent >= minConcurrent, "Maximum must be at least the minimum.");
+        Preconditions.checkNotNull(ioExecutor, "Executor cannot be null.");
+        Preconditions.checkNotNull(plugin, "Plugin cannot be null.");
+
+        this.minConcurrent = minConcurrent;
+        this.maxConcurrent = maxConcurrent;
+        this.targetLatencyNanos = targetLatencyMillis * 1000000;
+        this.ioExecutor = ioExecutor;
+        this.plugin = plugin;
+        this.limit = maxConcurrent;
+    }
+
+    /**
+     * Queues the load of a player. A load that is still waiting for the same
+     * player is replaced.
+     *
+     * @param name Name of the player
+     * @param load Load to run
+     * @param isServerSwitch True if the player arrived from another server
+     */
+    public synchronized void submit(String name, Runnable load, boolean isServerSwitch)
+    {
+        cancel(name);
+        waiting.add(new WaitingLoad(name, load, isServerSwitch, sequence++));
+        admit();
+    }
+
+    /**
+     * Removes the waiting load of the player (such as when they quit before
+     * it was admitted). Loads that were already admitted are not affected.
+     *
+     * @param name Name of the player
+     * @return True if a waiting load was removed
+     */
+    public synchronized boolean cancel(String name)
+    {
+        return waiting.removeIf((waitingLoad) -> waitingLoad.name.equals(name));
+    }
+
+    /**
+     * @param name Name of the player
+     * @return Position (starting at 1) of the player's load in the queue or
+     * 0 if it is not waiting
+     */
+    public synchronized int getPosition(String name)
+    {
+        WaitingLoad target = null;
+
+        for(WaitingLoad waitingLoad : waiting)
+        {
+            if(waitingLoad.name.equals(name))
+            {
+                target = waitingLoad;
+                break;
+            }
+        }
+
+        if(target == null)
+        {
+            return 0;
+        }
+
+        int position = 1;
+
+        for(WaitingLoad waitingLoad : waiting)
+        {
+            if(waitingLoad.compareTo(target) < 0)
+            {
+                position++;
+            }
+        }
+        return position;
+    }
+
+    /**
+     * @param position Position in the queue
+     * @return Estimated time (in ms) until a load at the position completes
+     */
+    public synchronized long estimateWaitMillis(int position)
+    {
+        double latencyNanos = (averageLatencyNanos > 0) ? averageLatencyNanos : targetLatencyNanos;
+        double rounds = Math.ceil(position / Math.max(1.0, Math.floor(limit)));
+        return (long) (rounds * latencyNanos / 1000000.0);
+    }
+
+    /**
+     * @return Names of the players whose loads are waiting
+     */
+    public synchronized List<String> getWaitingNames()
+    {
+        List<String> names = new ArrayList<>(waiting.size());
+
+        for(WaitingLoad waitingLoad : waiting)
+        {
+            names.add(waitingLoad.name);
+        }
+        return names;
+    }
+
+    public synchronized int getWaitingCount()
+    {
+        return waiting.size();
+    }
+
+    public synchronized int getInFlightCount()
+    {
+        return inFlight;
+    }
+
+    public synchronized int getLimit()
+    {
+        return (int) limit;
+    }
+
+    /**
+     * Called when an admitted load finished. Adapts the limit to the time the
+     * load took and admits waiting loads.
+     *
+     * @param latencyNanos Time the load took
+     */
+    private synchronized void onComplete(long latencyNanos)
+    {
+        inFlight--;
+
+        averageLatencyNanos = (averageLatencyNanos == 0) ? latencyNanos :
+            averageLatencyNanos * 0.8 + latencyNanos * 0.2;
+
+        long currentTime = System.nanoTime();
+
+        if(averageLatencyNanos > targetLatencyNanos)
+        {
+            // Back off at most once per interval so one burst does not
+            // collapse the limit to the minimum
+            if(currentTime - lastDecreaseAt >= DECREASE_INTERVAL_NANOS)
+            {
+                limit = Math.max(minConcurrent, limit * 0.75);
+                lastDecreaseAt = currentTime;
+                plugin.debug("Load latency above target. Limiting concurrent loads to " + (int) limit);
+            }
+        }
+        else
+        {
+            // Grows by about one for every limit loads that complete in time
+            limit = Math.min(maxConcurrent, limit + 1.0 / limit);
+        }
+
+        admit();
+    }
+
+    private void admit()
+    {
+        while(inFlight < (int) limit && !waiting.isEmpty())
+        {
+            WaitingLoad waitingLoad = waiting.poll();
+            inFlight++;
+
+            ioExecutor.execute(() ->
+            {
+                long startTime = System.nanoTime();
+
+                try
+                {
+                    waitingLoad.load.run();
+                }
+                finally
+                {
+                    onComplete(System.nanoTime() - startTime);
+                }
+            }, waitingLoad.isServerSwitch ?
+                PlayerIoExecutor.Priority.SWITCH_LOAD : PlayerIoExecutor.Priority.LOGIN_LOAD);
+        }
+    }
+
+    private static class WaitingLoad implements Comparable<WaitingLoad>
+    {
+        private final String name;
+        private final Runnable load;
+        private final boolean isServerSwitch;
+        private final long sequence;
+
+        private WaitingLoad(String name, Runnable load, boolean isServerSwitch, long sequence)
+        {
+            this.name = name;
+            this.load = load;
+            this.isServerSwitch = isServerSwitch;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(WaitingLoad other)
+        {
+            if(isServerSwitch != other.isServerSwitch)
+            {
+                return isServerSwitch ? -1 : 1;
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * This file is part of DeltaInventory.
+ *
+ * DeltaInventory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DeltaInventory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DeltaInventory.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gmail.tracebachi.DeltaInventory.Runnables;
+
+import com.gmail.tracebachi.DeltaInventory.DeltaInventoryPlugin;
+import com.gmail.tracebachi.DeltaInventory.Stats.PluginStats;
+import com.google.common.base.Preconditions;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Queue of work that has to run on the main thread (applying loaded player
+ * data) which is drained once per tick, oldest first, until the tick budget
+ * is used up. When hundreds of loads complete at once (such as after a
+ * proxy restart), they are spread over several ticks instead of all
+ * running in one.
+ */
+public class MainThreadApplyQueue implements Runnable
+{
+    private final long budgetNanos;
+    private final DeltaInventoryPlugin plugin;
+    private final PluginStats stats;
+    private final ConcurrentLinkedQueue<QueuedApply> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicInteger maxSize = new AtomicInteger();
+    private BukkitTask task;
+
+    /**
+     * @param budgetNanos Time per tick spent running queued work (at least
+     *                    one runnable is run every tick)
+     * @param plugin Plugin to schedule the drain task for
+     */
+    public MainThreadApplyQueue(long budgetNanos, DeltaInventoryPlugin plugin)
+    {
+        Preconditions.checkArgument(budgetNanos > 0, "Budget must be positive.");
+        Preconditions.checkNotNull(plugin, "Plugin cannot be null.");
+
+        this.budgetNanos = budgetNanos;
+        this.plugin = plugin;
+        this.stats = plugin.getStats();
+    }
+
+    public void start()
+    {
+        task = plugin.getServer().getScheduler().runTaskTimer(plugin, this, 1, 1);
+        stats.setGauge("Apply queue length", size::get);
+        stats.setGauge("Apply queue max length", maxSize::get);
+    }
+
+    /**
+     * Stops draining every tick and runs everything still queued, so no
+     * loaded data is lost on shutdown. Must be called on the main thread.
+     */
+    public void shutdown()
+    {
+        if(task != null)
+        {
+            task.cancel();
+            task = null;
+        }
+
+        drain(Long.MAX_VALUE);
+        stats.removeGauge("Apply queue length");
+        stats.removeGauge("Apply queue max length");
+    }
+
+    /**
+     * Queues the runnable to run on the main thread. May be called from any
+     * thread.
+     *
+     * @param runnable Runnable to run
+     */
+    public void submit(Runnable runnable)
+    {
+        queue.add(new QueuedApply(runnable));
+        maxSize.accumulateAndGet(size.incrementAndGet(), Math::max);
+    }
+
+    public int getSize()
+    {
+        return size.get();
+    }
+
+    @Override
+    public void run()
+    {
+        drain(budgetNanos);
+    }
+
+    private void drain(long budget)
+    {
+        long startTime = System.nanoTime();
+        QueuedApply queuedApply;
+
+        while((queuedApply = queue.poll()) != null)
+        {
+            size.decrementAndGet();
+            stats.record(PluginStats.Timer.APPLY_QUEUE_WAIT, System.nanoTime() - queuedApply.queuedAt);
+
+            try
+            {
+                queuedApply.runnable.run();
+            }
+            catch(Exception ex)
+            {
+                ex.printStackTrace();
+            }
+
+            if(System.nanoTime() - startTime >= budget)
+            {
+                break;
+            }
+        }
+    }
+
+    private static class QueuedApply
+    {
+        private final Runnable runnable;
+        private final long queuedAt = System.nanoTime();
+
+        private QueuedApply(Runnable runnable)
+        {
+            this.runnable = runnable;
+        }
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * This file is part of DeltaInventory.
+ *
+ * DeltaInventory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DeltaInventory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DeltaInventory.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gmail.tracebachi.DeltaInventory.Runnables;
+
+import com.gmail.tracebachi.DeltaInventory.DeltaInventoryPlugin;
+import com.gmail.tracebachi.DeltaInventory.Stats.PluginStats;
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of worker threads for player loads and saves. Queued work is
+ * run by priority (server switch saves, then loads of players arriving from
+ * another server, then login loads, then quit saves, then speculative
+ * prefetches, then autosaves) and in submission order within the same
+ * priority.
+ *
+ * Once the queue limit is reached, prefetches and autosaves are rejected
+ * (they are retried or done some other way). Loads and other saves are
+ * always queued, since the queue only holds one save per player and the
+ * loads admitted by {@link LoadAdmission}.
+ */
+public class PlayerIoExecutor
+{
+    public enum Priority
+    {
+        SERVER_SWITCH_SAVE,
+        SWITCH_LOAD,
+        LOGIN_LOAD,
+        QUIT_SAVE,
+        PREFETCH_LOAD,
+        AUTOSAVE;
+
+        public boolean isSave()
+        {
+            return this == SERVER_SWITCH_SAVE || this == QUIT_SAVE || this == AUTOSAVE;
+        }
+
+        /**
+         * @return True if the work may be rejected when the queue is full
+         */
+        public boolean isOptional()
+        {
+            return this == PREFETCH_LOAD || this == AUTOSAVE;
+        }
+    }
+
+    private final int queueLimit;
+    private final DeltaInventoryPlugin plugin;
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicInteger[] queued = new AtomicInteger[Priority.values().length];
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public PlayerIoExecutor(int workers, int queueLimit, DeltaInventoryPlugin plugin)
+    {
+        Preconditions.checkArgument(workers > 0, "Workers must be positive.");
+        Preconditions.checkArgument(queueLimit > 0, "Queue limit must be positive.");
+        Preconditions.checkNotNull(plugin, "Plugin cannot be null.");
+
+        this.queueLimit = queueLimit;
+        this.plugin = plugin;
+
+        for(int i = 0; i < queued.length; ++i)
+        {
+            queued[i] = new AtomicInteger();
+        }
+
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadFactory threadFactory = (runnable) ->
+        {
+            Thread thread = new Thread(runnable, "DeltaInventory-IO-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+
+        this.executor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+            new PriorityBlockingQueue<>(64), threadFactory);
+    }
+
+    /**
+     * Queues the runnable with the priority.
+     *
+     * @param runnable Runnable to run
+     * @param priority Priority of the runnable
+     * @return True if queued, false if rejected because the queue limit was
+     * reached (only for optional priorities) or the executor is shut down
+     */
+    public boolean execute(Runnable runnable, Priority priority)
+    {
+        if(priority.isOptional() && getQueueDepth() >= queueLimit)
+        {
+            rejected.incrementAndGet();
+            plugin.debug("I/O queue is full. Rejected a " + priority + " task.");
+            return false;
+        }
+
+        queued[priority.ordinal()].incrementAndGet();
+
+        try
+        {
+            executor.execute(new PrioritizedTask(runnable, priority, sequence.getAndIncrement()));
+            return true;
+        }
+        catch(RejectedExecutionException ex)
+        {
+            queued[priority.ordinal()].decrementAndGet();
+            rejected.incrementAndGet();
+            plugin.severe("Rejected a " + priority + " task after the I/O executor was shut down.");
+            return false;
+        }
+    }
+
+    /**
+     * Stops accepting work and waits for queued work to finish. Work that
+     * has not finished in time is interrupted (and work that has not started
+     * is dropped), after which the workers are given up to interruptGrace
+     * to stop. Check {@link #isTerminated()} before closing anything the
+     * work may still be using.
+     *
+     * @param timeoutMillis Maximum time to wait
+     * @param interruptGraceMillis Maximum time to wait for interrupted work
+     * @return True if all queued work finished in time
+     */
+    public boolean shutdown(long timeoutMillis, long interruptGraceMillis)
+    {
+        executor.shutdown();
+
+        try
+        {
+            if(executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS))
+            {
+                return true;
+            }
+
+            int dropped = executor.shutdownNow().size();
+            plugin.severe("Interrupted running I/O tasks and dropped " + dropped + " queued tasks.");
+            executor.awaitTermination(interruptGraceMillis, TimeUnit.MILLISECONDS);
+        }
+        catch(InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    /**
+     * @return True if every worker stopped after {@link #shutdown(long, long)}
+     */
+    public boolean isTerminated()
+    {
+        return executor.isTerminated();
+    }
+
+    public int getQueueDepth()
+    {
+        int total = 0;
+
+        for(AtomicInteger count : queued)
+        {
+            total += count.get();
+        }
+
+        return total;
+    }
+
+    public int getQueueDepth(Priority priority)
+    {
+        return queued[priority.ordinal()].get();
+    }
+
+    public int getActiveCount()
+    {
+        return executor.getActiveCount();
+    }
+
+    public long getCompletedCount()
+    {
+        return completed.get();
+    }
+
+    public long getRejectedCount()
+    {
+        return rejected.get();
+    }
+
+    public double getAverageWaitMillis()
+    {
+        long count = completed.get();
+        return (count == 0) ? 0.0 : (totalWaitNanos.get() / (double) count) / 1000000.0;
+    }
+
+    public double getMaxWaitMillis()
+    {
+        return maxWaitNanos.get() / 1000000.0;
+    }
+
+    private class PrioritizedTask implements Runnable, Comparable<PrioritizedTask>
+    {
+        private final Runnable runnable;
+        private final Priority priority;
+        private final long sequence;
+        private final long queuedAt = System.nanoTime();
+
+        private PrioritizedTask(Runnable runnable, Priority priority, long sequence)
+        {
+            this.runnable = runnable;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void run()
+        {
+            long waitNanos = System.nanoTime() - queuedAt;
+
+            queued[priority.ordinal()].decrementAndGet();
+            totalWaitNanos.addAndGet(waitNanos);
+            maxWaitNanos.accumulateAndGet(waitNanos, Math::max);
+            plugin.getStats().record(priority.isSave() ?
+                PluginStats.Timer.SAVE_QUEUE_WAIT : PluginStats.Timer.LOAD_QUEUE_WAIT, waitNanos);
+
+            try
+            {
+                runnable.run();
+            }
+            catch(Exception ex)
+            {
+                ex.printStackTrace();
+            }
+            finally
+            {
+                completed.incrementAndGet();
+            }
+        }
+
+        @Override
+        public int compareTo(PrioritizedTask other)
+        {
+            int result = priority.compareTo(other.priority);
+            return (result != 0) ? result : Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -17,31 +17,21 @@
 package com.gmail.tracebachi.DeltaInventory.Runnables;
 
 import com.gmail.tracebachi.DeltaInventory.DeltaInventoryPlugin;
+import com.gmail.tracebachi.DeltaInventory.Listeners.HandoffListener;
 import com.gmail.tracebachi.DeltaInventory.Listeners.PlayerListener;
 import com.gmail.tracebachi.DeltaInventory.Storage.IPlayerEntry;
-import com.gmail.tracebachi.DeltaInventory.Storage.PlayerEntry;
-import com.gmail.tracebachi.DeltaInventory.Storage.SavedInventory;
-import com.gmail.tracebachi.DeltaInventory.Utils.InventoryUtils;
-import com.gmail.tracebachi.DeltaInventory.Utils.PotionEffectUtils;
+import com.gmail.tracebachi.DeltaInventory.Storage.PlayerDataCodec;
+import com.gmail.tracebachi.DeltaInventory.Storage.PlayerDataFormat;
+import com.gmail.tracebachi.DeltaInventory.Storage.PrefetchCache;
+import com.gmail.tracebachi.DeltaInventory.Storage.PlayerStorage;
+import com.gmail.tracebachi.DeltaInventory.Storage.SaveJournal;
+import com.gmail.tracebachi.DeltaInventory.Storage.StoredPlayerData;
+import com.gmail.tracebachi.DeltaInventory.Stats.PluginStats;
 import com.google.common.base.Preconditions;
-import org.bukkit.Bukkit;
-import org.bukkit.GameMode;
-import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.configuration.InvalidConfigurationException;
-import org.bukkit.configuration.file.YamlConfiguration;
-import org.bukkit.inventory.ItemStack;
-import org.bukkit.potion.PotionEffect;
 
-import java.io.File;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
-import java.nio.channels.FileLock;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
-import java.util.List;
+import java.util.Objects;
 
 /**
  * Created by Trace Bachi (tracebachi@gmail.com, BigBossZee) on 12/12/15.
@@ -50,7 +40,9 @@ public class PlayerLoad implements Runnable
 {
     private final boolean isRunningSync;
     private final String name;
-    private final String playerDataFolder;
+    private final PlayerStorage storage;
+    private final PlayerDataCodec codec;
+    private final PluginStats stats;
     private final PlayerListener listener;
     private final DeltaInventoryPlugin plugin;
 
@@ -67,7 +59,9 @@ public class PlayerLoad implements Runnable
         Preconditions.checkNotNull(plugin, "Plugin cannot be null.");
 
         this.name = name.toLowerCase();
-        this.playerDataFolder = plugin.getPlayerDataFolder();
+        this.storage = plugin.getPlayerStorage();
+        this.codec = plugin.getPlayerDataCodec();
+        this.stats = plugin.getStats();
         this.listener = listener;
         this.plugin = plugin;
         this.isRunningSync = isRunningSync;
@@ -76,74 +70,162 @@ public class PlayerLoad implements Runnable
     @Override
     public void run()
     {
-        Path path = Paths.get(playerDataFolder + File.separator +
-            name.charAt(0) + File.separator + name + ".yml");
+        Result result = null;
+        PrefetchCache prefetchCache = listener.getPrefetchCache();
+        HandoffListener handoffListener = plugin.getHandoffListener();
+        HandoffListener.Handoff handoff = null;
 
-        if(!path.toFile().exists())
+        // Loads of announced switches are only started once the data arrived
+        // (or did not in time), see HandoffListener.runWhenArrived
+        if(handoffListener != null)
         {
-            onNotFoundFailure();
-            return;
+            handoff = handoffListener.take(name);
         }
 
-        String fileContents = readFileWithLock(path);
-        if(fileContents == null)
+        // Use a prefetched result if nothing was written since it was read.
+        // Saves announced by any server already discarded outdated results.
+        if(prefetchCache != null)
         {
-            onLoadFailure();
-            return;
+            result = prefetchCache.take(name);
+
+            if(result != null && !isCurrent(result))
+            {
+                plugin.debug("Discarding outdated prefetch for {name:" + name + "}");
+                result = null;
+            }
         }
 
-        IPlayerEntry entry;
-        YamlConfiguration configuration = new YamlConfiguration();
-        try
+        // Data handed off by the previous server was stored before it was
+        // sent, so it is at least as new as anything on disk
+        if(handoff != null)
+        {
+            try
+            {
+                IPlayerEntry entry = decode(handoff.getData(), handoff.getFormat());
+                result = new Result(entry, null, null);
+                plugin.debug("Using handed off inventory for {name:" + name + "}");
+            }
+            catch(InvalidConfigurationException | IOException | IllegalArgumentException e)
+            {
+                e.printStackTrace();
+            }
+        }
+
+        if(result == null)
         {
-            configuration.loadFromString(fileContents);
-            entry = readPlayerDataYaml(configuration);
-            onSuccess(entry);
+            result = load();
         }
-        catch(InvalidConfigurationException e)
+
+        if(result == null)
         {
-            e.printStackTrace();
             onLoadFailure();
         }
+        else if(!result.isFound())
+        {
+            onNotFoundFailure();
+        }
+        else
+        {
+            onSuccess(result.getEntry());
+        }
     }
 
-    private IPlayerEntry readPlayerDataYaml(YamlConfiguration configuration)
+    /**
+     * Reads and decodes the player data without calling back the listener.
+     *
+     * @return Result of the load or null if the data could not be read
+     */
+    public Result load()
     {
-        ItemStack[] itemStacks;
-        ConfigurationSection section;
-        SavedInventory savedInventory;
-        List<PotionEffect> effects;
-        PlayerEntry entry = new PlayerEntry(name);
+        // Saves still in the journal are newer than the stored data
+        SaveJournal.JournalEntry journalEntry = getJournalEntry();
+        PlayerDataFormat foundFormat;
+        byte[] data;
+        Object version = null;
 
-        entry.setHealth(configuration.getDouble("Health", 20.0));
-        entry.setFoodLevel(configuration.getInt("Hunger", 20));
-        entry.setXpLevel(configuration.getInt("XpLevel", 0));
-        entry.setXpProgress(configuration.getDouble("XpProgress", 0.0));
-        entry.setGameMode(GameMode.valueOf(configuration.getString("Gamemode", "SURVIVAL")));
+        if(journalEntry != null)
+        {
+            data = journalEntry.getData();
+            foundFormat = journalEntry.getFormat();
+        }
+        else
+        {
+            StoredPlayerData stored;
+            long startTime = System.nanoTime();
 
-        effects = PotionEffectUtils.toEffectList(configuration.getStringList("Effects"));
-        entry.setPotionEffects(effects);
+            try
+            {
+                stored = storage.read(name);
+            }
+            catch(IOException e)
+            {
+                e.printStackTrace();
+                return null;
+            }
+            finally
+            {
+                stats.record(PluginStats.Timer.LOAD_READ, System.nanoTime() - startTime);
+            }
 
-        section = configuration.getConfigurationSection("Survival");
-        savedInventory = InventoryUtils.toSavedInventory(section);
-        entry.setSurvival(savedInventory);
+            if(stored == null)
+            {
+                return new Result(null, null, null);
+            }
 
-        section = configuration.getConfigurationSection("Creative");
-        savedInventory = InventoryUtils.toSavedInventory(section);
-        entry.setCreative(savedInventory);
+            data = stored.getData();
+            foundFormat = stored.getFormat();
+            version = stored.getVersion();
+        }
 
-        section = configuration.getConfigurationSection("EnderChest");
-        itemStacks = InventoryUtils.toItemStacks(section, 27);
-        entry.setEnderChest(itemStacks);
+        try
+        {
+            IPlayerEntry entry = decode(data, foundFormat);
+            return new Result(entry, journalEntry, version);
+        }
+        catch(InvalidConfigurationException | IOException | IllegalArgumentException e)
+        {
+            e.printStackTrace();
+            return null;
+        }
+    }
 
-        // TODO Meta section?
+    private IPlayerEntry decode(byte[] data, PlayerDataFormat foundFormat)
+        throws IOException, InvalidConfigurationException
+    {
+        long startTime = System.nanoTime();
 
-        return entry;
+        try
+        {
+            return codec.decode(name, data, foundFormat);
+        }
+        finally
+        {
+            stats.record(PluginStats.Timer.LOAD_DECODE, System.nanoTime() - startTime);
+        }
+    }
+
+    private boolean isCurrent(Result result)
+    {
+        SaveJournal.JournalEntry journalEntry = getJournalEntry();
+
+        if(journalEntry != null || result.journalEntry != null)
+        {
+            return journalEntry == result.journalEntry;
+        }
+
+        return Objects.equals(storage.getVersion(name), result.version);
+    }
+
+    private SaveJournal.JournalEntry getJournalEntry()
+    {
+        SaveJournal journal = plugin.getSaveJournal();
+        return (journal != null) ? journal.getUncompacted(name) : null;
     }
 
     private void onSuccess(IPlayerEntry entry)
     {
         plugin.debug("Loaded inventory for {name:" + entry.getName() + "}");
+        stats.increment(PluginStats.Counter.LOADS);
 
         if(isRunningSync)
         {
@@ -151,14 +233,14 @@ public class PlayerLoad implements Runnable
         }
         else
         {
-            Bukkit.getScheduler().runTask(plugin,
-                () -> listener.onInventoryLoaded(entry));
+            submitToMainThread(() -> listener.onInventoryLoaded(entry));
         }
     }
 
     private void onLoadFailure()
     {
         plugin.debug("Inventory could not be loaded for {name:" + name + "}");
+        stats.increment(PluginStats.Counter.LOAD_FAILURES);
 
         if(isRunningSync)
         {
@@ -166,14 +248,14 @@ public class PlayerLoad implements Runnable
         }
         else
         {
-            Bukkit.getScheduler().runTask(plugin,
-                () -> listener.onInventoryLoadFailure(name));
+            submitToMainThread(() -> listener.onInventoryLoadFailure(name));
         }
     }
 
     private void onNotFoundFailure()
     {
         plugin.debug("No inventory found for {name:" + name + "}");
+        stats.increment(PluginStats.Counter.LOADS_NOT_FOUND);
 
         if(isRunningSync)
         {
@@ -181,49 +263,54 @@ public class PlayerLoad implements Runnable
         }
         else
         {
-            Bukkit.getScheduler().runTask(plugin,
-                () -> listener.onInventoryNotFound(name));
+            submitToMainThread(() -> listener.onInventoryNotFound(name));
         }
     }
 
-    private String readFileWithLock(Path path)
+    private void submitToMainThread(Runnable runnable)
     {
-        FileLock lock = null;
+        MainThreadApplyQueue applyQueue = plugin.getApplyQueue();
 
-        try
+        // Applied in order with other completed loads under the tick budget
+        if(plugin.isEnabled() && applyQueue != null)
         {
-            FileChannel fileChannel = FileChannel.open(path,
-                StandardOpenOption.READ, StandardOpenOption.WRITE);
-
-            // Lock the file
-            lock = fileChannel.lock();
+            applyQueue.submit(runnable);
+        }
+    }
 
-            ByteBuffer buffer = ByteBuffer.allocate((int) fileChannel.size());
-            fileChannel.read(buffer);
+    /**
+     * Decoded entry (or the lack of one) along with what it was read from,
+     * so a result that was read ahead of time can be checked before use.
+     */
+    public static class Result
+    {
+        private final IPlayerEntry entry;
+        private final SaveJournal.JournalEntry journalEntry;
+        private final Object version;
 
-            // Unlock the file
-            lock.release();
+        private Result(IPlayerEntry entry, SaveJournal.JournalEntry journalEntry, Object version)
+        {
+            this.entry = entry;
+            this.journalEntry = journalEntry;
+            this.version = version;
+        }
 
-            return new String(buffer.array(), StandardCharsets.UTF_16);
+        public boolean isFound()
+        {
+            return entry != null;
         }
-        catch(IOException ex)
+
+        public IPlayerEntry getEntry()
         {
-            ex.printStackTrace();
+            return entry;
         }
-        finally
+
+        /**
+         * @return Revision of the entry or -1 if no data was found
+         */
+        public long getRevision()
         {
-            if(lock != null)
-            {
-                try
-                {
-                    lock.release();
-                }
-                catch(IOException ex)
-                {
-                    ex.printStackTrace();
-                }
-            }
+            return (entry != null) ? entry.getRevision() : -1;
         }
-        return null;
     }
 }
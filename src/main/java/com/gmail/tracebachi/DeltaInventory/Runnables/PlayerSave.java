@@ -17,22 +17,21 @@
 package com.gmail.tracebachi.DeltaInventory.Runnables;
 
 import com.gmail.tracebachi.DeltaInventory.DeltaInventoryPlugin;
+import com.gmail.tracebachi.DeltaInventory.Listeners.HandoffListener;
 import com.gmail.tracebachi.DeltaInventory.Listeners.PlayerListener;
+import com.gmail.tracebachi.DeltaInventory.Listeners.SaveBroadcastListener;
 import com.gmail.tracebachi.DeltaInventory.Storage.IPlayerEntry;
-import com.gmail.tracebachi.DeltaInventory.Utils.InventoryUtils;
-import com.gmail.tracebachi.DeltaInventory.Utils.PotionEffectUtils;
+import com.gmail.tracebachi.DeltaInventory.Storage.ItemIndex;
+import com.gmail.tracebachi.DeltaInventory.Storage.PlayerDataCodec;
+import com.gmail.tracebachi.DeltaInventory.Storage.PlayerDataFormat;
+import com.gmail.tracebachi.DeltaInventory.Storage.PlayerStorage;
+import com.gmail.tracebachi.DeltaInventory.Storage.SaveJournal;
+import com.gmail.tracebachi.DeltaInventory.Stats.PluginStats;
 import com.google.common.base.Preconditions;
-import org.bukkit.configuration.file.YamlConfiguration;
 
-import java.io.File;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
-import java.nio.channels.FileLock;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by Trace Bachi (tracebachi@gmail.com, BigBossZee) on 12/12/15.
@@ -40,10 +39,26 @@ import java.nio.file.StandardOpenOption;
 public class PlayerSave implements Runnable
 {
     private final boolean isRunningSync;
-    private final String playerDataFolder;
-    private final IPlayerEntry entry;
+    private final PlayerStorage storage;
+    private final PlayerDataFormat format;
+    private final PlayerDataCodec codec;
+    private final PluginStats stats;
     private final PlayerListener listener;
     private final DeltaInventoryPlugin plugin;
+    private final CountDownLatch completed = new CountDownLatch(1);
+    private volatile boolean isSaved;
+
+    // Guarded by this until the save is started
+    private boolean isStarted;
+    private boolean isCancelled;
+    private PlayerIoExecutor.Priority priority;
+    private String destination;
+    private int requestCount;
+    private IPlayerEntry entry;
+    private PlayerSave previous;
+
+    // Guarded by this until the save is completed
+    private PlayerSave next;
 
     public PlayerSave(IPlayerEntry entry, PlayerListener listener, DeltaInventoryPlugin plugin)
     {
@@ -51,161 +66,425 @@ public class PlayerSave implements Runnable
     }
 
     public PlayerSave(IPlayerEntry entry, PlayerListener listener, DeltaInventoryPlugin plugin, boolean isRunningSync)
+    {
+        this(entry, listener, plugin, isRunningSync, null);
+    }
+
+    public PlayerSave(IPlayerEntry entry, PlayerListener listener, DeltaInventoryPlugin plugin,
+        boolean isRunningSync, String destination)
+    {
+        this(entry, listener, plugin, isRunningSync, destination, false);
+    }
+
+    /**
+     * @param isAutosave True if the save was not requested by a quit, server
+     *                   switch or shutdown. Autosaves do not run the save
+     *                   callbacks unless such a save is merged into them.
+     */
+    public PlayerSave(IPlayerEntry entry, PlayerListener listener, DeltaInventoryPlugin plugin,
+        boolean isRunningSync, String destination, boolean isAutosave)
     {
         Preconditions.checkNotNull(entry, "Entry cannot be null.");
         Preconditions.checkNotNull(listener, "Listener cannot be null.");
         Preconditions.checkNotNull(plugin, "Plugin cannot be null.");
 
         this.entry = entry;
-        this.playerDataFolder = plugin.getPlayerDataFolder();
+        this.storage = plugin.getPlayerStorage();
+        this.format = plugin.getPlayerDataFormat();
+        this.codec = plugin.getPlayerDataCodec();
+        this.stats = plugin.getStats();
         this.listener = listener;
         this.plugin = plugin;
         this.isRunningSync = isRunningSync;
+        this.destination = destination;
+        this.requestCount = isAutosave ? 0 : 1;
     }
 
-    @Override
-    public void run()
+    /**
+     * Queues the save on the I/O executor. The priority is kept so saves of
+     * a higher priority are not merged into it.
+     *
+     * @return True if queued, false if the executor rejected the save
+     */
+    public boolean execute(PlayerIoExecutor executor, PlayerIoExecutor.Priority priority)
     {
-        try
+        Preconditions.checkNotNull(executor, "Executor cannot be null.");
+        Preconditions.checkNotNull(priority, "Priority cannot be null.");
+
+        synchronized(this)
         {
-            YamlConfiguration configuration = writePlayerDataYaml();
-            String source = configuration.saveToString();
+            this.priority = priority;
+        }
+        return executor.execute(this, priority);
+    }
 
-            Path path = Paths.get(playerDataFolder + File.separator +
-                entry.getName().charAt(0) + File.separator + entry.getName() + ".yml");
+    /**
+     * Replaces the entry of a save that has not started yet with a newer
+     * one so only the newest entry is written. The callbacks still run once
+     * for every merged save request.
+     *
+     * @param newerEntry Newer entry of the same player
+     * @param destination Server the player is switching to or null if the
+     *                    newer save is not for a server switch
+     * @return True if merged, false if the save has already started
+     */
+    public boolean merge(IPlayerEntry newerEntry, String destination)
+    {
+        return merge(newerEntry, destination, null);
+    }
 
-            if(writeFileWithLock(source, path))
-            {
-                onSuccess();
-            }
-            else
-            {
-                onFailure();
-            }
+    /**
+     * Same as {@link #merge(IPlayerEntry, String)}, but a newer save that
+     * has to run sooner than this save was queued for is not merged, since
+     * it would wait behind saves it should overtake. Such a save should
+     * {@link #takeOver(PlayerSave)} this one instead.
+     *
+     * @param priority Priority of the newer save or null to merge into a
+     *                 save of any priority
+     * @return True if merged, false if the save has already started or was
+     * queued with a lower priority
+     */
+    public synchronized boolean merge(IPlayerEntry newerEntry, String destination,
+        PlayerIoExecutor.Priority priority)
+    {
+        Preconditions.checkNotNull(newerEntry, "Entry cannot be null.");
+        Preconditions.checkArgument(newerEntry.getName().equals(entry.getName()),
+            "Entry must belong to the same player.");
+
+        if(isStarted)
+        {
+            return false;
         }
-        catch(NullPointerException e)
+
+        if(priority != null && this.priority != null && priority.compareTo(this.priority) < 0)
         {
-            e.printStackTrace();
-            onFailure();
+            return false;
         }
+
+        this.entry = newerEntry;
+        this.destination = (destination != null) ? destination : this.destination;
+        this.requestCount++;
+        return true;
     }
 
-    private YamlConfiguration writePlayerDataYaml()
+    /**
+     * Cancels an older save of the same player that has not started yet and
+     * moves its save requests (and destination) into this save, so they
+     * complete when this newer entry is written. The cancelled save does
+     * nothing once the executor gets to it.
+     *
+     * @param older Queued save of the same player
+     * @return True if taken over, false if the older save already started
+     */
+    public boolean takeOver(PlayerSave older)
     {
-        YamlConfiguration serialized;
-        YamlConfiguration configuration = new YamlConfiguration();
+        Preconditions.checkNotNull(older, "Save cannot be null.");
+        Preconditions.checkArgument(older != this, "Save cannot take over itself.");
 
-        configuration.set("LastSave", System.currentTimeMillis());
+        int olderRequestCount;
+        String olderDestination;
+        PlayerSave olderPrevious;
 
-        configuration.set("Health", entry.getHealth());
-        configuration.set("Hunger", entry.getFoodLevel());
-        configuration.set("XpLevel", entry.getXpLevel());
-        configuration.set("XpProgress", entry.getXpProgress());
-        configuration.set("Gamemode", entry.getGameMode().toString());
-        configuration.set("Effects", PotionEffectUtils.toStringList(entry.getPotionEffects()));
+        synchronized(older)
+        {
+            if(older.isStarted)
+            {
+                return false;
+            }
 
-        serialized = InventoryUtils.toYamlSection(entry.getSurvival().getArmor());
-        configuration.set("Survival.Armor", serialized);
+            Preconditions.checkArgument(older.entry.getName().equals(entry.getName()),
+                "Save must belong to the same player.");
 
-        serialized = InventoryUtils.toYamlSection(entry.getSurvival().getContents());
-        configuration.set("Survival.Contents", serialized);
+            older.isStarted = true;
+            older.isCancelled = true;
+            olderRequestCount = older.requestCount;
+            olderDestination = older.destination;
+            olderPrevious = older.previous;
+            older.requestCount = 0;
+            older.previous = null;
+            older.completed.countDown();
+        }
 
-        serialized = InventoryUtils.toYamlSection(entry.getCreative().getArmor());
-        configuration.set("Creative.Armor", serialized);
+        synchronized(this)
+        {
+            this.requestCount += olderRequestCount;
+            this.destination = (destination != null) ? destination : olderDestination;
+
+            // The save the older one was waiting for must still finish first
+            this.previous = (olderPrevious != null && !olderPrevious.isCompleted()) ? olderPrevious : null;
+        }
+        return true;
+    }
 
-        serialized = InventoryUtils.toYamlSection(entry.getCreative().getContents());
-        configuration.set("Creative.Contents", serialized);
+    /**
+     * Makes this save run after an earlier save of the same player that has
+     * already started, so the older entry cannot be written last. Instead of
+     * waiting for it on a worker, this save is run by the earlier save once
+     * it completes.
+     *
+     * @param previous Started save of the same player or null
+     */
+    public synchronized void setPrevious(PlayerSave previous)
+    {
+        this.previous = (previous != null && !previous.isCompleted()) ? previous : null;
+    }
 
-        serialized = InventoryUtils.toYamlSection(entry.getEnderChest());
-        configuration.set("EnderChest", serialized);
+    public synchronized boolean isStarted()
+    {
+        return isStarted;
+    }
 
-        // TODO Meta section?
+    public synchronized boolean isCancelled()
+    {
+        return isCancelled;
+    }
 
-        return configuration;
+    /**
+     * @return True if the save finished and the entry was written
+     */
+    public boolean isSaved()
+    {
+        return isSaved;
     }
 
-    private void onSuccess()
+    public boolean isCompleted()
     {
-        plugin.debug("Saved inventory for {name:" + entry.getName() + "}");
+        return completed.getCount() == 0;
+    }
 
-        if(isRunningSync)
+    /**
+     * Waits for the save to finish (successfully or not).
+     *
+     * @param timeoutMillis Maximum time to wait
+     * @return True if the save finished in time
+     */
+    public boolean awaitCompletion(long timeoutMillis)
+    {
+        try
         {
-            listener.onInventorySaved(entry.getName());
+            return completed.await(timeoutMillis, TimeUnit.MILLISECONDS);
         }
-        else
+        catch(InterruptedException ex)
         {
-            plugin.getServer().getScheduler().runTask(plugin,
-                () -> listener.onInventorySaved(entry.getName()));
+            Thread.currentThread().interrupt();
+            return false;
         }
     }
 
-    private void onFailure()
+    @Override
+    public void run()
     {
-        plugin.debug("Failed to save inventory for {name:" + entry.getName() + "}");
+        PlayerSave previous;
 
-        if(isRunningSync)
+        synchronized(this)
         {
-            listener.onInventorySaveFailure(entry.getName());
+            // Taken over by a save of a higher priority
+            if(isCancelled)
+            {
+                return;
+            }
+
+            isStarted = true;
+            previous = this.previous;
+            this.previous = null;
         }
-        else
+
+        // Run again by the earlier save once it completes
+        if(previous != null && previous.runAfter(this))
         {
-            plugin.getServer().getScheduler().runTask(plugin,
-                () -> listener.onInventorySaveFailure(entry.getName()));
+            return;
         }
-    }
 
-    private boolean writeFileWithLock(String source, Path path)
-    {
-        FileLock lock = null;
+        if(requestCount > 1)
+        {
+            plugin.debug("Coalesced " + requestCount + " saves for {name:" + entry.getName() + "}");
+        }
+
+        boolean isWritten = false;
 
         try
         {
-            File file = path.toFile();
-            File directory = file.getParentFile();
+            long startTime = System.nanoTime();
+            byte[] source = codec.encode(entry);
+            stats.record(PluginStats.Timer.SAVE_ENCODE, System.nanoTime() - startTime);
 
-            if(directory != null && !directory.exists() && !directory.mkdirs())
+            HandoffListener handoffListener = plugin.getHandoffListener();
+
+            // The switch only completes once the data is stored, so neither a
+            // late handoff nor a slow write can replace newer data
+            isWritten = writeToStorage(source);
+
+            // The destination applies the handed off data from memory instead
+            // of reading back the player file
+            if(isWritten && destination != null && handoffListener != null)
             {
-                return false;
+                handoffListener.publish(destination, entry.getName(), format, source);
             }
+        }
+        catch(IOException | RuntimeException e)
+        {
+            e.printStackTrace();
+        }
+        finally
+        {
+            complete(isWritten);
+        }
+    }
+
+    /**
+     * @param next Save to run once this save completes
+     * @return True if it will be run, false if this save already completed
+     */
+    private synchronized boolean runAfter(PlayerSave next)
+    {
+        if(isCompleted())
+        {
+            return false;
+        }
+
+        this.next = next;
+        return true;
+    }
+
+    private void complete(boolean isWritten)
+    {
+        PlayerSave next;
 
-            if(!file.exists() && !file.createNewFile())
+        try
+        {
+            if(isWritten)
             {
-                return false;
+                onSuccess();
+            }
+            else
+            {
+                onFailure();
+            }
+        }
+        finally
+        {
+            // Later saves, pending entries and the shutdown wait on this, so
+            // it happens no matter what the callbacks throw
+            synchronized(this)
+            {
+                completed.countDown();
+                next = this.next;
+                this.next = null;
             }
+        }
 
-            FileChannel fileChannel = FileChannel.open(path,
-                StandardOpenOption.READ, StandardOpenOption.WRITE);
-            ByteBuffer buffer = ByteBuffer.wrap(source.getBytes(StandardCharsets.UTF_16));
+        if(next != null)
+        {
+            next.run();
+        }
+    }
 
-            // Lock the file
-            lock = fileChannel.lock();
+    private boolean writeToStorage(byte[] source)
+    {
+        SaveJournal journal = plugin.getSaveJournal();
+        long startTime = System.nanoTime();
+        boolean result;
 
-            // Truncate the file (delete the current contents)
-            fileChannel.truncate(0);
-            fileChannel.write(buffer);
+        if(journal != null)
+        {
+            // Other servers may read the data of players that quit, switch
+            // servers or are kicked by a shutdown right away, so only
+            // autosaves are left for the compactor
+            result = journal.append(entry.getName(), format, source, entry.getRevision(),
+                requestCount > 0);
+        }
+        else
+        {
+            // Players that quit are likely to rejoin soon, unlike players
+            // switching servers
+            result = storage.write(entry.getName(), format, source, false, destination == null);
+        }
 
-            // Unlock the file
-            lock.release();
-            return true;
+        stats.record(PluginStats.Timer.SAVE_WRITE, System.nanoTime() - startTime);
+        return result;
+    }
+
+    private void onSuccess()
+    {
+        plugin.debug("Saved inventory for {name:" + entry.getName() + "}");
+        stats.increment(PluginStats.Counter.SAVES);
+        isSaved = true;
+
+        ItemIndex itemIndex = plugin.getItemIndex();
+
+        if(itemIndex != null)
+        {
+            itemIndex.update(entry, System.currentTimeMillis());
+        }
+
+        SaveBroadcastListener saveBroadcastListener = plugin.getSaveBroadcastListener();
+
+        if(saveBroadcastListener != null)
+        {
+            saveBroadcastListener.publish(entry.getName(), entry.getRevision());
         }
-        catch(IOException ex)
+
+        if(requestCount == 0)
         {
-            ex.printStackTrace();
+            onAutosaveCompleted(true);
         }
-        finally
+        else if(isRunningSync)
         {
-            if(lock != null)
+            for(int i = 0; i < requestCount; ++i)
             {
-                try
+                listener.onInventorySaved(entry.getName());
+            }
+        }
+        else if(plugin.isEnabled())
+        {
+            plugin.getServer().getScheduler().runTask(plugin, () ->
+            {
+                for(int i = 0; i < requestCount; ++i)
                 {
-                    lock.release();
+                    listener.onInventorySaved(entry.getName());
                 }
-                catch(IOException ex)
+            });
+        }
+    }
+
+    private void onFailure()
+    {
+        plugin.debug("Failed to save inventory for {name:" + entry.getName() + "}");
+        stats.increment(PluginStats.Counter.SAVE_FAILURES);
+
+        if(requestCount == 0)
+        {
+            onAutosaveCompleted(false);
+        }
+        else if(isRunningSync)
+        {
+            for(int i = 0; i < requestCount; ++i)
+            {
+                listener.onInventorySaveFailure(entry.getName());
+            }
+        }
+        else if(plugin.isEnabled())
+        {
+            plugin.getServer().getScheduler().runTask(plugin, () ->
+            {
+                for(int i = 0; i < requestCount; ++i)
                 {
-                    ex.printStackTrace();
+                    listener.onInventorySaveFailure(entry.getName());
                 }
-            }
+            });
+        }
+    }
+
+    private void onAutosaveCompleted(boolean isSaved)
+    {
+        if(isRunningSync)
+        {
+            listener.onAutosaveCompleted(entry.getName(), isSaved);
+        }
+        else if(plugin.isEnabled())
+        {
+            plugin.getServer().getScheduler().runTask(plugin, () ->
+                listener.onAutosaveCompleted(entry.getName(), isSaved));
         }
-        return false;
     }
 }
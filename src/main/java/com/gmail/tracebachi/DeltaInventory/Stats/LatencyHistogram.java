@@ -0,0 +1,120 @@
+/*
+ * This file is part of DeltaInventory.
+ *
+ * DeltaInventory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DeltaInventory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DeltaInventory.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gmail.tracebachi.DeltaInventory.Stats;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations with power of two microsecond buckets.
+ * Percentiles are reported as the upper bound of the bucket they fall in,
+ * which is accurate to within a factor of two (plenty to tell a slow disk
+ * from a slow scheduler).
+ */
+public class LatencyHistogram
+{
+    // Bucket i holds durations below 2^i microseconds (the last one is open)
+    private static final int BUCKET_COUNT = 28;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public void record(long nanos)
+    {
+        if(nanos < 0)
+        {
+            nanos = 0;
+        }
+
+        long micros = nanos / 1000;
+        int bucket = 64 - Long.numberOfLeadingZeros(micros);
+
+        buckets.incrementAndGet(Math.min(bucket, BUCKET_COUNT - 1));
+        count.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+        maxNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    public long getCount()
+    {
+        return count.get();
+    }
+
+    public double getMeanMillis()
+    {
+        return getMeanNanos() / 1000000.0;
+    }
+
+    public double getMeanNanos()
+    {
+        long currentCount = count.get();
+        return (currentCount == 0) ? 0.0 : totalNanos.get() / (double) currentCount;
+    }
+
+    public long getMaxNanos()
+    {
+        return maxNanos.get();
+    }
+
+    public double getMaxMillis()
+    {
+        return maxNanos.get() / 1000000.0;
+    }
+
+    /**
+     * @param percentile Percentile between 0 and 100
+     * @return Upper bound (in ms) of the bucket the percentile falls in
+     */
+    public double getPercentileMillis(double percentile)
+    {
+        long currentCount = count.get();
+
+        if(currentCount == 0)
+        {
+            return 0.0;
+        }
+
+        long target = (long) Math.ceil(currentCount * (percentile / 100.0));
+        long seen = 0;
+
+        for(int i = 0; i < BUCKET_COUNT - 1; ++i)
+        {
+            seen += buckets.get(i);
+
+            if(seen >= target)
+            {
+                // Never report more than the largest recorded duration
+                return Math.min((1L << i) / 1000.0, getMaxMillis());
+            }
+        }
+        return getMaxMillis();
+    }
+
+    public void reset()
+    {
+        for(int i = 0; i < BUCKET_COUNT; ++i)
+        {
+            buckets.set(i, 0);
+        }
+
+        count.set(0);
+        totalNanos.set(0);
+        maxNanos.set(0);
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * This file is part of DeltaInventory.
+ *
+ * DeltaInventory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DeltaInventory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DeltaInventory.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gmail.tracebachi.DeltaInventory.Stats;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Latency histograms of every stage of loads and saves, and counts of their
+ * outcomes. Safe to record into from any thread.
+ */
+public class PluginStats
+{
+    public enum Timer
+    {
+        LOAD_QUEUE_WAIT("Load queue wait"),
+        LOAD_READ("Load read"),
+        LOAD_DECODE("Load decode"),
+        LOAD_APPLY("Load apply (main thread)"),
+        APPLY_QUEUE_WAIT("Apply queue wait"),
+        SAVE_SNAPSHOT("Save snapshot (main thread)"),
+        SAVE_QUEUE_WAIT("Save queue wait"),
+        SAVE_ENCODE("Save encode"),
+        SAVE_WRITE("Save write"),
+        LOCK_HELD("Inventory locked"),
+        SERVER_SWITCH("Server switch (end to end)");
+
+        private final String label;
+
+        Timer(String label)
+        {
+            this.label = label;
+        }
+
+        public String getLabel()
+        {
+            return label;
+        }
+    }
+
+    public enum Counter
+    {
+        LOADS("Loads"),
+        LOADS_NOT_FOUND("Loads (not found)"),
+        LOAD_FAILURES("Load failures"),
+        SAVES("Saves"),
+        SAVE_FAILURES("Save failures"),
+        AUTOSAVES("Autosaves"),
+        AUTOSAVES_UNCHANGED("Autosaves skipped (unchanged)"),
+        SERVER_SWITCHES("Server switches");
+
+        private final String label;
+
+        Counter(String label)
+        {
+            this.label = label;
+        }
+
+        public String getLabel()
+        {
+            return label;
+        }
+    }
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[Timer.values().length];
+    private final AtomicLong[] counters = new AtomicLong[Counter.values().length];
+    private final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+    private volatile long startedAt = System.currentTimeMillis();
+
+    public PluginStats()
+    {
+        for(int i = 0; i < histograms.length; ++i)
+        {
+            histograms[i] = new LatencyHistogram();
+        }
+
+        for(int i = 0; i < counters.length; ++i)
+        {
+            counters[i] = new AtomicLong();
+        }
+    }
+
+    /**
+     * @param timer Stage the duration was measured for
+     * @param nanos Duration measured with {@link System#nanoTime()}
+     */
+    public void record(Timer timer, long nanos)
+    {
+        histograms[timer.ordinal()].record(nanos);
+    }
+
+    public void increment(Counter counter)
+    {
+        counters[counter.ordinal()].incrementAndGet();
+    }
+
+    /**
+     * Adds a value that is read whenever the stats are shown (such as the
+     * length of a queue). A gauge with the same label is replaced.
+     *
+     * @param label Label of the value
+     * @param supplier Supplier of the current value
+     */
+    public void setGauge(String label, LongSupplier supplier)
+    {
+        gauges.put(label, supplier);
+    }
+
+    public void removeGauge(String label)
+    {
+        gauges.remove(label);
+    }
+
+    public LatencyHistogram getHistogram(Timer timer)
+    {
+        return histograms[timer.ordinal()];
+    }
+
+    public long getCount(Counter counter)
+    {
+        return counters[counter.ordinal()].get();
+    }
+
+    public void reset()
+    {
+        for(LatencyHistogram histogram : histograms)
+        {
+            histogram.reset();
+        }
+
+        for(AtomicLong counter : counters)
+        {
+            counter.set(0);
+        }
+
+        startedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * @return Human readable summary of everything recorded since the plugin
+     * was enabled or the stats were reset
+     */
+    public List<String> toLines()
+    {
+        List<String> lines = new ArrayList<>(Timer.values().length + Counter.values().length + gauges.size() + 1);
+        long seconds = (System.currentTimeMillis() - startedAt) / 1000;
+
+        lines.add("Recorded over " + seconds + " s (times in ms: count, mean, p50, p90, p99, max)");
+
+        for(Timer timer : Timer.values())
+        {
+            LatencyHistogram histogram = getHistogram(timer);
+
+            lines.add(String.format("%s: %d, %.2f, %.2f, %.2f, %.2f, %.2f",
+                timer.getLabel(),
+                histogram.getCount(),
+                histogram.getMeanMillis(),
+                histogram.getPercentileMillis(50),
+                histogram.getPercentileMillis(90),
+                histogram.getPercentileMillis(99),
+                histogram.getMaxMillis()));
+        }
+
+        // Usually far below a millisecond, which the line above rounds to zero
+        LatencyHistogram snapshots = getHistogram(Timer.SAVE_SNAPSHOT);
+        lines.add(String.format("Main thread time per save: %.0f ns mean, %d ns max",
+            snapshots.getMeanNanos(), snapshots.getMaxNanos()));
+
+        for(Counter counter : Counter.values())
+        {
+            lines.add(counter.getLabel() + ": " + getCount(counter));
+        }
+
+        for(Map.Entry<String, LongSupplier> entry : gauges.entrySet())
+        {
+            lines.add(entry.getKey() + ": " + entry.getValue().getAsLong());
+        }
+
+        return lines;
+    }
+
+    /**
+     * Writes the summary to a new file in the folder.
+     *
+     * @param folder Folder to write the file to
+     * @return File that was written
+     */
+    public File dump(File folder) throws IOException
+    {
+        String timestamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+        File file = new File(folder, "stats-" + timestamp + ".txt");
+
+        Files.write(file.toPath(), toLines(), StandardCharsets.UTF_8);
+        return file;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * This file is part of DeltaInventory.
+ *
+ * DeltaInventory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DeltaInventory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DeltaInventory.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gmail.tracebachi.DeltaInventory.Storage;
+
+import com.google.common.base.Preconditions;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reusable direct buffers of one size. Reading into or writing from a heap
+ * buffer makes the JDK copy through a temporary direct buffer as large as
+ * the whole transfer (kept per thread), so file I/O goes through these
+ * buffers in chunks instead.
+ *
+ * Buffers released while the pool is full are left to the garbage
+ * collector, so the pool never holds more than its maximum.
+ */
+public class BufferPool
+{
+    private final int bufferSize;
+    private final ArrayBlockingQueue<ByteBuffer> pooled;
+    private final AtomicLong acquired = new AtomicLong();
+    private final AtomicLong allocated = new AtomicLong();
+    private final AtomicLong inUse = new AtomicLong();
+
+    /**
+     * @param bufferSize Size (in bytes) of every buffer
+     * @param maxPooled Most buffers kept for reuse
+     */
+    public BufferPool(int bufferSize, int maxPooled)
+    {
+        Preconditions.checkArgument(bufferSize > 0, "Buffer size must be positive.");
+        Preconditions.checkArgument(maxPooled > 0, "Max pooled buffers must be positive.");
+
+        this.bufferSize = bufferSize;
+        this.pooled = new ArrayBlockingQueue<>(maxPooled);
+    }
+
+    /**
+     * @return Cleared buffer that must be passed to {@link #release(ByteBuffer)}
+     */
+    public ByteBuffer acquire()
+    {
+        acquired.incrementAndGet();
+        inUse.incrementAndGet();
+
+        ByteBuffer buffer = pooled.poll();
+
+        if(buffer == null)
+        {
+            allocated.incrementAndGet();
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+
+        buffer.clear();
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer)
+    {
+        inUse.decrementAndGet();
+        pooled.offer(buffer);
+    }
+
+    public int getBufferSize()
+    {
+        return bufferSize;
+    }
+
+    /**
+     * @return Number of buffers handed out since the pool was created
+     */
+    public long getAcquiredCount()
+    {
+        return acquired.get();
+    }
+
+    /**
+     * @return Number of buffers that had to be allocated because the pool
+     * was empty
+     */
+    public long getAllocatedCount()
+    {
+        return allocated.get();
+    }
+
+    public long getInUseCount()
+    {
+        return inUse.get();
+    }
+
+    public long getPooledCount()
+    {
+        return pooled.size();
+    }
+
+    public void clear()
+    {
+        pooled.clear();
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * This file is part of DeltaInventory.
+ *
+ * DeltaInventory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DeltaInventory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DeltaInventory.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gmail.tracebachi.DeltaInventory.Storage;
+
+/**
+ * Codecs that can be used for stored player data. The id is written as the
+ * first byte of a compressed file and must never be reused for a different
+ * codec (or dictionary).
+ */
+public enum CompressionCodec
+{
+    NONE(0),
+    DEFLATE(1),
+    DEFLATE_DICTIONARY(2);
+
+    private final byte id;
+
+    CompressionCodec(int id)
+    {
+        this.id = (byte) id;
+    }
+
+    public byte getId()
+    {
+        return id;
+    }
+
+    public static CompressionCodec fromId(int id)
+    {
+        for(CompressionCodec codec : values())
+        {
+            if(codec.id == id)
+            {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    public static CompressionCodec fromName(String name)
+    {
+        if(name != null)
+        {
+            for(CompressionCodec codec : values())
+            {
+                if(codec.name().equalsIgnoreCase(name))
+                {
+                    return codec;
+                }
+            }
+        }
+        return NONE;
+    }
+}
@@ -0,0 +1,390 @@
+/*
+ * This file is part of DeltaInventory.
+ *
+ * DeltaInventory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DeltaInventory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DeltaInventory.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gmail.tracebachi.DeltaInventory.Storage;
+
+import com.gmail.tracebachi.DeltaInventory.DeltaInventoryPlugin;
+import com.google.common.base.Preconditions;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One file per player at PlayerDataFolder/[subfolder]/[name].[yml|dat],
+ * where the subfolder depends on the {@link PlayerFileLayout}. Files of
+ * either format are read (the newer one if both exist), so the configured
+ * format can be changed without converting existing data.
+ *
+ * With the hashed layout, players without a file in the hashed layout are
+ * looked up in the first character layout, and a background thread moves
+ * those files over at a limited rate.
+ */
+public class FilePlayerStorage implements PlayerStorage
+{
+    private final String playerDataFolder;
+    private final PlayerDataFormat format;
+    private final RecentEntryCache recentEntryCache;
+    private final PlayerFileIo fileIo;
+    private final PlayerFileLayout layout;
+    private final int migrationRate;
+    private final DeltaInventoryPlugin plugin;
+    private final AtomicLong migratedCount = new AtomicLong();
+    private Thread migrationThread;
+    private volatile boolean isMigrating;
+
+    /**
+     * @param playerDataFolder Folder the player files are kept in
+     * @param format Format preferred when files of both formats exist
+     * @param recentEntryCache Cache of recently written files or null
+     * @param fileIo Locked file access to read and write files with
+     * @param layout Layout that files are written in
+     * @param migrationRate Most files moved to the hashed layout per second
+     *                      (0 to not move any)
+     * @param plugin Plugin to log with
+     */
+    public FilePlayerStorage(String playerDataFolder, PlayerDataFormat format,
+        RecentEntryCache recentEntryCache, PlayerFileIo fileIo, PlayerFileLayout layout,
+        int migrationRate, DeltaInventoryPlugin plugin)
+    {
+        Preconditions.checkNotNull(playerDataFolder, "Folder cannot be null.");
+        Preconditions.checkNotNull(format, "Format cannot be null.");
+        Preconditions.checkNotNull(fileIo, "File I/O cannot be null.");
+        Preconditions.checkNotNull(layout, "Layout cannot be null.");
+        Preconditions.checkArgument(migrationRate >= 0, "Migration rate cannot be negative.");
+        Preconditions.checkNotNull(plugin, "Plugin cannot be null.");
+
+        this.playerDataFolder = playerDataFolder;
+        this.format = format;
+        this.recentEntryCache = recentEntryCache;
+        this.fileIo = fileIo;
+        this.layout = layout;
+        this.migrationRate = migrationRate;
+        this.plugin = plugin;
+    }
+
+    @Override
+    public void start() throws IOException
+    {
+        File folder = new File(playerDataFolder);
+
+        if(!folder.exists() && !folder.mkdirs())
+        {
+            throw new IOException("Failed to create " + folder);
+        }
+
+        if(layout == PlayerFileLayout.HASHED && migrationRate > 0)
+        {
+            isMigrating = true;
+            migrationThread = new Thread(this::runMigration, "DeltaInventory-Migration");
+            migrationThread.setDaemon(true);
+            migrationThread.setPriority(Thread.MIN_PRIORITY);
+            migrationThread.start();
+        }
+    }
+
+    @Override
+    public void shutdown()
+    {
+        isMigrating = false;
+
+        if(migrationThread != null)
+        {
+            migrationThread.interrupt();
+
+            try
+            {
+                migrationThread.join(5000);
+            }
+            catch(InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+            }
+            migrationThread = null;
+        }
+    }
+
+    /**
+     * @return Number of files moved to the hashed layout since the start
+     */
+    public long getMigratedCount()
+    {
+        return migratedCount.get();
+    }
+
+    @Override
+    public StoredPlayerData read(String name) throws IOException
+    {
+        for(int attempt = 0; ; ++attempt)
+        {
+            File file = findPlayerFile(name);
+
+            // Taken before reading so a concurrent write makes the result outdated
+            FileVersion version = FileVersion.of(file);
+
+            if(version == null)
+            {
+                return null;
+            }
+
+            Path path = file.toPath();
+            byte[] data = null;
+
+            if(recentEntryCache != null)
+            {
+                RecentEntryCache.CachedEntry cached = recentEntryCache.get(name, path);
+                data = (cached != null) ? cached.getData() : null;
+            }
+
+            if(data == null)
+            {
+                try
+                {
+                    data = fileIo.read(path);
+                }
+                catch(NoSuchFileException ex)
+                {
+                    // The file may have been moved to the hashed layout since it was found
+                    if(attempt > 0)
+                    {
+                        throw ex;
+                    }
+                    continue;
+                }
+            }
+
+            return new StoredPlayerData(getFormat(file.getName()), data, version);
+        }
+    }
+
+    @Override
+    public Object getVersion(String name)
+    {
+        return FileVersion.of(findPlayerFile(name));
+    }
+
+    @Override
+    public long getSavedAt(String name)
+    {
+        return findPlayerFile(name).lastModified();
+    }
+
+    @Override
+    public boolean write(String name, PlayerDataFormat dataFormat, byte[] data, boolean forceToDisk,
+        boolean isRereadLikely)
+    {
+        Path path = getPlayerFile(name, dataFormat, layout).toPath();
+
+        if(recentEntryCache == null || !isRereadLikely)
+        {
+            return fileIo.write(data, path, forceToDisk);
+        }
+
+        // Players that quit are likely to rejoin soon, so keep what was written
+        return fileIo.write(data, path, forceToDisk,
+            () -> recentEntryCache.put(name, path, data));
+    }
+
+    private void runMigration()
+    {
+        File[] oldFolders = new File(playerDataFolder).listFiles((file) ->
+            file.isDirectory() && PlayerFileLayout.FIRST_CHARACTER.isTopLevelFolder(file.getName()));
+
+        if(oldFolders == null || oldFolders.length == 0)
+        {
+            return;
+        }
+
+        plugin.info("Moving player files to the hashed layout (" + migrationRate + " per second) ...");
+
+        long interval = TimeUnit.SECONDS.toNanos(1) / migrationRate;
+        long nextMoveAt = System.nanoTime();
+
+        for(File oldFolder : oldFolders)
+        {
+            // The folder is streamed since it may hold far too many files for a list
+            try(DirectoryStream<Path> stream = Files.newDirectoryStream(oldFolder.toPath()))
+            {
+                for(Path oldPath : stream)
+                {
+                    long waitTime = nextMoveAt - System.nanoTime();
+
+                    if(waitTime > 0)
+                    {
+                        TimeUnit.NANOSECONDS.sleep(waitTime);
+                    }
+
+                    if(!isMigrating)
+                    {
+                        return;
+                    }
+
+                    nextMoveAt = Math.max(nextMoveAt, System.nanoTime() - interval) + interval;
+                    migrate(oldPath);
+                }
+            }
+            catch(InterruptedException ex)
+            {
+                // Interrupted by shutdown, which is noticed by the loop
+                return;
+            }
+            catch(IOException ex)
+            {
+                ex.printStackTrace();
+                continue;
+            }
+
+            // Only succeeds once the folder is empty
+            oldFolder.delete();
+        }
+
+        plugin.info("Finished moving player files to the hashed layout (" +
+            migratedCount.get() + " moved).");
+    }
+
+    private void migrate(Path oldPath)
+    {
+        String fileName = oldPath.getFileName().toString();
+        PlayerDataFormat fileFormat = getFormat(fileName);
+
+        if(!fileName.endsWith(fileFormat.getExtension()))
+        {
+            return;
+        }
+
+        String name = fileName.substring(0, fileName.length() - fileFormat.getExtension().length());
+        Path newPath = getPlayerFile(name, fileFormat, PlayerFileLayout.HASHED).toPath();
+
+        try
+        {
+            Files.createDirectories(newPath.getParent());
+
+            // Unlike a rename, a link never replaces a file saved in the hashed
+            // layout in the meantime (which is always newer than the old file)
+            Files.createLink(newPath, oldPath);
+            Files.delete(oldPath);
+            migratedCount.incrementAndGet();
+        }
+        catch(FileAlreadyExistsException ex)
+        {
+            deleteQuietly(oldPath);
+        }
+        catch(NoSuchFileException ex)
+        {
+            // Moved by another server sharing the folder
+        }
+        catch(UnsupportedOperationException | IOException ex)
+        {
+            plugin.severe("Failed to move " + oldPath + " to " + newPath + ": " + ex.getMessage());
+        }
+    }
+
+    private File findPlayerFile(String name)
+    {
+        File file = findPlayerFile(name, layout);
+
+        if(file == null && layout != PlayerFileLayout.FIRST_CHARACTER)
+        {
+            // Not moved to the hashed layout yet
+            file = findPlayerFile(name, PlayerFileLayout.FIRST_CHARACTER);
+        }
+
+        return (file != null) ? file : getPlayerFile(name, format, layout);
+    }
+
+    private File findPlayerFile(String name, PlayerFileLayout fileLayout)
+    {
+        // Prefer the configured format, but fall back to (or pick the newer)
+        // file of the other format so existing data keeps loading
+        File file = getPlayerFile(name, format, fileLayout);
+        File otherFile = getPlayerFile(name, format.getOther(), fileLayout);
+        boolean fileExists = file.exists();
+
+        if(otherFile.exists() && (!fileExists || otherFile.lastModified() > file.lastModified()))
+        {
+            return otherFile;
+        }
+        return fileExists ? file : null;
+    }
+
+    private File getPlayerFile(String name, PlayerDataFormat fileFormat, PlayerFileLayout fileLayout)
+    {
+        return new File(playerDataFolder + File.separator + fileLayout.getSubfolder(name) +
+            File.separator + name + fileFormat.getExtension());
+    }
+
+    private static void deleteQuietly(Path path)
+    {
+        try
+        {
+            Files.deleteIfExists(path);
+        }
+        catch(IOException ex)
+        {
+            ex.printStackTrace();
+        }
+    }
+
+    private static PlayerDataFormat getFormat(String fileName)
+    {
+        return fileName.endsWith(PlayerDataFormat.BINARY.getExtension()) ?
+            PlayerDataFormat.BINARY : PlayerDataFormat.YAML;
+    }
+
+    private static class FileVersion
+    {
+        private final File file;
+        private final long lastModified;
+        private final long length;
+
+        private FileVersion(File file, long lastModified, long length)
+        {
+            this.file = file;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+
+        private static FileVersion of(File file)
+        {
+            return file.exists() ? new FileVersion(file, file.lastModified(), file.length()) : null;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if(this == o) { return true; }
+            if(!(o instanceof FileVersion)) { return false; }
+
+            FileVersion other = (FileVersion) o;
+            return lastModified == other.lastModified &&
+                length == other.length &&
+                file.equals(other.file);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(file, lastModified, length);
+        }
+    }
+}
@@ -29,6 +29,13 @@ public interface IPlayerEntry
 {
     String getName();
 
+    /**
+     * @return Revision of the data, which every save increases by one. Tells
+     * which of two copies of the data is newer without comparing clocks of
+     * different servers. 0 for data saved before revisions were stored.
+     */
+    long getRevision();
+
     double getHealth();
 
     int getFoodLevel();
@@ -0,0 +1,514 @@
+/*
+ * This file is part of DeltaInventory.
+ *
+ * DeltaInventory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DeltaInventory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DeltaInventory.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gmail.tracebachi.DeltaInventory.Storage;
+
+import com.google.common.base.Preconditions;
+import org.bukkit.ChatColor;
+import org.bukkit.Material;
+import org.bukkit.enchantments.Enchantment;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.meta.EnchantmentStorageMeta;
+import org.bukkit.inventory.meta.ItemMeta;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * On-disk index (an SQLite database) from item keys to the players and
+ * sections that hold matching items, so staff can find items without
+ * reading every player file. Keys are:
+ * <ul>
+ *     <li>material:[MATERIAL]</li>
+ *     <li>name:[custom name without colors, lowercase]</li>
+ *     <li>enchant:[ENCHANTMENT]:[level] (also stored enchantments of books)</li>
+ * </ul>
+ *
+ * The rows of a player are replaced after every save, unless the rows are
+ * from a newer save. Updates are queued for a single writer thread that
+ * commits up to the batch size at once. When the queue is full, saves wait
+ * for space instead of dropping updates.
+ *
+ * Every row keeps the time of the save it is from. Players saved since then
+ * (such as by another server, which only updates its own index) can be told
+ * apart by comparing it with {@link PlayerStorage#getSavedAt(String)}.
+ */
+public class ItemIndex
+{
+    public static final String SECTION_SURVIVAL = "Survival";
+    public static final String SECTION_CREATIVE = "Creative";
+    public static final String SECTION_ENDER_CHEST = "EnderChest";
+
+    private static final String CREATE_TABLE = "CREATE TABLE IF NOT EXISTS item_index (" +
+        "item_key TEXT NOT NULL, " +
+        "player TEXT NOT NULL, " +
+        "section TEXT NOT NULL, " +
+        "amount INTEGER NOT NULL, " +
+        "saved_at INTEGER NOT NULL, " +
+        "PRIMARY KEY (item_key, player, section))";
+    private static final String CREATE_PLAYER_INDEX =
+        "CREATE INDEX IF NOT EXISTS item_index_player ON item_index (player)";
+    private static final String DELETE_PLAYER = "DELETE FROM item_index WHERE player = ?";
+    private static final String SELECT_SAVED_AT = "SELECT MAX(saved_at) FROM item_index WHERE player = ?";
+    private static final String INSERT = "INSERT INTO item_index " +
+        "(item_key, player, section, amount, saved_at) VALUES (?, ?, ?, ?, ?)";
+    private static final String SELECT = "SELECT player, section, amount, saved_at FROM item_index " +
+        "WHERE item_key = ? OR (item_key >= ? AND item_key < ?) ORDER BY amount DESC LIMIT ?";
+
+    private final File file;
+    private final int batchSize;
+    private final LinkedBlockingQueue<PendingUpdate> queue;
+    private final Object readLock = new Object();
+    private Connection readConnection;
+    private PreparedStatement select;
+    private Connection writeConnection;
+    private PreparedStatement deletePlayer;
+    private PreparedStatement selectSavedAt;
+    private PreparedStatement insert;
+    private Thread writerThread;
+    private volatile boolean isRunning;
+
+    /**
+     * @param file Database file (created if it does not exist)
+     * @param batchSize Most players updated in one transaction
+     * @param queueLimit Most updates waiting for the writer
+     */
+    public ItemIndex(File file, int batchSize, int queueLimit)
+    {
+        Preconditions.checkNotNull(file, "File cannot be null.");
+        Preconditions.checkArgument(batchSize > 0, "Batch size must be positive.");
+        Preconditions.checkArgument(queueLimit > 0, "Queue limit must be positive.");
+
+        this.file = file;
+        this.batchSize = batchSize;
+        this.queue = new LinkedBlockingQueue<>(queueLimit);
+    }
+
+    public void start() throws IOException
+    {
+        File folder = file.getAbsoluteFile().getParentFile();
+
+        if(folder != null && !folder.exists() && !folder.mkdirs())
+        {
+            throw new IOException("Failed to create " + folder);
+        }
+
+        try
+        {
+            Class.forName("org.sqlite.JDBC");
+
+            writeConnection = SqlitePlayerStorage.openConnection(file);
+            try(Statement statement = writeConnection.createStatement())
+            {
+                statement.executeUpdate(CREATE_TABLE);
+                statement.executeUpdate(CREATE_PLAYER_INDEX);
+            }
+
+            writeConnection.setAutoCommit(false);
+            deletePlayer = writeConnection.prepareStatement(DELETE_PLAYER);
+            selectSavedAt = writeConnection.prepareStatement(SELECT_SAVED_AT);
+            insert = writeConnection.prepareStatement(INSERT);
+
+            readConnection = SqlitePlayerStorage.openConnection(file);
+            select = readConnection.prepareStatement(SELECT);
+        }
+        catch(ClassNotFoundException | SQLException ex)
+        {
+            closeQuietly();
+            throw new IOException("Failed to open " + file, ex);
+        }
+
+        isRunning = true;
+        writerThread = new Thread(this::runWriter, "DeltaInventory-ItemIndex");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    public void shutdown()
+    {
+        isRunning = false;
+
+        if(writerThread != null)
+        {
+            // The writer commits everything still queued before it stops
+            writerThread.interrupt();
+
+            try
+            {
+                writerThread.join(30000);
+            }
+            catch(InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+            }
+            writerThread = null;
+        }
+
+        queue.clear();
+        closeQuietly();
+    }
+
+    /**
+     * Queues the replacement of the player's rows with the items of the
+     * entry, waiting for space in the queue if it is full. The keys are
+     * collected on the calling thread.
+     *
+     * @param entry Entry that was saved
+     * @param savedAt Time (in ms since the epoch) the entry was stored
+     * @return True if the update was queued, false if the index stopped
+     */
+    public boolean update(IPlayerEntry entry, long savedAt)
+    {
+        PendingUpdate update = new PendingUpdate(entry.getName(), collectKeys(entry), savedAt);
+
+        try
+        {
+            while(isRunning)
+            {
+                if(queue.offer(update, 1, TimeUnit.SECONDS))
+                {
+                    return true;
+                }
+            }
+        }
+        catch(InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    /**
+     * @param query Material name, "name:[custom name]" or
+     *              "enchant:[ENCHANTMENT]" with an optional ":[level]"
+     * @param limit Most results
+     * @return Matches with the largest amounts first
+     */
+    public List<IndexedItem> query(String query, int limit) throws IOException
+    {
+        String key = toKey(query);
+        List<IndexedItem> result = new ArrayList<>();
+
+        synchronized(readLock)
+        {
+            if(select == null)
+            {
+                throw new IOException("The item index is not running");
+            }
+
+            try
+            {
+                // Matches the key itself or any key it is a prefix of (all levels)
+                select.setString(1, key);
+                select.setString(2, key + ":");
+                select.setString(3, key + ";");
+                select.setInt(4, limit);
+
+                try(ResultSet resultSet = select.executeQuery())
+                {
+                    while(resultSet.next())
+                    {
+                        result.add(new IndexedItem(resultSet.getString(1), resultSet.getString(2),
+                            resultSet.getInt(3), resultSet.getLong(4)));
+                    }
+                }
+            }
+            catch(SQLException ex)
+            {
+                throw new IOException("Failed to query " + key, ex);
+            }
+        }
+        return result;
+    }
+
+    public int getQueuedCount()
+    {
+        return queue.size();
+    }
+
+    /**
+     * @param query What a user typed
+     * @return Key the query matches
+     */
+    public static String toKey(String query)
+    {
+        String lowerCase = query.trim().toLowerCase(Locale.ROOT);
+
+        if(lowerCase.startsWith("name:"))
+        {
+            return lowerCase;
+        }
+        else if(lowerCase.startsWith("enchant:"))
+        {
+            return "enchant:" + query.trim().substring(8).toUpperCase(Locale.ROOT);
+        }
+        else if(lowerCase.startsWith("material:"))
+        {
+            return "material:" + query.trim().substring(9).toUpperCase(Locale.ROOT);
+        }
+        return "material:" + query.trim().toUpperCase(Locale.ROOT);
+    }
+
+    /**
+     * @return Amounts of every key by section and key
+     */
+    static Map<String, Map<String, Integer>> collectKeys(IPlayerEntry entry)
+    {
+        Map<String, Map<String, Integer>> result = new HashMap<>();
+
+        collectKeys(entry.getSurvival().getArmor(), SECTION_SURVIVAL, result);
+        collectKeys(entry.getSurvival().getContents(), SECTION_SURVIVAL, result);
+        collectKeys(entry.getCreative().getArmor(), SECTION_CREATIVE, result);
+        collectKeys(entry.getCreative().getContents(), SECTION_CREATIVE, result);
+        collectKeys(entry.getEnderChest(), SECTION_ENDER_CHEST, result);
+        return result;
+    }
+
+    private static void collectKeys(ItemStack[] itemStacks, String section,
+        Map<String, Map<String, Integer>> result)
+    {
+        if(itemStacks == null)
+        {
+            return;
+        }
+
+        for(ItemStack itemStack : itemStacks)
+        {
+            if(itemStack == null || itemStack.getType() == Material.AIR)
+            {
+                continue;
+            }
+
+            Map<String, Integer> keys = result.computeIfAbsent(section, (k) -> new HashMap<>());
+            int amount = itemStack.getAmount();
+
+            keys.merge("material:" + itemStack.getType().name(), amount, Integer::sum);
+
+            if(!itemStack.hasItemMeta())
+            {
+                continue;
+            }
+
+            ItemMeta meta = itemStack.getItemMeta();
+
+            if(meta.hasDisplayName())
+            {
+                String name = ChatColor.stripColor(meta.getDisplayName()).toLowerCase(Locale.ROOT);
+                keys.merge("name:" + name, amount, Integer::sum);
+            }
+
+            if(meta.hasEnchants())
+            {
+                addEnchantKeys(meta.getEnchants(), amount, keys);
+            }
+
+            if(meta instanceof EnchantmentStorageMeta && ((EnchantmentStorageMeta) meta).hasStoredEnchants())
+            {
+                addEnchantKeys(((EnchantmentStorageMeta) meta).getStoredEnchants(), amount, keys);
+            }
+        }
+    }
+
+    private static void addEnchantKeys(Map<Enchantment, Integer> enchants, int amount,
+        Map<String, Integer> keys)
+    {
+        for(Map.Entry<Enchantment, Integer> enchant : enchants.entrySet())
+        {
+            keys.merge("enchant:" + enchant.getKey().getName() + ":" + enchant.getValue(),
+                amount, Integer::sum);
+        }
+    }
+
+    private void runWriter()
+    {
+        List<PendingUpdate> batch = new ArrayList<>(batchSize);
+
+        while(isRunning || !queue.isEmpty())
+        {
+            try
+            {
+                PendingUpdate first = queue.poll(1, TimeUnit.SECONDS);
+
+                if(first == null)
+                {
+                    continue;
+                }
+
+                batch.add(first);
+            }
+            catch(InterruptedException ex)
+            {
+                // Interrupted by shutdown, which is noticed by the loop
+                continue;
+            }
+
+            queue.drainTo(batch, batchSize - 1);
+            commit(batch);
+            batch.clear();
+        }
+    }
+
+    private void commit(List<PendingUpdate> batch)
+    {
+        try
+        {
+            for(PendingUpdate update : batch)
+            {
+                // Rows from a newer save (such as of the data tool) are kept
+                selectSavedAt.setString(1, update.name);
+
+                try(ResultSet resultSet = selectSavedAt.executeQuery())
+                {
+                    if(resultSet.next() && resultSet.getLong(1) > update.savedAt)
+                    {
+                        continue;
+                    }
+                }
+
+                deletePlayer.setString(1, update.name);
+                deletePlayer.executeUpdate();
+
+                for(Map.Entry<String, Map<String, Integer>> section : update.keys.entrySet())
+                {
+                    for(Map.Entry<String, Integer> key : section.getValue().entrySet())
+                    {
+                        insert.setString(1, key.getKey());
+                        insert.setString(2, update.name);
+                        insert.setString(3, section.getKey());
+                        insert.setInt(4, key.getValue());
+                        insert.setLong(5, update.savedAt);
+                        insert.addBatch();
+                    }
+                }
+
+                // Rows of the player must be inserted before it is deleted again
+                insert.executeBatch();
+            }
+
+            writeConnection.commit();
+        }
+        catch(SQLException ex)
+        {
+            ex.printStackTrace();
+
+            try
+            {
+                insert.clearBatch();
+                writeConnection.rollback();
+            }
+            catch(SQLException rollbackEx)
+            {
+                rollbackEx.printStackTrace();
+            }
+        }
+    }
+
+    private void closeQuietly()
+    {
+        synchronized(readLock)
+        {
+            for(AutoCloseable closeable : new AutoCloseable[]{
+                select, readConnection, deletePlayer, selectSavedAt, insert, writeConnection})
+            {
+                if(closeable == null)
+                {
+                    continue;
+                }
+
+                try
+                {
+                    closeable.close();
+                }
+                catch(Exception ex)
+                {
+                    ex.printStackTrace();
+                }
+            }
+
+            select = null;
+            readConnection = null;
+            deletePlayer = null;
+            selectSavedAt = null;
+            insert = null;
+            writeConnection = null;
+        }
+    }
+
+    public static class IndexedItem
+    {
+        private final String player;
+        private final String section;
+        private final int amount;
+        private final long savedAt;
+
+        private IndexedItem(String player, String section, int amount, long savedAt)
+        {
+            this.player = player;
+            this.section = section;
+            this.amount = amount;
+            this.savedAt = savedAt;
+        }
+
+        public String getPlayer()
+        {
+            return player;
+        }
+
+        public String getSection()
+        {
+            return section;
+        }
+
+        public int getAmount()
+        {
+            return amount;
+        }
+
+        /**
+         * @return Time (in ms since the epoch) of the save the row is from
+         */
+        public long getSavedAt()
+        {
+            return savedAt;
+        }
+    }
+
+    private static class PendingUpdate
+    {
+        private final String name;
+        private final Map<String, Map<String, Integer>> keys;
+        private final long savedAt;
+
+        private PendingUpdate(String name, Map<String, Map<String, Integer>> keys, long savedAt)
+        {
+            this.name = name;
+            this.keys = keys;
+            this.savedAt = savedAt;
+        }
+    }
+}
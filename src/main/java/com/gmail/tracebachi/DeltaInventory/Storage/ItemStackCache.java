@@ -0,0 +1,248 @@
+/*
+ * This file is part of DeltaInventory.
+ *
+ * DeltaInventory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DeltaInventory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DeltaInventory.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gmail.tracebachi.DeltaInventory.Storage;
+
+import com.gmail.tracebachi.DeltaInventory.Utils.BinaryUtils;
+import com.gmail.tracebachi.DeltaInventory.Utils.InventoryUtils;
+import org.bukkit.inventory.ItemStack;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded LRU caches of serialized item stacks, shared by all loads and
+ * saves. Many slots hold equal stacks (full stacks of blocks, kit tools), so
+ * the serialized form of a stack is looked up before serializing it again.
+ *
+ * Keys are copies of the stacks and decoded stacks are kept as prototypes
+ * that are never handed out; callers always receive a clone.
+ */
+public class ItemStackCache
+{
+    private final LinkedHashMap<ItemStack, byte[]> encoded;
+    private final LinkedHashMap<ByteBuffer, ItemStack> decoded;
+    private final LinkedHashMap<ItemStack, Map<String, Object>> yamlEncoded;
+    private final AtomicLong encodeHits = new AtomicLong();
+    private final AtomicLong encodeMisses = new AtomicLong();
+    private final AtomicLong decodeHits = new AtomicLong();
+    private final AtomicLong decodeMisses = new AtomicLong();
+
+    public ItemStackCache(int maxEntries)
+    {
+        this.encoded = createLruMap(maxEntries);
+        this.decoded = createLruMap(maxEntries);
+        this.yamlEncoded = createLruMap(maxEntries);
+    }
+
+    /**
+     * @param itemStack Item stack to serialize
+     * @return Binary form of the item stack (must not be modified)
+     */
+    public byte[] encode(ItemStack itemStack) throws IOException
+    {
+        byte[] result;
+
+        synchronized(encoded)
+        {
+            result = encoded.get(itemStack);
+        }
+
+        if(result != null)
+        {
+            encodeHits.incrementAndGet();
+            return result;
+        }
+
+        encodeMisses.incrementAndGet();
+        result = BinaryUtils.encodeItemStack(itemStack);
+
+        // The stack may be modified by its owner later, so a copy is the key
+        ItemStack key = itemStack.clone();
+
+        synchronized(encoded)
+        {
+            encoded.put(key, result);
+        }
+        return result;
+    }
+
+    /**
+     * @param bytes Binary form of an item stack (must not be modified)
+     * @return New item stack equal to the serialized one
+     */
+    public ItemStack decode(byte[] bytes) throws IOException
+    {
+        ByteBuffer key = ByteBuffer.wrap(bytes);
+        ItemStack prototype;
+
+        synchronized(decoded)
+        {
+            prototype = decoded.get(key);
+        }
+
+        if(prototype != null)
+        {
+            decodeHits.incrementAndGet();
+            return prototype.clone();
+        }
+
+        decodeMisses.incrementAndGet();
+        prototype = BinaryUtils.decodeItemStack(bytes);
+
+        if(prototype == null)
+        {
+            return null;
+        }
+
+        synchronized(decoded)
+        {
+            decoded.put(key, prototype);
+        }
+        return prototype.clone();
+    }
+
+    /**
+     * @param itemStack Item stack to serialize
+     * @return Map that a YAML dump represents the same way as the item stack
+     */
+    public Map<String, Object> toYaml(ItemStack itemStack)
+    {
+        Map<String, Object> result;
+
+        synchronized(yamlEncoded)
+        {
+            result = yamlEncoded.get(itemStack);
+        }
+
+        if(result != null)
+        {
+            encodeHits.incrementAndGet();
+            return copyOf(result);
+        }
+
+        encodeMisses.incrementAndGet();
+        result = InventoryUtils.toSerializedMap(itemStack);
+        ItemStack key = itemStack.clone();
+
+        synchronized(yamlEncoded)
+        {
+            yamlEncoded.put(key, result);
+        }
+        return copyOf(result);
+    }
+
+    public long getEncodeHits()
+    {
+        return encodeHits.get();
+    }
+
+    public long getEncodeMisses()
+    {
+        return encodeMisses.get();
+    }
+
+    public long getDecodeHits()
+    {
+        return decodeHits.get();
+    }
+
+    public long getDecodeMisses()
+    {
+        return decodeMisses.get();
+    }
+
+    public double getEncodeHitRatio()
+    {
+        return ratio(encodeHits.get(), encodeMisses.get());
+    }
+
+    public double getDecodeHitRatio()
+    {
+        return ratio(decodeHits.get(), decodeMisses.get());
+    }
+
+    public void clear()
+    {
+        synchronized(encoded)
+        {
+            encoded.clear();
+        }
+
+        synchronized(decoded)
+        {
+            decoded.clear();
+        }
+
+        synchronized(yamlEncoded)
+        {
+            yamlEncoded.clear();
+        }
+    }
+
+    /**
+     * The YAML dumper writes an anchor and alias for an object that appears
+     * more than once, so every slot gets its own copy of the cached map.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T copyOf(T value)
+    {
+        if(value instanceof Map)
+        {
+            Map<Object, Object> copy = new LinkedHashMap<>();
+
+            for(Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet())
+            {
+                copy.put(entry.getKey(), copyOf(entry.getValue()));
+            }
+            return (T) copy;
+        }
+        else if(value instanceof List)
+        {
+            List<Object> copy = new ArrayList<>(((List<?>) value).size());
+
+            for(Object element : (List<?>) value)
+            {
+                copy.add(copyOf(element));
+            }
+            return (T) copy;
+        }
+        return value;
+    }
+
+    private static double ratio(long hits, long misses)
+    {
+        long total = hits + misses;
+        return (total == 0) ? 0.0 : hits / (double) total;
+    }
+
+    private static <K, V> LinkedHashMap<K, V> createLruMap(int maxEntries)
+    {
+        return new LinkedHashMap<K, V>(64, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest)
+            {
+                return size() > maxEntries;
+            }
+        };
+    }
+}
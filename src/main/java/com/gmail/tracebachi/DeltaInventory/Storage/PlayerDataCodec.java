@@ -0,0 +1,563 @@
+/*
+ * This file is part of DeltaInventory.
+ *
+ * DeltaInventory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DeltaInventory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DeltaInventory.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gmail.tracebachi.DeltaInventory.Storage;
+
+import com.gmail.tracebachi.DeltaInventory.Utils.BinaryUtils;
+import com.gmail.tracebachi.DeltaInventory.Utils.CompressionUtils;
+import com.gmail.tracebachi.DeltaInventory.Utils.InventoryUtils;
+import com.gmail.tracebachi.DeltaInventory.Utils.PotionEffectUtils;
+import com.google.common.base.Preconditions;
+import org.bukkit.GameMode;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.configuration.file.YamlConstructor;
+import org.bukkit.configuration.file.YamlRepresenter;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.potion.PotionEffect;
+import org.yaml.snakeyaml.DumperOptions;
+import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.error.YAMLException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Converts player entries to and from the bytes stored in player files. Has
+ * no dependency on the running plugin, so it can be used by tools and
+ * benchmarks as well. Safe to use from multiple threads.
+ *
+ * YAML is dumped from plain maps straight into the encoder and loaded from
+ * a reader over the bytes, so neither the configuration tree nor a String
+ * of the whole document is built. The layout is the same one
+ * {@link YamlConfiguration} writes. YAML is written in UTF-16 (which every
+ * version reads) or UTF-8 (half the size, but only read by versions that
+ * tell the two apart by the byte order mark UTF-16 starts with).
+ *
+ * Inventories kept aside for the other game mode and unchanged ender chests
+ * are not serialized again by later saves. Their binary section bytes (or
+ * maps of serialized items for YAML) from the last save are reused. Stats
+ * and effects change all the time and are always written.
+ */
+public class PlayerDataCodec
+{
+    private final PlayerDataFormat format;
+    private final ItemStackCache itemStackCache;
+    private final CompressionCodec compressionCodec;
+    private final int compressionLevel;
+    private final int compressionMinimumSize;
+    private final Charset yamlCharset;
+    private final ThreadLocal<Yaml> yaml = ThreadLocal.withInitial(PlayerDataCodec::createYaml);
+
+    /**
+     * Creates a codec that writes YAML in UTF-16.
+     *
+     * @see #PlayerDataCodec(PlayerDataFormat, ItemStackCache, CompressionCodec, int, int, Charset)
+     */
+    public PlayerDataCodec(PlayerDataFormat format, ItemStackCache itemStackCache,
+        CompressionCodec compressionCodec, int compressionLevel, int compressionMinimumSize)
+    {
+        this(format, itemStackCache, compressionCodec, compressionLevel, compressionMinimumSize,
+            StandardCharsets.UTF_16);
+    }
+
+    /**
+     * @param format Format entries are encoded with
+     * @param itemStackCache Cache of serialized item stacks or null
+     * @param compressionCodec Codec encoded entries are compressed with or
+     *                         null to not compress them
+     * @param compressionLevel Deflate level
+     * @param compressionMinimumSize Data smaller than this is not compressed
+     * @param yamlCharset UTF-16 or UTF-8
+     */
+    public PlayerDataCodec(PlayerDataFormat format, ItemStackCache itemStackCache,
+        CompressionCodec compressionCodec, int compressionLevel, int compressionMinimumSize,
+        Charset yamlCharset)
+    {
+        Preconditions.checkNotNull(format, "Format cannot be null.");
+        Preconditions.checkArgument(StandardCharsets.UTF_16.equals(yamlCharset) ||
+            StandardCharsets.UTF_8.equals(yamlCharset), "YAML charset must be UTF-16 or UTF-8.");
+
+        this.format = format;
+        this.itemStackCache = itemStackCache;
+        this.compressionCodec = compressionCodec;
+        this.compressionLevel = compressionLevel;
+        this.compressionMinimumSize = compressionMinimumSize;
+        this.yamlCharset = yamlCharset;
+    }
+
+    public PlayerDataFormat getFormat()
+    {
+        return format;
+    }
+
+    /**
+     * @param entry Entry to encode
+     * @return Bytes to store in the player file
+     */
+    public byte[] encode(IPlayerEntry entry) throws IOException
+    {
+        byte[] source;
+
+        if(format == PlayerDataFormat.BINARY)
+        {
+            source = writePlayerDataBinary(entry);
+        }
+        else
+        {
+            source = writePlayerDataYaml(entry);
+        }
+
+        if(compressionCodec != null)
+        {
+            source = CompressionUtils.encode(source, compressionCodec,
+                compressionLevel, compressionMinimumSize);
+        }
+        return source;
+    }
+
+    /**
+     * @param name Name of the player
+     * @param fileContents Bytes stored in the player file
+     * @param foundFormat Format of the player file (which may differ from
+     *                    the format entries are encoded with)
+     * @return Decoded entry
+     */
+    public IPlayerEntry decode(String name, byte[] fileContents, PlayerDataFormat foundFormat)
+        throws IOException, InvalidConfigurationException
+    {
+        // Files without a codec header are returned unchanged
+        fileContents = CompressionUtils.decode(fileContents);
+
+        if(foundFormat == PlayerDataFormat.BINARY)
+        {
+            return readPlayerDataBinary(name, fileContents);
+        }
+
+        return readPlayerDataYaml(name, loadYaml(fileContents));
+    }
+
+    /**
+     * Reads only the revision of stored data. Items of the binary format are
+     * not decoded.
+     *
+     * @param fileContents Bytes stored in the player file
+     * @param foundFormat Format of the player file
+     * @return Revision of the data
+     */
+    public long readRevision(byte[] fileContents, PlayerDataFormat foundFormat)
+        throws IOException, InvalidConfigurationException
+    {
+        fileContents = CompressionUtils.decode(fileContents);
+
+        if(foundFormat != PlayerDataFormat.BINARY)
+        {
+            return loadYaml(fileContents).getLong("Revision", 0);
+        }
+
+        DataInputStream in = readBinaryHeader(fileContents);
+        int sectionId;
+
+        while((sectionId = in.readUnsignedByte()) != BinaryUtils.SECTION_END)
+        {
+            int length = in.readInt();
+
+            if(sectionId == BinaryUtils.SECTION_STATS)
+            {
+                in.readLong(); // LastSave
+                return in.readLong();
+            }
+            in.skipBytes(length);
+        }
+        return 0;
+    }
+
+    private byte[] writePlayerDataYaml(IPlayerEntry entry) throws IOException
+    {
+        Map<String, Object> root = new LinkedHashMap<>();
+
+        root.put("LastSave", System.currentTimeMillis());
+        root.put("Revision", entry.getRevision());
+
+        root.put("Health", entry.getHealth());
+        root.put("Hunger", entry.getFoodLevel());
+        root.put("XpLevel", entry.getXpLevel());
+        root.put("XpProgress", entry.getXpProgress());
+        root.put("Gamemode", entry.getGameMode().toString());
+        root.put("Effects", PotionEffectUtils.toStringList(entry.getPotionEffects()));
+
+        root.put("Survival", toYamlMap(entry.getSurvival()));
+        root.put("Creative", toYamlMap(entry.getCreative()));
+        root.put("EnderChest", toEnderChestYamlMap(entry));
+
+        // TODO Meta section?
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(8192);
+
+        try(Writer writer = new OutputStreamWriter(bytes, yamlCharset))
+        {
+            yaml.get().dump(root, writer);
+        }
+        catch(YAMLException ex)
+        {
+            throw new IOException("Failed to write YAML", ex);
+        }
+        return bytes.toByteArray();
+    }
+
+    private Map<String, Object> toYamlMap(SavedInventory inventory)
+    {
+        // Inventories kept aside for the other game mode are not modified, so
+        // the map of the last save is still valid
+        Map<String, Object> result = inventory.getSerializedYaml();
+
+        if(result != null)
+        {
+            return result;
+        }
+
+        result = new LinkedHashMap<>();
+        result.put("Armor", InventoryUtils.toYamlMap(inventory.getArmor(), itemStackCache));
+        result.put("Contents", InventoryUtils.toYamlMap(inventory.getContents(), itemStackCache));
+        inventory.setSerializedYaml(result);
+        return result;
+    }
+
+    private Map<String, Object> toEnderChestYamlMap(IPlayerEntry entry)
+    {
+        // The ender chest is only serialized again if it changed since the last save
+        SectionCache sectionCache = (entry instanceof PlayerEntry) ?
+            ((PlayerEntry) entry).getSectionCache() : null;
+        ItemStack[] enderChest = entry.getEnderChest();
+        Map<String, Object> result = (sectionCache != null) ? sectionCache.getEnderChestYaml(enderChest) : null;
+
+        if(result != null)
+        {
+            return result;
+        }
+
+        result = InventoryUtils.toYamlMap(enderChest, itemStackCache);
+
+        if(sectionCache != null)
+        {
+            sectionCache.setEnderChestYaml(enderChest, result);
+        }
+        return result;
+    }
+
+    /**
+     * Loads the document the same way {@link YamlConfiguration#loadFromString(String)}
+     * does, but without decoding it to a String first.
+     */
+    private YamlConfiguration loadYaml(byte[] fileContents)
+        throws IOException, InvalidConfigurationException
+    {
+        // UTF-16 always starts with a byte order mark, which is never valid UTF-8
+        boolean isUtf16 = fileContents.length >= 2 &&
+            ((fileContents[0] == (byte) 0xFE && fileContents[1] == (byte) 0xFF) ||
+            (fileContents[0] == (byte) 0xFF && fileContents[1] == (byte) 0xFE));
+        Charset charset = isUtf16 ? StandardCharsets.UTF_16 : StandardCharsets.UTF_8;
+        Object root;
+
+        try(Reader reader = new InputStreamReader(new ByteArrayInputStream(fileContents), charset))
+        {
+            root = yaml.get().load(reader);
+        }
+        catch(YAMLException ex)
+        {
+            throw new InvalidConfigurationException(ex);
+        }
+
+        YamlConfiguration configuration = new YamlConfiguration();
+
+        if(root == null)
+        {
+            return configuration;
+        }
+
+        if(!(root instanceof Map))
+        {
+            throw new InvalidConfigurationException("Top level is not a Map.");
+        }
+
+        for(Map.Entry<?, ?> entry : ((Map<?, ?>) root).entrySet())
+        {
+            String key = String.valueOf(entry.getKey());
+
+            if(entry.getValue() instanceof Map)
+            {
+                configuration.createSection(key, (Map<?, ?>) entry.getValue());
+            }
+            else
+            {
+                configuration.set(key, entry.getValue());
+            }
+        }
+        return configuration;
+    }
+
+    /**
+     * Same options and (de)serialization of Bukkit objects as
+     * {@link YamlConfiguration}. Yaml instances are not thread safe, so
+     * every thread gets its own.
+     */
+    private static Yaml createYaml()
+    {
+        DumperOptions options = new DumperOptions();
+        options.setIndent(2);
+        options.setDefaultFlowStyle(DumperOptions.FlowStyle.BLOCK);
+        options.setAllowUnicode(true);
+
+        YamlRepresenter representer = new YamlRepresenter();
+        representer.setDefaultFlowStyle(DumperOptions.FlowStyle.BLOCK);
+
+        return new Yaml(new YamlConstructor(), representer, options);
+    }
+
+    private byte[] writePlayerDataBinary(IPlayerEntry entry) throws IOException
+    {
+        ByteArrayOutputStream sectionBytes = new ByteArrayOutputStream(1024);
+        DataOutputStream section = new DataOutputStream(sectionBytes);
+        ByteArrayOutputStream resultBytes = new ByteArrayOutputStream(4096);
+        DataOutputStream result = new DataOutputStream(resultBytes);
+
+        result.writeInt(BinaryUtils.MAGIC);
+        result.writeByte(BinaryUtils.VERSION);
+
+        section.writeLong(System.currentTimeMillis());
+        section.writeLong(entry.getRevision());
+        section.writeDouble(entry.getHealth());
+        section.writeInt(entry.getFoodLevel());
+        section.writeInt(entry.getXpLevel());
+        section.writeDouble(entry.getXpProgress());
+        BinaryUtils.writeString(section, entry.getGameMode().toString());
+        writeSection(result, BinaryUtils.SECTION_STATS, sectionBytes);
+
+        BinaryUtils.writeEffects(section, entry.getPotionEffects());
+        writeSection(result, BinaryUtils.SECTION_EFFECTS, sectionBytes);
+
+        writeInventorySection(result, BinaryUtils.SECTION_SURVIVAL, entry.getSurvival(), section, sectionBytes);
+        writeInventorySection(result, BinaryUtils.SECTION_CREATIVE, entry.getCreative(), section, sectionBytes);
+
+        // The ender chest is only serialized again if it changed since the last save
+        SectionCache sectionCache = (entry instanceof PlayerEntry) ?
+            ((PlayerEntry) entry).getSectionCache() : null;
+        ItemStack[] enderChest = entry.getEnderChest();
+        byte[] cached = (sectionCache != null) ? sectionCache.getEnderChestSection(enderChest) : null;
+
+        if(cached != null)
+        {
+            writeSection(result, BinaryUtils.SECTION_ENDER_CHEST, cached);
+        }
+        else
+        {
+            BinaryUtils.writeItemStacks(section, enderChest, itemStackCache);
+
+            if(sectionCache != null)
+            {
+                sectionCache.setEnderChestSection(enderChest, sectionBytes.toByteArray(), true);
+            }
+            writeSection(result, BinaryUtils.SECTION_ENDER_CHEST, sectionBytes);
+        }
+
+        result.writeByte(BinaryUtils.SECTION_END);
+        return resultBytes.toByteArray();
+    }
+
+    private void writeInventorySection(DataOutputStream out, int sectionId,
+        SavedInventory inventory, DataOutputStream section, ByteArrayOutputStream sectionBytes)
+        throws IOException
+    {
+        // Inventories kept aside for the other game mode are not modified, so
+        // the bytes of the last save (or load) are still valid
+        byte[] cached = inventory.getSerializedSection();
+
+        if(cached != null)
+        {
+            writeSection(out, sectionId, cached);
+            return;
+        }
+
+        BinaryUtils.writeItemStacks(section, inventory.getArmor(), itemStackCache);
+        BinaryUtils.writeItemStacks(section, inventory.getContents(), itemStackCache);
+        inventory.setSerializedSection(sectionBytes.toByteArray());
+        writeSection(out, sectionId, sectionBytes);
+    }
+
+    private void writeSection(DataOutputStream out, int sectionId, byte[] sectionBytes)
+        throws IOException
+    {
+        out.writeByte(sectionId);
+        out.writeInt(sectionBytes.length);
+        out.write(sectionBytes);
+    }
+
+    private void writeSection(DataOutputStream out, int sectionId,
+        ByteArrayOutputStream sectionBytes) throws IOException
+    {
+        out.writeByte(sectionId);
+        out.writeInt(sectionBytes.size());
+        sectionBytes.writeTo(out);
+        sectionBytes.reset();
+    }
+
+    private IPlayerEntry readPlayerDataYaml(String name, YamlConfiguration configuration)
+    {
+        ItemStack[] itemStacks;
+        ConfigurationSection section;
+        SavedInventory savedInventory;
+        List<PotionEffect> effects;
+        PlayerEntry entry = new PlayerEntry(name);
+
+        entry.setRevision(configuration.getLong("Revision", 0));
+        entry.setHealth(configuration.getDouble("Health", 20.0));
+        entry.setFoodLevel(configuration.getInt("Hunger", 20));
+        entry.setXpLevel(configuration.getInt("XpLevel", 0));
+        entry.setXpProgress(configuration.getDouble("XpProgress", 0.0));
+        entry.setGameMode(GameMode.valueOf(configuration.getString("Gamemode", "SURVIVAL")));
+
+        effects = PotionEffectUtils.toEffectList(configuration.getStringList("Effects"));
+        entry.setPotionEffects(effects);
+
+        section = configuration.getConfigurationSection("Survival");
+        savedInventory = InventoryUtils.toSavedInventory(section);
+        entry.setSurvival(savedInventory);
+
+        section = configuration.getConfigurationSection("Creative");
+        savedInventory = InventoryUtils.toSavedInventory(section);
+        entry.setCreative(savedInventory);
+
+        section = configuration.getConfigurationSection("EnderChest");
+        itemStacks = InventoryUtils.toItemStacks(section, 27);
+        entry.setEnderChest(itemStacks);
+
+        // TODO Meta section?
+
+        return entry;
+    }
+
+    private IPlayerEntry readPlayerDataBinary(String name, byte[] source) throws IOException
+    {
+        DataInputStream in = readBinaryHeader(source);
+        PlayerEntry entry = new PlayerEntry(name);
+        SectionCache sectionCache = new SectionCache();
+        SavedInventory savedInventory;
+        ItemStack[] armor;
+        ItemStack[] contents;
+
+        entry.setHealth(20.0);
+        entry.setFoodLevel(20);
+        entry.setGameMode(GameMode.SURVIVAL);
+
+        int offset = 5;
+        int sectionId;
+        while((sectionId = in.readUnsignedByte()) != BinaryUtils.SECTION_END)
+        {
+            int length = in.readInt();
+            offset += 5;
+
+            if(length < 0 || length > source.length - offset)
+            {
+                throw new EOFException("Truncated section " + sectionId);
+            }
+
+            // Every section is read from its own bytes, so fields added to
+            // the end of a section by a newer version are skipped
+            DataInputStream sectionIn = new DataInputStream(
+                new ByteArrayInputStream(source, offset, length));
+
+            switch(sectionId)
+            {
+                case BinaryUtils.SECTION_STATS:
+                    sectionIn.readLong(); // LastSave
+                    entry.setRevision(sectionIn.readLong());
+                    entry.setHealth(sectionIn.readDouble());
+                    entry.setFoodLevel(sectionIn.readInt());
+                    entry.setXpLevel(sectionIn.readInt());
+                    entry.setXpProgress(sectionIn.readDouble());
+                    entry.setGameMode(GameMode.valueOf(BinaryUtils.readString(sectionIn)));
+                    break;
+                case BinaryUtils.SECTION_EFFECTS:
+                    entry.setPotionEffects(BinaryUtils.readEffects(sectionIn));
+                    break;
+                case BinaryUtils.SECTION_SURVIVAL:
+                    armor = BinaryUtils.readItemStacks(sectionIn, 4, itemStackCache);
+                    contents = BinaryUtils.readItemStacks(sectionIn, 36, itemStackCache);
+                    savedInventory = new SavedInventory(armor, contents);
+                    savedInventory.setSerializedSection(Arrays.copyOfRange(source, offset, offset + length));
+                    entry.setSurvival(savedInventory);
+                    break;
+                case BinaryUtils.SECTION_CREATIVE:
+                    armor = BinaryUtils.readItemStacks(sectionIn, 4, itemStackCache);
+                    contents = BinaryUtils.readItemStacks(sectionIn, 36, itemStackCache);
+                    savedInventory = new SavedInventory(armor, contents);
+                    savedInventory.setSerializedSection(Arrays.copyOfRange(source, offset, offset + length));
+                    entry.setCreative(savedInventory);
+                    break;
+                case BinaryUtils.SECTION_ENDER_CHEST:
+                    entry.setEnderChest(BinaryUtils.readItemStacks(sectionIn, 27, itemStackCache));
+                    // The loaded array is only copied into the player, so no copy is needed
+                    sectionCache.setEnderChestSection(entry.getEnderChest(),
+                        Arrays.copyOfRange(source, offset, offset + length), false);
+                    break;
+                default:
+                    // Sections written by a newer version are skipped
+                    break;
+            }
+
+            offset += length;
+            in.skipBytes(length);
+        }
+
+        entry.setSectionCache(sectionCache);
+        return entry;
+    }
+
+    /**
+     * @return Stream positioned at the first section
+     */
+    private DataInputStream readBinaryHeader(byte[] source) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(source));
+
+        if(in.readInt() != BinaryUtils.MAGIC)
+        {
+            throw new IOException("Not a DeltaInventory binary file");
+        }
+
+        int version = in.readUnsignedByte();
+        if(version != BinaryUtils.VERSION)
+        {
+            throw new IOException("Unsupported binary version: " + version);
+        }
+        return in;
+    }
+}
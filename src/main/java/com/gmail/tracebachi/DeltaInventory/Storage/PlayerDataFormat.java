@@ -0,0 +1,55 @@
+/*
+ * This file is part of DeltaInventory.
+ *
+ * DeltaInventory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DeltaInventory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DeltaInventory.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gmail.tracebachi.DeltaInventory.Storage;
+
+public enum PlayerDataFormat
+{
+    YAML(".yml"),
+    BINARY(".dat");
+
+    private final String extension;
+
+    PlayerDataFormat(String extension)
+    {
+        this.extension = extension;
+    }
+
+    public String getExtension()
+    {
+        return extension;
+    }
+
+    public PlayerDataFormat getOther()
+    {
+        return (this == YAML) ? BINARY : YAML;
+    }
+
+    public static PlayerDataFormat fromName(String name)
+    {
+        if(name != null)
+        {
+            for(PlayerDataFormat format : values())
+            {
+                if(format.name().equalsIgnoreCase(name))
+                {
+                    return format;
+                }
+            }
+        }
+        return YAML;
+    }
+}
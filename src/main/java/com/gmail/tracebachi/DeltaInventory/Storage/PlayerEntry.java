@@ -30,6 +30,7 @@ import java.util.Collections;
 public class PlayerEntry implements IPlayerEntry
 {
     private final String name;
+    private long revision;
     private double health;
     private int foodLevel;
     private int xpLevel;
@@ -39,6 +40,7 @@ public class PlayerEntry implements IPlayerEntry
     private SavedInventory survival;
     private SavedInventory creative;
     private ItemStack[] enderChest;
+    private SectionCache sectionCache;
 
     public PlayerEntry(String name)
     {
@@ -52,6 +54,17 @@ public class PlayerEntry implements IPlayerEntry
         return name;
     }
 
+    @Override
+    public long getRevision()
+    {
+        return revision;
+    }
+
+    public void setRevision(long revision)
+    {
+        this.revision = revision;
+    }
+
     @Override
     public double getHealth()
     {
@@ -150,4 +163,17 @@ public class PlayerEntry implements IPlayerEntry
     {
         this.enderChest = enderChest;
     }
+
+    /**
+     * @return Serialized sections of the player that may be reused, or null
+     */
+    public SectionCache getSectionCache()
+    {
+        return sectionCache;
+    }
+
+    public void setSectionCache(SectionCache sectionCache)
+    {
+        this.sectionCache = sectionCache;
+    }
 }
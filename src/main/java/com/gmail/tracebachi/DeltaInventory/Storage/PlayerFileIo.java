@@ -0,0 +1,202 @@
+/*
+ * This file is part of DeltaInventory.
+ *
+ * DeltaInventory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DeltaInventory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DeltaInventory.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gmail.tracebachi.DeltaInventory.Storage;
+
+import com.google.common.base.Preconditions;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads and writes whole player files while holding a file lock, so servers
+ * sharing the player data folder never see a partially written file.
+ *
+ * Files are transferred through pooled direct buffers. Files of at least
+ * the map threshold are read through a memory mapping instead, which skips
+ * the copy into a buffer.
+ */
+public class PlayerFileIo
+{
+    private final BufferPool bufferPool;
+    private final long mapThreshold;
+    private final AtomicLong mappedReads = new AtomicLong();
+
+    /**
+     * @param bufferPool Pool of buffers to transfer files through
+     * @param mapThreshold Size (in bytes) from which files are read through
+     *                     a memory mapping
+     */
+    public PlayerFileIo(BufferPool bufferPool, long mapThreshold)
+    {
+        Preconditions.checkNotNull(bufferPool, "Buffer pool cannot be null.");
+        Preconditions.checkArgument(mapThreshold > 0, "Map threshold must be positive.");
+
+        this.bufferPool = bufferPool;
+        this.mapThreshold = mapThreshold;
+    }
+
+    public BufferPool getBufferPool()
+    {
+        return bufferPool;
+    }
+
+    /**
+     * @return Number of files read through a memory mapping
+     */
+    public long getMappedReadCount()
+    {
+        return mappedReads.get();
+    }
+
+    /**
+     * @param path File to read
+     * @return Contents of the file
+     * @throws java.nio.file.NoSuchFileException If the file does not exist
+     */
+    public byte[] read(Path path) throws IOException
+    {
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+            FileLock ignored = channel.lock(0, Long.MAX_VALUE, true))
+        {
+            long size = channel.size();
+
+            if(size > Integer.MAX_VALUE)
+            {
+                throw new IOException(path + " is too large (" + size + " bytes)");
+            }
+
+            byte[] result = new byte[(int) size];
+
+            if(size >= mapThreshold)
+            {
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                mapped.get(result);
+                mappedReads.incrementAndGet();
+                return result;
+            }
+
+            ByteBuffer buffer = bufferPool.acquire();
+
+            try
+            {
+                int offset = 0;
+
+                while(offset < result.length)
+                {
+                    buffer.clear();
+                    buffer.limit(Math.min(buffer.capacity(), result.length - offset));
+
+                    if(channel.read(buffer, offset) < 0)
+                    {
+                        throw new EOFException(path + " ended early");
+                    }
+
+                    buffer.flip();
+                    int count = buffer.remaining();
+                    buffer.get(result, offset, count);
+                    offset += count;
+                }
+            }
+            finally
+            {
+                bufferPool.release(buffer);
+            }
+
+            return result;
+        }
+    }
+
+    public boolean write(byte[] source, Path path, boolean forceToDisk)
+    {
+        return write(source, path, forceToDisk, null);
+    }
+
+    /**
+     * @param whileLocked Runs after a successful write, before the file lock
+     * is released, so no other writer can change the file in between
+     */
+    public boolean write(byte[] source, Path path, boolean forceToDisk, Runnable whileLocked)
+    {
+        try
+        {
+            Path directory = path.getParent();
+
+            if(directory != null)
+            {
+                Files.createDirectories(directory);
+            }
+
+            try(FileChannel channel = FileChannel.open(path,
+                    StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+                FileLock ignored = channel.lock())
+            {
+                // Truncate the file (delete the current contents)
+                channel.truncate(0);
+
+                ByteBuffer buffer = bufferPool.acquire();
+
+                try
+                {
+                    int offset = 0;
+
+                    while(offset < source.length)
+                    {
+                        int count = Math.min(buffer.capacity(), source.length - offset);
+
+                        buffer.clear();
+                        buffer.put(source, offset, count);
+                        buffer.flip();
+
+                        while(buffer.hasRemaining())
+                        {
+                            channel.write(buffer);
+                        }
+                        offset += count;
+                    }
+                }
+                finally
+                {
+                    bufferPool.release(buffer);
+                }
+
+                if(forceToDisk)
+                {
+                    channel.force(false);
+                }
+
+                if(whileLocked != null)
+                {
+                    whileLocked.run();
+                }
+                return true;
+            }
+        }
+        catch(IOException ex)
+        {
+            ex.printStackTrace();
+            return false;
+        }
+    }
+}
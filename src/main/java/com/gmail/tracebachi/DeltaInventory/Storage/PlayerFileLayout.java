@@ -0,0 +1,85 @@
+/*
+ * This file is part of DeltaInventory.
+ *
+ * DeltaInventory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DeltaInventory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DeltaInventory.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gmail.tracebachi.DeltaInventory.Storage;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * Subfolders of the player data folder that player files are kept in.
+ */
+public enum PlayerFileLayout
+{
+    /**
+     * [first letter]/[name], which puts most players in a few huge folders
+     */
+    FIRST_CHARACTER,
+
+    /**
+     * [xx]/[yy]/[name] where xx and yy are taken from a hash of the name,
+     * which spreads players evenly over 65536 small folders
+     */
+    HASHED;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * @param name Lowercase name of the player
+     * @return Path of the player's folder relative to the player data folder
+     */
+    public String getSubfolder(String name)
+    {
+        if(this == FIRST_CHARACTER)
+        {
+            return String.valueOf(name.charAt(0));
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(name.getBytes(StandardCharsets.UTF_8));
+        int hash = (int) crc.getValue();
+
+        return new String(new char[]{
+            HEX[(hash >>> 12) & 0xF], HEX[(hash >>> 8) & 0xF],
+            File.separatorChar,
+            HEX[(hash >>> 4) & 0xF], HEX[hash & 0xF]});
+    }
+
+    /**
+     * @param folderName Name of a folder directly in the player data folder
+     * @return True if the folder belongs to this layout
+     */
+    public boolean isTopLevelFolder(String folderName)
+    {
+        return (this == FIRST_CHARACTER) ? folderName.length() == 1 : folderName.length() == 2;
+    }
+
+    public static PlayerFileLayout fromName(String name)
+    {
+        if(name != null)
+        {
+            for(PlayerFileLayout layout : values())
+            {
+                if(layout.name().equalsIgnoreCase(name))
+                {
+                    return layout;
+                }
+            }
+        }
+        return FIRST_CHARACTER;
+    }
+}
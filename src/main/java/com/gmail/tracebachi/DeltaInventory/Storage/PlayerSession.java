@@ -0,0 +1,278 @@
+/*
+ * This file is part of DeltaInventory.
+ *
+ * DeltaInventory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DeltaInventory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DeltaInventory.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gmail.tracebachi.DeltaInventory.Storage;
+
+import com.google.common.base.Preconditions;
+import org.bukkit.entity.Player;
+
+import java.util.UUID;
+
+/**
+ * Everything DeltaInventory tracks about an online player. Only the lock
+ * state may be read from other threads; everything else belongs to the
+ * main thread.
+ */
+public class PlayerSession
+{
+    private final UUID uuid;
+    private final String name;
+
+    private volatile boolean locked;
+    private volatile long lastLockMessageAt;
+    private volatile long lockedAt;
+
+    private boolean authenticated;
+    private boolean ignoreModeChangeOnce;
+    private String switchDestination;
+    private long switchRequestedAt;
+    private long switchStartedAt;
+    private InventoryPair inventoryPair;
+    private SectionCache sectionCache;
+    private boolean singleInventory;
+    private boolean forcedModeBypass;
+    private boolean hasSavedFingerprint;
+    private long savedFingerprint;
+    private long revision;
+
+    public PlayerSession(Player player)
+    {
+        Preconditions.checkNotNull(player, "Player cannot be null.");
+
+        this.uuid = player.getUniqueId();
+        this.name = player.getName().toLowerCase();
+        refreshPermissions(player);
+    }
+
+    public UUID getUuid()
+    {
+        return uuid;
+    }
+
+    /**
+     * @return Lowercase name of the player
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+    public boolean isLocked()
+    {
+        return locked;
+    }
+
+    /**
+     * Use {@link PlayerSessions#setLocked(PlayerSession, boolean)} so the
+     * number of locked sessions stays correct.
+     *
+     * @return True if the lock state changed
+     */
+    boolean setLocked(boolean locked)
+    {
+        boolean changed = this.locked != locked;
+
+        if(changed && locked)
+        {
+            this.lockedAt = System.nanoTime();
+        }
+
+        this.locked = locked;
+        return changed;
+    }
+
+    /**
+     * @return {@link System#nanoTime()} of when the session was last locked
+     */
+    public long getLockedAt()
+    {
+        return lockedAt;
+    }
+
+    /**
+     * @param intervalMillis Minimum time between lock messages
+     * @return True if the player should be told about the lock now
+     */
+    public boolean shouldSendLockMessage(long intervalMillis)
+    {
+        long currentTime = System.currentTimeMillis();
+
+        if(currentTime - lastLockMessageAt >= intervalMillis)
+        {
+            lastLockMessageAt = currentTime;
+            return true;
+        }
+        return false;
+    }
+
+    public boolean isAuthenticated()
+    {
+        return authenticated;
+    }
+
+    public void setAuthenticated(boolean authenticated)
+    {
+        this.authenticated = authenticated;
+    }
+
+    public void setIgnoreModeChangeOnce()
+    {
+        this.ignoreModeChangeOnce = true;
+    }
+
+    /**
+     * @return True if the next game mode change should be ignored (which
+     * also clears the flag)
+     */
+    public boolean consumeIgnoreModeChangeOnce()
+    {
+        boolean result = ignoreModeChangeOnce;
+        this.ignoreModeChangeOnce = false;
+        return result;
+    }
+
+    /**
+     * @return Server the player asked to switch to or null
+     */
+    public String getSwitchDestination()
+    {
+        return switchDestination;
+    }
+
+    public long getSwitchRequestedAt()
+    {
+        return switchRequestedAt;
+    }
+
+    public void setSwitchRequest(String destination, long requestedAt)
+    {
+        this.switchDestination = destination;
+        this.switchRequestedAt = requestedAt;
+    }
+
+    /**
+     * @return {@link System#nanoTime()} of when the player last asked to
+     * switch servers (unlike the request time, this is not renewed when the
+     * save completes)
+     */
+    public long getSwitchStartedAt()
+    {
+        return switchStartedAt;
+    }
+
+    public void setSwitchStartedAt(long switchStartedAt)
+    {
+        this.switchStartedAt = switchStartedAt;
+    }
+
+    public void clearSwitchRequest()
+    {
+        this.switchDestination = null;
+        this.switchRequestedAt = 0;
+    }
+
+    /**
+     * @return Inventories kept for the game modes the player is not in, or
+     * null if the player's data has not been loaded
+     */
+    public InventoryPair getInventoryPair()
+    {
+        return inventoryPair;
+    }
+
+    public void setInventoryPair(InventoryPair inventoryPair)
+    {
+        this.inventoryPair = inventoryPair;
+    }
+
+    public SectionCache getSectionCache()
+    {
+        return sectionCache;
+    }
+
+    public void setSectionCache(SectionCache sectionCache)
+    {
+        this.sectionCache = sectionCache;
+    }
+
+    /**
+     * @return Cached result of the DeltaInv.SingleInv permission check
+     */
+    public boolean isSingleInventory()
+    {
+        return singleInventory;
+    }
+
+    /**
+     * @return Cached result of the DeltaInv.Forced.Bypass permission check
+     */
+    public boolean isForcedModeBypass()
+    {
+        return forcedModeBypass;
+    }
+
+    /**
+     * @param fingerprint Fingerprint of the current state of the player
+     * @return True if the state is the same as when it was last loaded or
+     * saved (by an autosave)
+     */
+    public boolean isSavedFingerprint(long fingerprint)
+    {
+        return hasSavedFingerprint && savedFingerprint == fingerprint;
+    }
+
+    public void setSavedFingerprint(long fingerprint)
+    {
+        this.hasSavedFingerprint = true;
+        this.savedFingerprint = fingerprint;
+    }
+
+    /**
+     * Forgets the fingerprint, so the next autosave saves the player even
+     * if nothing changed (such as after a failed save).
+     */
+    public void clearSavedFingerprint()
+    {
+        this.hasSavedFingerprint = false;
+    }
+
+    /**
+     * @param revision Revision of the data the player was loaded from
+     */
+    public void setRevision(long revision)
+    {
+        this.revision = revision;
+    }
+
+    /**
+     * @return Revision for the next save of the player, which is higher than
+     * the loaded revision and every revision saved before
+     */
+    public long nextRevision()
+    {
+        return ++revision;
+    }
+
+    /**
+     * Checks the permissions again. Called when the session is created and
+     * whenever the player's data is loaded.
+     */
+    public void refreshPermissions(Player player)
+    {
+        this.singleInventory = player.hasPermission("DeltaInv.SingleInv");
+        this.forcedModeBypass = player.hasPermission("DeltaInv.Forced.Bypass");
+    }
+}
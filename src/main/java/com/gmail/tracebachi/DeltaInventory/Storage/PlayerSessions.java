@@ -0,0 +1,106 @@
+/*
+ * This file is part of DeltaInventory.
+ *
+ * DeltaInventory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DeltaInventory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DeltaInventory.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gmail.tracebachi.DeltaInventory.Storage;
+
+import org.bukkit.Bukkit;
+import org.bukkit.entity.HumanEntity;
+import org.bukkit.entity.Player;
+
+import java.util.Collection;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sessions of online players keyed by UUID. Sessions are created and
+ * removed on the main thread, but may be looked up from any thread.
+ */
+public class PlayerSessions
+{
+    private final ConcurrentHashMap<UUID, PlayerSession> sessions = new ConcurrentHashMap<>(64);
+    private final AtomicInteger lockedCount = new AtomicInteger();
+
+    /**
+     * @return Session of the player or null if none was started
+     */
+    public PlayerSession get(HumanEntity player)
+    {
+        return sessions.get(player.getUniqueId());
+    }
+
+    /**
+     * Looks up a session by name for callbacks that only know the name. The
+     * player may no longer be online, in which case null is returned.
+     *
+     * @param name Name of the player
+     * @return Session of the player or null
+     */
+    public PlayerSession get(String name)
+    {
+        Player player = Bukkit.getPlayerExact(name);
+        return (player != null) ? sessions.get(player.getUniqueId()) : null;
+    }
+
+    public PlayerSession getOrCreate(Player player)
+    {
+        return sessions.computeIfAbsent(player.getUniqueId(), (uuid) -> new PlayerSession(player));
+    }
+
+    public PlayerSession remove(Player player)
+    {
+        PlayerSession session = sessions.remove(player.getUniqueId());
+
+        if(session != null && session.setLocked(false))
+        {
+            lockedCount.decrementAndGet();
+        }
+        return session;
+    }
+
+    /**
+     * @return True if the lock state of the session changed
+     */
+    public boolean setLocked(PlayerSession session, boolean locked)
+    {
+        if(!session.setLocked(locked))
+        {
+            return false;
+        }
+
+        lockedCount.addAndGet(locked ? 1 : -1);
+        return true;
+    }
+
+    /**
+     * @return True if any session is locked
+     */
+    public boolean hasLocked()
+    {
+        return lockedCount.get() > 0;
+    }
+
+    public Collection<PlayerSession> getAll()
+    {
+        return sessions.values();
+    }
+
+    public void clear()
+    {
+        sessions.clear();
+        lockedCount.set(0);
+    }
+}
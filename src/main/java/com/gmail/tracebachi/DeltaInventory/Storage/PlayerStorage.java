@@ -0,0 +1,75 @@
+/*
+ * This file is part of DeltaInventory.
+ *
+ * DeltaInventory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DeltaInventory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DeltaInventory.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gmail.tracebachi.DeltaInventory.Storage;
+
+import java.io.IOException;
+
+/**
+ * Where player data is kept. Implementations store the encoded bytes of one
+ * entry per player and must be safe to use from multiple threads.
+ */
+public interface PlayerStorage
+{
+    /**
+     * Called once before the storage is used.
+     */
+    void start() throws IOException;
+
+    /**
+     * Called once after the last use of the storage.
+     */
+    void shutdown();
+
+    /**
+     * @param name Lowercase name of the player
+     * @return Stored data of the player or null if there is none
+     * @throws IOException If the data exists but could not be read
+     */
+    StoredPlayerData read(String name) throws IOException;
+
+    /**
+     * Returns a token that changes whenever the data of the player changes,
+     * without reading the data. Used to check if data read earlier (such as
+     * by a prefetch) is still current.
+     *
+     * @param name Lowercase name of the player
+     * @return Version token (compared with equals) or null if there is no data
+     */
+    Object getVersion(String name);
+
+    /**
+     * Returns the wall clock time the data of the player was last written,
+     * by any server. Only used to tell if item index rows of the player are
+     * older than the stored data.
+     *
+     * @param name Lowercase name of the player
+     * @return Time in milliseconds or 0 if there is no data
+     */
+    long getSavedAt(String name);
+
+    /**
+     * @param name Lowercase name of the player
+     * @param format Format the data was encoded with
+     * @param data Encoded data
+     * @param forceToDisk True if the data must be on disk when this returns
+     * @param isRereadLikely True if the data is likely to be read again soon
+     *                       by this server (such as when a player quits)
+     * @return True if the data was written
+     */
+    boolean write(String name, PlayerDataFormat format, byte[] data, boolean forceToDisk,
+        boolean isRereadLikely);
+}
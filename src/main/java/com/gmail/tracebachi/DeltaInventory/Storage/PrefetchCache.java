@@ -0,0 +1,235 @@
+/*
+ * This file is part of DeltaInventory.
+ *
+ * DeltaInventory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DeltaInventory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DeltaInventory.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gmail.tracebachi.DeltaInventory.Storage;
+
+import com.gmail.tracebachi.DeltaInventory.Runnables.PlayerLoad;
+
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Short-lived holding area for player data that was read before the player
+ * finished authenticating. Entries are taken once and expire if they are
+ * not taken in time. Saves of the player (by any server) discard them unless
+ * they were read with at least the saved revision.
+ */
+public class PrefetchCache
+{
+    private final long expireAfterMillis;
+    private final long waitMillis;
+    private final ConcurrentHashMap<String, Prefetch> prefetches = new ConcurrentHashMap<>(32);
+    private final ConcurrentHashMap<String, SavedRevision> savedRevisions = new ConcurrentHashMap<>(32);
+
+    public PrefetchCache(long expireAfterMillis, long waitMillis)
+    {
+        this.expireAfterMillis = expireAfterMillis;
+        this.waitMillis = waitMillis;
+    }
+
+    /**
+     * Registers a prefetch for the player if there is none yet.
+     *
+     * @param name Name of the player
+     * @return Prefetch to run or null if the player already has a prefetch
+     */
+    public Prefetch start(String name)
+    {
+        removeExpired();
+
+        Prefetch prefetch = new Prefetch();
+        return (prefetches.putIfAbsent(name, prefetch) == null) ? prefetch : null;
+    }
+
+    /**
+     * Removes the prefetch of the player. A prefetch that has not started
+     * yet is cancelled (the caller can load faster itself), while one that
+     * is running is waited on for a short time.
+     *
+     * @param name Name of the player
+     * @return Prefetched result or null if there is none (or it failed)
+     */
+    public PlayerLoad.Result take(String name)
+    {
+        Prefetch prefetch = prefetches.remove(name);
+
+        if(prefetch == null || prefetch.isExpired() || prefetch.cancelIfQueued())
+        {
+            return null;
+        }
+
+        try
+        {
+            PlayerLoad.Result result = prefetch.future.get(waitMillis, TimeUnit.MILLISECONDS);
+
+            // A save announced while (or before) the data was read may not
+            // have been visible to the read
+            return (result != null && result.getRevision() >= getSavedRevision(name)) ? result : null;
+        }
+        catch(InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        catch(ExecutionException | TimeoutException ex)
+        {
+            return null;
+        }
+    }
+
+    public void discard(String name)
+    {
+        prefetches.remove(name);
+    }
+
+    /**
+     * Discards the prefetch of the player (even one that is still running)
+     * unless it already read at least the saved revision. The revision is
+     * remembered, so a prefetch that is started before the saved data can
+     * be read is not used either.
+     *
+     * @param name Name of the player
+     * @param revision Revision of the data that was saved
+     */
+    public void onSaved(String name, long revision)
+    {
+        savedRevisions.merge(name, new SavedRevision(revision),
+            (older, newer) -> (older.revision >= newer.revision && !older.isExpired()) ? older : newer);
+
+        Prefetch prefetch = prefetches.get(name);
+
+        if(prefetch != null && !prefetch.hasRead(revision))
+        {
+            prefetches.remove(name, prefetch);
+            prefetch.cancelIfQueued();
+        }
+    }
+
+    public int size()
+    {
+        return prefetches.size();
+    }
+
+    public void clear()
+    {
+        prefetches.clear();
+        savedRevisions.clear();
+    }
+
+    private long getSavedRevision(String name)
+    {
+        SavedRevision savedRevision = savedRevisions.get(name);
+        return (savedRevision != null && !savedRevision.isExpired()) ? savedRevision.revision : -1;
+    }
+
+    private void removeExpired()
+    {
+        Iterator<Prefetch> iterator = prefetches.values().iterator();
+
+        while(iterator.hasNext())
+        {
+            if(iterator.next().isExpired())
+            {
+                iterator.remove();
+            }
+        }
+
+        Iterator<SavedRevision> savedIterator = savedRevisions.values().iterator();
+
+        while(savedIterator.hasNext())
+        {
+            if(savedIterator.next().isExpired())
+            {
+                savedIterator.remove();
+            }
+        }
+    }
+
+    public class Prefetch
+    {
+        private static final int QUEUED = 0;
+        private static final int RUNNING = 1;
+        private static final int CANCELLED = 2;
+
+        private final long createdAt = System.currentTimeMillis();
+        private final AtomicInteger state = new AtomicInteger(QUEUED);
+        private final CompletableFuture<PlayerLoad.Result> future = new CompletableFuture<>();
+
+        /**
+         * @return True if the prefetch should run, false if it was cancelled
+         */
+        public boolean begin()
+        {
+            return state.compareAndSet(QUEUED, RUNNING);
+        }
+
+        public void complete(PlayerLoad.Result result)
+        {
+            future.complete(result);
+        }
+
+        public void fail(Throwable throwable)
+        {
+            future.completeExceptionally(throwable);
+        }
+
+        /**
+         * @return True if the prefetch completed and read data with at least
+         * the revision
+         */
+        private boolean hasRead(long revision)
+        {
+            if(!future.isDone() || future.isCompletedExceptionally())
+            {
+                return false;
+            }
+
+            PlayerLoad.Result result = future.join();
+            return result != null && result.getRevision() >= revision;
+        }
+
+        private boolean cancelIfQueued()
+        {
+            return state.compareAndSet(QUEUED, CANCELLED);
+        }
+
+        private boolean isExpired()
+        {
+            return System.currentTimeMillis() - createdAt > expireAfterMillis;
+        }
+    }
+
+    private class SavedRevision
+    {
+        private final long savedAt = System.currentTimeMillis();
+        private final long revision;
+
+        private SavedRevision(long revision)
+        {
+            this.revision = revision;
+        }
+
+        private boolean isExpired()
+        {
+            return System.currentTimeMillis() - savedAt > expireAfterMillis;
+        }
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * This file is part of DeltaInventory.
+ *
+ * DeltaInventory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DeltaInventory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DeltaInventory.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gmail.tracebachi.DeltaInventory.Storage;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size and time bounded LRU cache of the bytes this server last wrote to a
+ * player file. An entry is invalidated as soon as another server announces
+ * a save of the player (see SaveBroadcastListener), and is only used while
+ * the player file still has the same size, modification time and file key
+ * as right after it was written.
+ *
+ * The announcement is what makes this safe with a shared folder, since a
+ * save by another server with the same size within the resolution of the
+ * modification time (or hidden by attribute caching on network file
+ * systems) keeps the same stamp.
+ */
+public class RecentEntryCache
+{
+    private final int maxEntries;
+    private final long maxBytes;
+    private final long expireAfterMillis;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final LinkedHashMap<String, CachedEntry> entries;
+    private long totalBytes;
+
+    public RecentEntryCache(int maxEntries, long maxBytes, long expireAfterMillis)
+    {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.expireAfterMillis = expireAfterMillis;
+        this.entries = new LinkedHashMap<>(64, 0.75f, true);
+    }
+
+    /**
+     * Caches bytes that were just written to the path. Must be called while
+     * the file lock is still held so the stamp matches the written bytes.
+     *
+     * @param name Name of the player
+     * @param path Path of the player file that was written
+     * @param data Bytes of the player file
+     */
+    public void put(String name, Path path, byte[] data)
+    {
+        Object stamp = readStamp(path);
+
+        synchronized(entries)
+        {
+            remove(name);
+
+            if(stamp == null || data.length > maxBytes) { return; }
+
+            entries.put(name, new CachedEntry(path, data, stamp));
+            totalBytes += data.length;
+
+            while(entries.size() > maxEntries || totalBytes > maxBytes)
+            {
+                remove(entries.keySet().iterator().next());
+            }
+        }
+    }
+
+    /**
+     * @param name Name of the player
+     * @param path Path of the player file that would be read
+     * @return Cached entry if the player file has not changed since it was
+     * cached, otherwise null
+     */
+    public CachedEntry get(String name, Path path)
+    {
+        CachedEntry entry;
+
+        synchronized(entries)
+        {
+            entry = entries.get(name);
+
+            if(entry != null && (entry.isExpired() || !entry.path.equals(path)))
+            {
+                remove(name);
+                entry = null;
+            }
+        }
+
+        // Checked outside of the lock as it touches the disk
+        if(entry != null && entry.stamp.equals(readStamp(path)))
+        {
+            hits.incrementAndGet();
+            return entry;
+        }
+
+        if(entry != null)
+        {
+            invalidate(name);
+        }
+
+        misses.incrementAndGet();
+        return null;
+    }
+
+    public void invalidate(String name)
+    {
+        synchronized(entries)
+        {
+            remove(name);
+        }
+    }
+
+    public int size()
+    {
+        synchronized(entries)
+        {
+            return entries.size();
+        }
+    }
+
+    public long getTotalBytes()
+    {
+        synchronized(entries)
+        {
+            return totalBytes;
+        }
+    }
+
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    public double getHitRatio()
+    {
+        long total = hits.get() + misses.get();
+        return (total == 0) ? 0.0 : hits.get() / (double) total;
+    }
+
+    public void clear()
+    {
+        synchronized(entries)
+        {
+            entries.clear();
+            totalBytes = 0;
+        }
+    }
+
+    private void remove(String name)
+    {
+        CachedEntry removed = entries.remove(name);
+
+        if(removed != null)
+        {
+            totalBytes -= removed.data.length;
+        }
+    }
+
+    private static Object readStamp(Path path)
+    {
+        try
+        {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            return new Stamp(attributes.size(), attributes.lastModifiedTime(), attributes.fileKey());
+        }
+        catch(IOException ex)
+        {
+            return null;
+        }
+    }
+
+    public class CachedEntry
+    {
+        private final long cachedAt = System.currentTimeMillis();
+        private final Path path;
+        private final byte[] data;
+        private final Object stamp;
+
+        private CachedEntry(Path path, byte[] data, Object stamp)
+        {
+            this.path = path;
+            this.data = data;
+            this.stamp = stamp;
+        }
+
+        public byte[] getData()
+        {
+            return data;
+        }
+
+        private boolean isExpired()
+        {
+            return System.currentTimeMillis() - cachedAt > expireAfterMillis;
+        }
+    }
+
+    private static class Stamp
+    {
+        private final long size;
+        private final FileTime lastModified;
+        private final Object fileKey;
+
+        private Stamp(long size, FileTime lastModified, Object fileKey)
+        {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.fileKey = fileKey;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if(this == o) { return true; }
+            if(!(o instanceof Stamp)) { return false; }
+
+            // FileTime compares at the full precision of the file system
+            Stamp other = (Stamp) o;
+            return size == other.size && lastModified.equals(other.lastModified) &&
+                Objects.equals(fileKey, other.fileKey);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(size, lastModified, fileKey);
+        }
+    }
+}
@@ -0,0 +1,599 @@
+/*
+ * This file is part of DeltaInventory.
+ *
+ * DeltaInventory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DeltaInventory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DeltaInventory.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gmail.tracebachi.DeltaInventory.Storage;
+
+import com.gmail.tracebachi.DeltaInventory.DeltaInventoryPlugin;
+import com.google.common.base.Preconditions;
+import org.bukkit.configuration.InvalidConfigurationException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of saved player data.
+ *
+ * Saves are appended to the active segment by a single writer thread which
+ * writes every queued save and then forces the segment to disk once for the
+ * whole batch (group commit). A compactor thread writes the latest data of
+ * each player to the {@link PlayerStorage}, after which fully compacted
+ * segments are deleted. Anything left in the segments after a crash is
+ * replayed on startup, except for players whose stored data has a higher
+ * revision than the record (because another server saved them since).
+ *
+ * Record layout: int bodyLength, int crc32(body), body = [long revision,
+ * int nameLength, name, int formatLength, format, data] with strings in
+ * UTF-8.
+ */
+public class SaveJournal
+{
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final File folder;
+    private final long segmentSize;
+    private final long compactDelay;
+    private final DeltaInventoryPlugin plugin;
+
+    private final LinkedBlockingQueue<PendingAppend> queue = new LinkedBlockingQueue<>();
+    private final ConcurrentHashMap<String, JournalEntry> uncompacted = new ConcurrentHashMap<>(32);
+    private final ConcurrentSkipListSet<Long> segments = new ConcurrentSkipListSet<>();
+    private final Semaphore compactSignal = new Semaphore(0);
+    private final Object compactLock = new Object();
+
+    private volatile boolean running;
+    private volatile long activeSegment;
+    private FileChannel activeChannel;
+    private Thread writerThread;
+    private Thread compactorThread;
+
+    public SaveJournal(File folder, long segmentSize, long compactDelay, DeltaInventoryPlugin plugin)
+    {
+        Preconditions.checkNotNull(folder, "Folder cannot be null.");
+        Preconditions.checkNotNull(plugin, "Plugin cannot be null.");
+        Preconditions.checkArgument(segmentSize > 0, "Segment size must be positive.");
+
+        this.folder = folder;
+        this.segmentSize = segmentSize;
+        this.compactDelay = Math.max(0, compactDelay);
+        this.plugin = plugin;
+    }
+
+    /**
+     * Replays any segments left behind by a previous run, writes their
+     * latest entries to the player files and opens a new segment.
+     *
+     * @throws IOException if the journal folder could not be prepared
+     */
+    public void start() throws IOException
+    {
+        if(!folder.exists() && !folder.mkdirs())
+        {
+            throw new IOException("Failed to create journal folder: " + folder);
+        }
+
+        long lastSegment = replay();
+        int replayed = uncompacted.size();
+
+        if(replayed > 0)
+        {
+            plugin.info("Replaying " + replayed + " uncompacted journal entries ...");
+        }
+
+        compact();
+        openSegment(lastSegment + 1);
+        deleteCompactedSegments();
+
+        running = true;
+        writerThread = new Thread(this::runWriter, "DeltaInventory-Journal-Writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+        compactorThread = new Thread(this::runCompactor, "DeltaInventory-Journal-Compactor");
+        compactorThread.setDaemon(true);
+        compactorThread.start();
+    }
+
+    /**
+     * Stops accepting appends, waits for queued appends to be committed and
+     * compacts everything that is left.
+     */
+    public void shutdown()
+    {
+        running = false;
+        compactSignal.release();
+
+        joinQuietly(writerThread);
+        joinQuietly(compactorThread);
+
+        compact();
+        closeActiveChannel();
+        deleteCompactedSegments();
+    }
+
+    /**
+     * Appends data of a player and blocks until it has been committed to the
+     * journal.
+     *
+     * @param name Name of the player the data belongs to
+     * @param format Format of the data
+     * @param data Encoded data
+     * @param revision Revision of the data
+     * @param writeThrough True if the data should also be written to storage
+     *                     before returning (for data other servers are about
+     *                     to read)
+     * @return True if the data is durable in the journal (and storage)
+     */
+    public boolean append(String name, PlayerDataFormat format, byte[] data, long revision,
+        boolean writeThrough)
+    {
+        if(!running)
+        {
+            return false;
+        }
+
+        PendingAppend pending = new PendingAppend(name, format, data, revision);
+        queue.add(pending);
+
+        try
+        {
+            if(!pending.future.get(30, TimeUnit.SECONDS))
+            {
+                return false;
+            }
+        }
+        catch(InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        catch(ExecutionException | TimeoutException ex)
+        {
+            ex.printStackTrace();
+            return false;
+        }
+
+        return !writeThrough || compact(name);
+    }
+
+    /**
+     * @param name Name of the player
+     * @return Latest committed entry which is not yet in the player file
+     * or null
+     */
+    public JournalEntry getUncompacted(String name)
+    {
+        return uncompacted.get(name);
+    }
+
+    private void runWriter()
+    {
+        List<PendingAppend> batch = new ArrayList<>(64);
+
+        while(running || !queue.isEmpty())
+        {
+            try
+            {
+                PendingAppend first = queue.poll(250, TimeUnit.MILLISECONDS);
+                if(first == null) { continue; }
+
+                batch.add(first);
+                queue.drainTo(batch);
+                commit(batch);
+            }
+            catch(InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            finally
+            {
+                batch.clear();
+            }
+        }
+
+        // Fail anything that raced with shutdown
+        PendingAppend pending;
+        while((pending = queue.poll()) != null)
+        {
+            pending.future.complete(false);
+        }
+    }
+
+    private void commit(List<PendingAppend> batch)
+    {
+        try
+        {
+            if(activeChannel.size() >= segmentSize)
+            {
+                closeActiveChannel();
+                openSegment(activeSegment + 1);
+            }
+
+            for(PendingAppend pending : batch)
+            {
+                ByteBuffer buffer = ByteBuffer.wrap(pending.record);
+                while(buffer.hasRemaining())
+                {
+                    activeChannel.write(buffer);
+                }
+            }
+
+            // One fsync for the whole batch
+            activeChannel.force(false);
+
+            for(PendingAppend pending : batch)
+            {
+                uncompacted.put(pending.name, new JournalEntry(pending.format, pending.data,
+                    activeSegment, pending.revision, false));
+                pending.future.complete(true);
+            }
+
+            plugin.debug("Committed " + batch.size() + " journal entries");
+            compactSignal.release();
+        }
+        catch(IOException ex)
+        {
+            ex.printStackTrace();
+
+            for(PendingAppend pending : batch)
+            {
+                pending.future.complete(false);
+            }
+        }
+    }
+
+    private void runCompactor()
+    {
+        while(running)
+        {
+            try
+            {
+                compactSignal.acquire();
+                compactSignal.drainPermits();
+
+                // Give other saves a chance to land so they are written once
+                if(compactDelay > 0)
+                {
+                    Thread.sleep(compactDelay);
+                }
+            }
+            catch(InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+                break;
+            }
+
+            compact();
+            deleteCompactedSegments();
+        }
+    }
+
+    private void compact()
+    {
+        for(String name : uncompacted.keySet())
+        {
+            compact(name);
+        }
+    }
+
+    private boolean compact(String name)
+    {
+        synchronized(compactLock)
+        {
+            // Always write the latest entry so an older one can never
+            // overwrite a newer one
+            JournalEntry entry = uncompacted.get(name);
+            if(entry == null)
+            {
+                return true;
+            }
+
+            // Other servers may have saved the player since a crash, which
+            // is newer than anything replayed
+            if(entry.isReplayed && readStoredRevision(name) >= entry.revision)
+            {
+                plugin.info("Skipping journal entry for " + name + " (stored data is newer)");
+                uncompacted.remove(name, entry);
+                return true;
+            }
+
+            if(plugin.getPlayerStorage().write(name, entry.format, entry.getData(), true, true))
+            {
+                uncompacted.remove(name, entry);
+                return true;
+            }
+
+            plugin.severe("Failed to compact journal entry for " + name);
+            return false;
+        }
+    }
+
+    /**
+     * @return Revision of the stored data of the player or -1 if there is
+     * none (or it cannot be read, so the journal entry replaces it)
+     */
+    private long readStoredRevision(String name)
+    {
+        try
+        {
+            StoredPlayerData stored = plugin.getPlayerStorage().read(name);
+
+            return (stored != null) ?
+                plugin.getPlayerDataCodec().readRevision(stored.getData(), stored.getFormat()) : -1;
+        }
+        catch(IOException | InvalidConfigurationException | IllegalArgumentException ex)
+        {
+            ex.printStackTrace();
+            return -1;
+        }
+    }
+
+    private void deleteCompactedSegments()
+    {
+        long oldestNeeded = activeSegment;
+
+        for(JournalEntry entry : uncompacted.values())
+        {
+            oldestNeeded = Math.min(oldestNeeded, entry.segment);
+        }
+
+        for(Long segment : segments.headSet(oldestNeeded))
+        {
+            if(getSegmentFile(segment).delete() || !getSegmentFile(segment).exists())
+            {
+                segments.remove(segment);
+            }
+        }
+    }
+
+    private long replay() throws IOException
+    {
+        File[] files = folder.listFiles((dir, fileName) ->
+            fileName.startsWith(SEGMENT_PREFIX) && fileName.endsWith(SEGMENT_SUFFIX));
+        long lastSegment = 0;
+
+        if(files == null)
+        {
+            return lastSegment;
+        }
+
+        for(File file : files)
+        {
+            String fileName = file.getName();
+
+            try
+            {
+                segments.add(Long.parseLong(fileName.substring(SEGMENT_PREFIX.length(),
+                    fileName.length() - SEGMENT_SUFFIX.length())));
+            }
+            catch(NumberFormatException ex)
+            {
+                plugin.severe("Ignoring unknown journal file: " + fileName);
+            }
+        }
+
+        // Segments are replayed in order so later saves replace earlier ones
+        for(Long segment : segments)
+        {
+            replaySegment(segment);
+            lastSegment = segment;
+        }
+
+        return lastSegment;
+    }
+
+    private void replaySegment(long segment) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(getSegmentFile(segment).toPath()));
+        CRC32 crc32 = new CRC32();
+
+        while(buffer.remaining() >= 8)
+        {
+            int bodyLength = buffer.getInt();
+            int crc = buffer.getInt();
+
+            if(bodyLength < 0 || bodyLength > buffer.remaining())
+            {
+                plugin.severe("Truncated record in journal segment " + segment);
+                return;
+            }
+
+            crc32.reset();
+            crc32.update(buffer.array(), buffer.position(), bodyLength);
+            if((int) crc32.getValue() != crc)
+            {
+                plugin.severe("Corrupt record in journal segment " + segment);
+                return;
+            }
+
+            if(bodyLength < 16)
+            {
+                plugin.severe("Corrupt record in journal segment " + segment);
+                return;
+            }
+
+            int bodyEnd = buffer.position() + bodyLength;
+            long revision = buffer.getLong();
+            String name = readString(buffer, bodyEnd);
+            String formatName = readString(buffer, bodyEnd);
+            PlayerDataFormat format = (formatName != null) ? PlayerDataFormat.fromName(formatName) : null;
+
+            if(name == null || format == null || !format.name().equals(formatName))
+            {
+                plugin.severe("Corrupt record in journal segment " + segment);
+                return;
+            }
+
+            byte[] data = new byte[bodyEnd - buffer.position()];
+            buffer.get(data);
+
+            uncompacted.put(name, new JournalEntry(format, data, segment, revision, true));
+        }
+    }
+
+    private String readString(ByteBuffer buffer, int limit)
+    {
+        if(limit - buffer.position() < 4)
+        {
+            return null;
+        }
+
+        int length = buffer.getInt();
+        if(length < 0 || length > limit - buffer.position())
+        {
+            return null;
+        }
+
+        String result = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return result;
+    }
+
+    private void openSegment(long segment) throws IOException
+    {
+        activeChannel = FileChannel.open(getSegmentFile(segment).toPath(),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        activeSegment = segment;
+        segments.add(segment);
+    }
+
+    private void closeActiveChannel()
+    {
+        if(activeChannel != null)
+        {
+            try
+            {
+                activeChannel.close();
+            }
+            catch(IOException ex)
+            {
+                ex.printStackTrace();
+            }
+            activeChannel = null;
+        }
+    }
+
+    private File getSegmentFile(long segment)
+    {
+        return new File(folder, SEGMENT_PREFIX + String.format("%019d", segment) + SEGMENT_SUFFIX);
+    }
+
+    private void joinQuietly(Thread thread)
+    {
+        if(thread != null)
+        {
+            try
+            {
+                thread.join(10000);
+            }
+            catch(InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public static class JournalEntry
+    {
+        private final PlayerDataFormat format;
+        private final byte[] data;
+        private final long segment;
+        private final long revision;
+        private final boolean isReplayed;
+
+        private JournalEntry(PlayerDataFormat format, byte[] data, long segment, long revision,
+            boolean isReplayed)
+        {
+            this.format = format;
+            this.data = data;
+            this.segment = segment;
+            this.revision = revision;
+            this.isReplayed = isReplayed;
+        }
+
+        public PlayerDataFormat getFormat()
+        {
+            return format;
+        }
+
+        public byte[] getData()
+        {
+            return data;
+        }
+
+        public long getRevision()
+        {
+            return revision;
+        }
+    }
+
+    private static class PendingAppend
+    {
+        private final String name;
+        private final PlayerDataFormat format;
+        private final byte[] data;
+        private final long revision;
+        private final byte[] record;
+        private final CompletableFuture<Boolean> future = new CompletableFuture<>();
+
+        private PendingAppend(String name, PlayerDataFormat format, byte[] data, long revision)
+        {
+            this.name = name;
+            this.format = format;
+            this.data = data;
+            this.revision = revision;
+            this.record = toRecord(name, format, data, revision);
+        }
+
+        private static byte[] toRecord(String name, PlayerDataFormat format, byte[] data, long revision)
+        {
+            byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            byte[] formatBytes = format.name().getBytes(StandardCharsets.UTF_8);
+            int bodyLength = 16 + nameBytes.length + formatBytes.length + data.length;
+            ByteBuffer record = ByteBuffer.allocate(8 + bodyLength);
+            CRC32 crc32 = new CRC32();
+
+            record.putInt(bodyLength);
+            record.putInt(0);
+            record.putLong(revision);
+            record.putInt(nameBytes.length);
+            record.put(nameBytes);
+            record.putInt(formatBytes.length);
+            record.put(formatBytes);
+            record.put(data);
+
+            crc32.update(record.array(), 8, bodyLength);
+            record.putInt(4, (int) crc32.getValue());
+            return record.array();
+        }
+    }
+}
@@ -20,43 +20,112 @@ import com.google.common.base.Preconditions;
 import org.bukkit.entity.Player;
 import org.bukkit.inventory.ItemStack;
 
+import java.util.Map;
+
 /**
  * Created by Trace Bachi (tracebachi@gmail.com, BigBossZee) on 12/12/15.
+ *
+ * Immutable, so the serialized form of the items can be kept and reused by
+ * later saves. The arrays are copied when the inventory is created and
+ * whenever they are returned.
  */
 public class SavedInventory
 {
-    public static final SavedInventory EMPTY = new SavedInventory(new ItemStack[4], new ItemStack[36]);
+    public static final SavedInventory EMPTY = new SavedInventory(new ItemStack[4], new ItemStack[36], false);
+
+    private final ItemStack[] armor;
+    private final ItemStack[] contents;
+    private final boolean isCacheable;
 
-    private ItemStack[] armor;
-    private ItemStack[] contents;
+    // Binary section bytes and YAML map of the armor and contents, reused
+    // by later saves. Saves of the same inventory on different threads may
+    // both set them, but always to equal values.
+    private volatile byte[] serializedSection;
+    private volatile Map<String, Object> serializedYaml;
 
     public SavedInventory(Player player)
     {
         ItemStack[] armor = player.getInventory().getArmorContents();
         ItemStack[] contents = player.getInventory().getContents();
 
-        this.armor = (armor != null) ? armor : new ItemStack[4];
-        this.contents = (contents != null) ? contents : new ItemStack[36];
+        this.armor = (armor != null) ? armor.clone() : new ItemStack[4];
+        this.contents = (contents != null) ? contents.clone() : new ItemStack[36];
+        this.isCacheable = true;
     }
 
     public SavedInventory(ItemStack[] armor, ItemStack[] contents)
+    {
+        this(armor, contents, true);
+    }
+
+    private SavedInventory(ItemStack[] armor, ItemStack[] contents, boolean isCacheable)
     {
         Preconditions.checkNotNull(armor, "Armor cannot be null.");
         Preconditions.checkNotNull(contents, "Contents cannot be null.");
         Preconditions.checkArgument(armor.length == 4, "Armor size must be 4.");
         Preconditions.checkArgument(contents.length == 36, "Content size must be 36.");
 
-        this.armor = armor;
-        this.contents = contents;
+        this.armor = armor.clone();
+        this.contents = contents.clone();
+        this.isCacheable = isCacheable;
     }
 
+    /**
+     * @return Copy of the armor
+     */
     public ItemStack[] getArmor()
     {
-        return armor;
+        return armor.clone();
     }
 
+    /**
+     * @return Copy of the contents
+     */
     public ItemStack[] getContents()
     {
-        return contents;
+        return contents.clone();
+    }
+
+    /**
+     * @return Binary section bytes of this inventory as last written or read,
+     * or null if the inventory has to be serialized
+     */
+    public byte[] getSerializedSection()
+    {
+        return serializedSection;
+    }
+
+    /**
+     * Keeps the binary section bytes of this inventory. Ignored for the
+     * shared {@link #EMPTY} inventory, which every thread would write to.
+     */
+    public void setSerializedSection(byte[] serializedSection)
+    {
+        if(isCacheable)
+        {
+            this.serializedSection = serializedSection;
+        }
+    }
+
+    /**
+     * @return Map of serialized items this inventory was last dumped to YAML
+     * as, or null if the inventory has to be serialized. The map is never
+     * modified.
+     */
+    public Map<String, Object> getSerializedYaml()
+    {
+        return serializedYaml;
+    }
+
+    /**
+     * Keeps the YAML map of this inventory. Ignored for the shared
+     * {@link #EMPTY} inventory, which every thread would write to.
+     */
+    public void setSerializedYaml(Map<String, Object> serializedYaml)
+    {
+        if(isCacheable)
+        {
+            this.serializedYaml = serializedYaml;
+        }
     }
 }
@@ -0,0 +1,135 @@
+/*
+ * This file is part of DeltaInventory.
+ *
+ * DeltaInventory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DeltaInventory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DeltaInventory.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gmail.tracebachi.DeltaInventory.Storage;
+
+import org.bukkit.Material;
+import org.bukkit.inventory.ItemStack;
+
+import java.util.Map;
+
+/**
+ * Per player record of the last serialized form (binary section or YAML
+ * map) of sections that are read from the live player (currently the
+ * ender chest). Unlike the inventories
+ * kept in an {@link InventoryPair}, these may change at any time, so the
+ * bytes are only reused if the current items equal a snapshot of the items
+ * they were serialized from.
+ */
+public class SectionCache
+{
+    private ItemStack[] enderChestSnapshot;
+    private byte[] enderChestSection;
+    private Map<String, Object> enderChestYaml;
+
+    /**
+     * @param enderChest Current ender chest contents
+     * @return Bytes of the ender chest section if the contents did not change
+     * since they were last serialized, otherwise null
+     */
+    public synchronized byte[] getEnderChestSection(ItemStack[] enderChest)
+    {
+        if(enderChestSnapshot == null || !isSame(enderChestSnapshot, enderChest))
+        {
+            return null;
+        }
+        return enderChestSection;
+    }
+
+    /**
+     * @param enderChest Ender chest contents the bytes were serialized from
+     * @param section Bytes of the ender chest section
+     * @param copy True if the contents may still be modified and must be
+     *             copied for the snapshot
+     */
+    public synchronized void setEnderChestSection(ItemStack[] enderChest, byte[] section, boolean copy)
+    {
+        this.enderChestSnapshot = copy ? copyOf(enderChest) : enderChest;
+        this.enderChestSection = section;
+        this.enderChestYaml = null;
+    }
+
+    /**
+     * @param enderChest Current ender chest contents
+     * @return YAML map of the ender chest if the contents did not change
+     * since they were last serialized, otherwise null
+     */
+    public synchronized Map<String, Object> getEnderChestYaml(ItemStack[] enderChest)
+    {
+        if(enderChestSnapshot == null || !isSame(enderChestSnapshot, enderChest))
+        {
+            return null;
+        }
+        return enderChestYaml;
+    }
+
+    /**
+     * @param enderChest Ender chest contents the map was serialized from
+     *                   (always copied for the snapshot)
+     * @param yaml YAML map of the ender chest, which is never modified
+     */
+    public synchronized void setEnderChestYaml(ItemStack[] enderChest, Map<String, Object> yaml)
+    {
+        this.enderChestSnapshot = copyOf(enderChest);
+        this.enderChestSection = null;
+        this.enderChestYaml = yaml;
+    }
+
+    public synchronized void clear()
+    {
+        this.enderChestSnapshot = null;
+        this.enderChestSection = null;
+        this.enderChestYaml = null;
+    }
+
+    private static boolean isSame(ItemStack[] first, ItemStack[] second)
+    {
+        if(first.length != second.length)
+        {
+            return false;
+        }
+
+        for(int i = 0; i < first.length; ++i)
+        {
+            boolean firstEmpty = isEmpty(first[i]);
+            boolean secondEmpty = isEmpty(second[i]);
+
+            if(firstEmpty != secondEmpty || (!firstEmpty && !first[i].equals(second[i])))
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static boolean isEmpty(ItemStack itemStack)
+    {
+        return itemStack == null || itemStack.getType() == Material.AIR;
+    }
+
+    private static ItemStack[] copyOf(ItemStack[] itemStacks)
+    {
+        ItemStack[] copy = new ItemStack[itemStacks.length];
+
+        for(int i = 0; i < itemStacks.length; ++i)
+        {
+            copy[i] = isEmpty(itemStacks[i]) ? null : itemStacks[i].clone();
+        }
+
+        return copy;
+    }
+}
@@ -0,0 +1,442 @@
+/*
+ * This file is part of DeltaInventory.
+ *
+ * DeltaInventory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DeltaInventory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DeltaInventory.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gmail.tracebachi.DeltaInventory.Storage;
+
+import com.gmail.tracebachi.DeltaInventory.DeltaInventoryPlugin;
+import com.google.common.base.Preconditions;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * All player data in one embedded SQLite database file instead of a file
+ * per player. The SQLite driver is bundled with CraftBukkit/Spigot.
+ *
+ * Writes are queued for a single writer thread, which commits everything
+ * that is queued (up to the batch size) in one transaction, so a burst of
+ * saves costs one sync to disk instead of one per player. Reads use a
+ * separate connection and look players up by primary key.
+ *
+ * Every write stores a new, increasing version, which is what
+ * {@link #getVersion(String)} returns. Versions are assigned by the insert
+ * itself, under the write lock of the transaction, so servers sharing the
+ * database never hand out the same version.
+ */
+public class SqlitePlayerStorage implements PlayerStorage
+{
+    private static final String CREATE_TABLE = "CREATE TABLE IF NOT EXISTS player_data (" +
+        "name TEXT NOT NULL PRIMARY KEY, " +
+        "format INTEGER NOT NULL, " +
+        "version INTEGER NOT NULL, " +
+        "data BLOB NOT NULL, " +
+        "saved_at INTEGER NOT NULL DEFAULT 0)";
+    private static final String CREATE_VERSION_INDEX = "CREATE INDEX IF NOT EXISTS player_data_version " +
+        "ON player_data (version)";
+    private static final String ADD_SAVED_AT = "ALTER TABLE player_data ADD COLUMN saved_at INTEGER NOT NULL DEFAULT 0";
+    private static final String SELECT_DATA = "SELECT format, version, data FROM player_data WHERE name = ?";
+    private static final String SELECT_VERSION = "SELECT version FROM player_data WHERE name = ?";
+    private static final String SELECT_SAVED_AT = "SELECT saved_at FROM player_data WHERE name = ?";
+    private static final String UPSERT = "INSERT OR REPLACE INTO player_data (name, format, version, data, saved_at) " +
+        "VALUES (?, ?, (SELECT IFNULL(MAX(version), 0) + 1 FROM player_data), ?, ?)";
+
+    private final File file;
+    private final int batchSize;
+    private final DeltaInventoryPlugin plugin;
+    private final LinkedBlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<>();
+    private final Object readLock = new Object();
+    private Connection readConnection;
+    private PreparedStatement selectData;
+    private PreparedStatement selectVersion;
+    private PreparedStatement selectSavedAt;
+    private Connection writeConnection;
+    private PreparedStatement upsert;
+    private Thread writerThread;
+    private volatile boolean isRunning;
+
+    /**
+     * @param file Database file (created if it does not exist)
+     * @param batchSize Most writes committed in one transaction
+     * @param plugin Plugin to log with
+     */
+    public SqlitePlayerStorage(File file, int batchSize, DeltaInventoryPlugin plugin)
+    {
+        Preconditions.checkNotNull(file, "File cannot be null.");
+        Preconditions.checkArgument(batchSize > 0, "Batch size must be positive.");
+        Preconditions.checkNotNull(plugin, "Plugin cannot be null.");
+
+        this.file = file;
+        this.batchSize = batchSize;
+        this.plugin = plugin;
+    }
+
+    @Override
+    public void start() throws IOException
+    {
+        File folder = file.getAbsoluteFile().getParentFile();
+
+        if(folder != null && !folder.exists() && !folder.mkdirs())
+        {
+            throw new IOException("Failed to create " + folder);
+        }
+
+        try
+        {
+            Class.forName("org.sqlite.JDBC");
+
+            writeConnection = openConnection(file);
+            try(Statement statement = writeConnection.createStatement())
+            {
+                statement.executeUpdate(CREATE_TABLE);
+            }
+
+            if(!hasColumn(writeConnection, "saved_at"))
+            {
+                try(Statement statement = writeConnection.createStatement())
+                {
+                    statement.executeUpdate(ADD_SAVED_AT);
+                }
+            }
+
+            try(Statement statement = writeConnection.createStatement())
+            {
+                statement.executeUpdate(CREATE_VERSION_INDEX);
+            }
+
+            writeConnection.setAutoCommit(false);
+            upsert = writeConnection.prepareStatement(UPSERT);
+
+            readConnection = openConnection(file);
+            selectData = readConnection.prepareStatement(SELECT_DATA);
+            selectVersion = readConnection.prepareStatement(SELECT_VERSION);
+            selectSavedAt = readConnection.prepareStatement(SELECT_SAVED_AT);
+        }
+        catch(ClassNotFoundException | SQLException ex)
+        {
+            closeQuietly();
+            throw new IOException("Failed to open " + file, ex);
+        }
+
+        isRunning = true;
+        writerThread = new Thread(this::runWriter, "DeltaInventory-SQLite");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    @Override
+    public void shutdown()
+    {
+        isRunning = false;
+
+        if(writerThread != null)
+        {
+            // The writer commits everything still queued before it stops
+            writerThread.interrupt();
+
+            try
+            {
+                writerThread.join(30000);
+            }
+            catch(InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+            }
+            writerThread = null;
+        }
+
+        // Writes queued after the writer stopped are not lost silently
+        PendingWrite pendingWrite;
+        while((pendingWrite = queue.poll()) != null)
+        {
+            pendingWrite.future.complete(false);
+        }
+
+        closeQuietly();
+    }
+
+    @Override
+    public StoredPlayerData read(String name) throws IOException
+    {
+        synchronized(readLock)
+        {
+            try
+            {
+                selectData.setString(1, name);
+
+                try(ResultSet resultSet = selectData.executeQuery())
+                {
+                    if(!resultSet.next())
+                    {
+                        return null;
+                    }
+
+                    PlayerDataFormat format = PlayerDataFormat.values()[resultSet.getInt(1)];
+                    long version = resultSet.getLong(2);
+                    return new StoredPlayerData(format, resultSet.getBytes(3), version);
+                }
+            }
+            catch(SQLException | ArrayIndexOutOfBoundsException ex)
+            {
+                throw new IOException("Failed to read data of " + name, ex);
+            }
+        }
+    }
+
+    @Override
+    public Object getVersion(String name)
+    {
+        synchronized(readLock)
+        {
+            try
+            {
+                selectVersion.setString(1, name);
+
+                try(ResultSet resultSet = selectVersion.executeQuery())
+                {
+                    return resultSet.next() ? resultSet.getLong(1) : null;
+                }
+            }
+            catch(SQLException ex)
+            {
+                ex.printStackTrace();
+
+                // Unknown, so never equal to the version of earlier data
+                return new Object();
+            }
+        }
+    }
+
+    @Override
+    public long getSavedAt(String name)
+    {
+        synchronized(readLock)
+        {
+            try
+            {
+                selectSavedAt.setString(1, name);
+
+                try(ResultSet resultSet = selectSavedAt.executeQuery())
+                {
+                    return resultSet.next() ? resultSet.getLong(1) : 0;
+                }
+            }
+            catch(SQLException ex)
+            {
+                ex.printStackTrace();
+
+                // Unknown, so treated as newer than anything saved earlier
+                return Long.MAX_VALUE;
+            }
+        }
+    }
+
+    /**
+     * Every transaction is synced to disk, so forceToDisk does not change
+     * anything. Blocks until the batch with the write is committed.
+     */
+    @Override
+    public boolean write(String name, PlayerDataFormat format, byte[] data, boolean forceToDisk,
+        boolean isRereadLikely)
+    {
+        if(!isRunning)
+        {
+            return false;
+        }
+
+        PendingWrite pendingWrite = new PendingWrite(name, format, data);
+        queue.add(pendingWrite);
+
+        // Shutdown may have drained the queue before the write was added
+        if(!isRunning && queue.remove(pendingWrite))
+        {
+            return false;
+        }
+
+        try
+        {
+            return pendingWrite.future.get();
+        }
+        catch(InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        catch(ExecutionException ex)
+        {
+            ex.printStackTrace();
+            return false;
+        }
+    }
+
+    private void runWriter()
+    {
+        List<PendingWrite> batch = new ArrayList<>(batchSize);
+
+        while(isRunning || !queue.isEmpty())
+        {
+            try
+            {
+                PendingWrite first = queue.poll(1, TimeUnit.SECONDS);
+
+                if(first == null)
+                {
+                    continue;
+                }
+
+                batch.add(first);
+            }
+            catch(InterruptedException ex)
+            {
+                // Interrupted by shutdown, which is noticed by the loop
+                continue;
+            }
+
+            queue.drainTo(batch, batchSize - 1);
+            commit(batch);
+            batch.clear();
+        }
+    }
+
+    private void commit(List<PendingWrite> batch)
+    {
+        boolean isCommitted = false;
+        long savedAt = System.currentTimeMillis();
+
+        try
+        {
+            for(PendingWrite pendingWrite : batch)
+            {
+                upsert.setString(1, pendingWrite.name);
+                upsert.setInt(2, pendingWrite.format.ordinal());
+                upsert.setBytes(3, pendingWrite.data);
+                upsert.setLong(4, savedAt);
+                upsert.addBatch();
+            }
+
+            upsert.executeBatch();
+            writeConnection.commit();
+            isCommitted = true;
+        }
+        catch(SQLException ex)
+        {
+            ex.printStackTrace();
+            plugin.severe("Failed to commit " + batch.size() + " player saves to " + file.getName());
+
+            try
+            {
+                upsert.clearBatch();
+                writeConnection.rollback();
+            }
+            catch(SQLException rollbackEx)
+            {
+                rollbackEx.printStackTrace();
+            }
+        }
+
+        for(PendingWrite pendingWrite : batch)
+        {
+            pendingWrite.future.complete(isCommitted);
+        }
+    }
+
+    /**
+     * Also used by {@link ItemIndex}.
+     */
+    static Connection openConnection(File file) throws SQLException
+    {
+        Connection connection = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath());
+
+        try(Statement statement = connection.createStatement())
+        {
+            // Readers do not block the writer and every commit is durable
+            statement.execute("PRAGMA journal_mode=WAL");
+            statement.execute("PRAGMA synchronous=FULL");
+            statement.execute("PRAGMA busy_timeout=10000");
+        }
+        return connection;
+    }
+
+    private static boolean hasColumn(Connection connection, String column) throws SQLException
+    {
+        try(Statement statement = connection.createStatement();
+            ResultSet resultSet = statement.executeQuery("PRAGMA table_info(player_data)"))
+        {
+            while(resultSet.next())
+            {
+                if(column.equalsIgnoreCase(resultSet.getString("name")))
+                {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void closeQuietly()
+    {
+        for(AutoCloseable closeable : new AutoCloseable[]{
+            selectData, selectVersion, selectSavedAt, readConnection, upsert, writeConnection})
+        {
+            if(closeable == null)
+            {
+                continue;
+            }
+
+            try
+            {
+                closeable.close();
+            }
+            catch(Exception ex)
+            {
+                ex.printStackTrace();
+            }
+        }
+
+        selectData = null;
+        selectVersion = null;
+        selectSavedAt = null;
+        readConnection = null;
+        upsert = null;
+        writeConnection = null;
+    }
+
+    private static class PendingWrite
+    {
+        private final String name;
+        private final PlayerDataFormat format;
+        private final byte[] data;
+        private final CompletableFuture<Boolean> future = new CompletableFuture<>();
+
+        private PendingWrite(String name, PlayerDataFormat format, byte[] data)
+        {
+            this.name = name;
+            this.format = format;
+            this.data = data;
+        }
+    }
+}
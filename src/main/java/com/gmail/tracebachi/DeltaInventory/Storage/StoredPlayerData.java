@@ -0,0 +1,58 @@
+/*
+ * This file is part of DeltaInventory.
+ *
+ * DeltaInventory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DeltaInventory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DeltaInventory.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gmail.tracebachi.DeltaInventory.Storage;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Encoded player data as read from a {@link PlayerStorage}.
+ */
+public class StoredPlayerData
+{
+    private final PlayerDataFormat format;
+    private final byte[] data;
+    private final Object version;
+
+    public StoredPlayerData(PlayerDataFormat format, byte[] data, Object version)
+    {
+        Preconditions.checkNotNull(format, "Format cannot be null.");
+        Preconditions.checkNotNull(data, "Data cannot be null.");
+
+        this.format = format;
+        this.data = data;
+        this.version = version;
+    }
+
+    public PlayerDataFormat getFormat()
+    {
+        return format;
+    }
+
+    public byte[] getData()
+    {
+        return data;
+    }
+
+    /**
+     * @return Version of the data as returned by
+     * {@link PlayerStorage#getVersion(String)} before it was read
+     */
+    public Object getVersion()
+    {
+        return version;
+    }
+}
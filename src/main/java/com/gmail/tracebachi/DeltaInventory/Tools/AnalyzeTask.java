@@ -0,0 +1,210 @@
+/*
+ * This file is part of DeltaInventory.
+ *
+ * DeltaInventory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DeltaInventory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DeltaInventory.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gmail.tracebachi.DeltaInventory.Tools;
+
+import com.gmail.tracebachi.DeltaInventory.Storage.CompressionCodec;
+import com.gmail.tracebachi.DeltaInventory.Storage.PlayerDataFormat;
+import com.gmail.tracebachi.DeltaInventory.Storage.PlayerFileIo;
+import com.gmail.tracebachi.DeltaInventory.Utils.CompressionUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Reports how many files of each kind there are, how their sizes are
+ * distributed and which players have the largest files. Only the first
+ * bytes of every file are read.
+ */
+class AnalyzeTask extends FileTask
+{
+    private static final int HEADER_SIZE = 2;
+
+    private final int topCount;
+    private final Map<String, AtomicLong> kinds = new ConcurrentHashMap<>();
+    private final AtomicLongArray sizeBuckets = new AtomicLongArray(Long.SIZE);
+    private final AtomicLong totalSize = new AtomicLong();
+    private final PriorityQueue<LargeFile> largest =
+        new PriorityQueue<>(Comparator.comparingLong((LargeFile file) -> file.size));
+
+    /**
+     * @param topCount Number of largest files to report
+     */
+    AnalyzeTask(PlayerFileIo fileIo, IoRateLimiter rateLimiter, int topCount)
+    {
+        super(fileIo, rateLimiter);
+        this.topCount = topCount;
+    }
+
+    @Override
+    protected void process(Path path, String name, PlayerDataFormat format) throws Exception
+    {
+        long size = Files.size(path);
+        byte[] header = readHeader(path);
+
+        kinds.computeIfAbsent(getKind(format, header), (key) -> new AtomicLong()).incrementAndGet();
+        sizeBuckets.incrementAndGet(getBucket(size));
+        totalSize.addAndGet(size);
+
+        if(topCount > 0)
+        {
+            synchronized(largest)
+            {
+                if(largest.size() < topCount || largest.peek().size < size)
+                {
+                    largest.add(new LargeFile(name, path, size));
+
+                    if(largest.size() > topCount)
+                    {
+                        largest.poll();
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    void printSummary(PrintStream out)
+    {
+        long count = getProcessedCount();
+
+        out.println("Files: " + count + " (" + getFailedCount() + " failed)");
+        out.println("Total size: " + toSize(totalSize.get()) +
+            ((count > 0) ? ", average " + toSize(totalSize.get() / count) : ""));
+
+        out.println("Kinds:");
+        for(Map.Entry<String, AtomicLong> entry : new TreeMap<>(kinds).entrySet())
+        {
+            out.println("  " + entry.getKey() + ": " + entry.getValue().get());
+        }
+
+        out.println("Sizes:");
+        for(int i = 0; i < sizeBuckets.length(); ++i)
+        {
+            long bucketCount = sizeBuckets.get(i);
+
+            if(bucketCount > 0)
+            {
+                long lower = (i == 0) ? 0 : (1L << (i - 1));
+                out.println(String.format("  %9s - %9s: %d", toSize(lower), toSize(1L << i), bucketCount));
+            }
+        }
+
+        List<LargeFile> sorted;
+        synchronized(largest)
+        {
+            sorted = new ArrayList<>(largest);
+        }
+        sorted.sort(Comparator.comparingLong((LargeFile file) -> file.size).reversed());
+
+        out.println("Largest players:");
+        for(LargeFile file : sorted)
+        {
+            out.println("  " + file.name + ": " + toSize(file.size) + " (" + file.path + ")");
+        }
+    }
+
+    private byte[] readHeader(Path path) throws IOException, InterruptedException
+    {
+        byte[] header = new byte[HEADER_SIZE];
+        int count = 0;
+
+        try(InputStream in = Files.newInputStream(path))
+        {
+            int read;
+            while(count < header.length && (read = in.read(header, count, header.length - count)) > 0)
+            {
+                count += read;
+            }
+        }
+
+        transferred(count);
+        return (count == header.length) ? header : null;
+    }
+
+    private static String getKind(PlayerDataFormat format, byte[] header)
+    {
+        if(header == null)
+        {
+            return format + " (empty)";
+        }
+
+        if((header[0] & 0xFF) <= CompressionUtils.MAX_CODEC_ID)
+        {
+            CompressionCodec codec = CompressionCodec.fromId(header[0]);
+            return format + " " + ((codec != null) ? codec : "unknown codec " + header[0]);
+        }
+
+        if(format == PlayerDataFormat.YAML)
+        {
+            boolean isUtf16 = (header[0] == (byte) 0xFE && header[1] == (byte) 0xFF) ||
+                (header[0] == (byte) 0xFF && header[1] == (byte) 0xFE);
+            return format + (isUtf16 ? " UTF-16" : " UTF-8");
+        }
+        return format.toString();
+    }
+
+    /**
+     * @return Index of the smallest power of two that is larger than size
+     */
+    private static int getBucket(long size)
+    {
+        return Math.min(Long.SIZE - 1, Long.SIZE - Long.numberOfLeadingZeros(size));
+    }
+
+    private static String toSize(long bytes)
+    {
+        if(bytes < 1024)
+        {
+            return bytes + " B";
+        }
+        else if(bytes < 1024 * 1024)
+        {
+            return String.format("%.1f KB", bytes / 1024.0);
+        }
+        else if(bytes < 1024L * 1024 * 1024)
+        {
+            return String.format("%.1f MB", bytes / (1024.0 * 1024));
+        }
+        return String.format("%.1f GB", bytes / (1024.0 * 1024 * 1024));
+    }
+
+    private static class LargeFile
+    {
+        private final String name;
+        private final Path path;
+        private final long size;
+
+        private LargeFile(String name, Path path, long size)
+        {
+            this.name = name;
+            this.path = path;
+            this.size = size;
+        }
+    }
+}
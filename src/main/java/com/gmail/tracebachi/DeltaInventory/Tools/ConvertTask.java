@@ -0,0 +1,126 @@
+/*
+ * This file is part of DeltaInventory.
+ *
+ * DeltaInventory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DeltaInventory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DeltaInventory.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gmail.tracebachi.DeltaInventory.Tools;
+
+import com.gmail.tracebachi.DeltaInventory.Storage.PlayerDataCodec;
+import com.gmail.tracebachi.DeltaInventory.Storage.PlayerDataFormat;
+import com.gmail.tracebachi.DeltaInventory.Storage.PlayerFileIo;
+import com.gmail.tracebachi.DeltaInventory.Storage.PlayerFileLayout;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rewrites every player file with the codec (format, YAML encoding and
+ * compression) and optionally moves it to another layout. If a player has
+ * files of both formats, the newer one is converted and the other deleted,
+ * which is the file a load would have picked. Files written since the
+ * conversion started are skipped, as they were already converted (when they
+ * are reached again in their new folder or as the other file of a player).
+ */
+class ConvertTask extends FileTask
+{
+    private static final int LOCK_COUNT = 1024;
+
+    private final PlayerDataCodec codec;
+    private final Path dataFolder;
+    private final PlayerFileLayout layout;
+    private final Object[] locks = new Object[LOCK_COUNT];
+    private final long startedAt = System.currentTimeMillis();
+    private final AtomicLong converted = new AtomicLong();
+    private final AtomicLong sizeBefore = new AtomicLong();
+    private final AtomicLong sizeAfter = new AtomicLong();
+
+    /**
+     * @param codec Codec to write files with
+     * @param dataFolder Player data folder
+     * @param layout Layout to move files to or null to keep them in their folder
+     */
+    ConvertTask(PlayerFileIo fileIo, IoRateLimiter rateLimiter, PlayerDataCodec codec,
+        Path dataFolder, PlayerFileLayout layout)
+    {
+        super(fileIo, rateLimiter);
+        this.codec = codec;
+        this.dataFolder = dataFolder;
+        this.layout = layout;
+
+        for(int i = 0; i < locks.length; ++i)
+        {
+            locks[i] = new Object();
+        }
+    }
+
+    @Override
+    protected void process(Path path, String name, PlayerDataFormat format) throws Exception
+    {
+        Path other = path.resolveSibling(name + format.getOther().getExtension());
+        Path folder = (layout != null) ? dataFolder.resolve(layout.getSubfolder(name)) : path.getParent();
+        Path target = folder.resolve(name + codec.getFormat().getExtension());
+
+        // Both files of a player are handled by whichever task comes first
+        synchronized(locks[(name.hashCode() & Integer.MAX_VALUE) % LOCK_COUNT])
+        {
+            if(!Files.exists(path) || Files.getLastModifiedTime(path).toMillis() >= startedAt)
+            {
+                return;
+            }
+
+            Path source = path;
+            PlayerDataFormat sourceFormat = format;
+
+            if(Files.exists(other) &&
+                Files.getLastModifiedTime(other).compareTo(Files.getLastModifiedTime(path)) > 0)
+            {
+                source = other;
+                sourceFormat = format.getOther();
+            }
+
+            if(!target.equals(path) && !target.equals(other) && Files.exists(target))
+            {
+                throw new IOException(target + " already exists");
+            }
+
+            byte[] contents = read(source);
+            byte[] encoded = codec.encode(codec.decode(name, contents, sourceFormat));
+
+            write(encoded, target);
+            converted.incrementAndGet();
+
+            for(Path old : new Path[]{path, other})
+            {
+                if(!old.equals(target))
+                {
+                    Files.deleteIfExists(old);
+                }
+            }
+
+            sizeBefore.addAndGet(contents.length);
+            sizeAfter.addAndGet(encoded.length);
+        }
+    }
+
+    @Override
+    void printSummary(PrintStream out)
+    {
+        out.println("Converted players: " + converted.get());
+        out.println("Failed files: " + getFailedCount());
+        out.println("Size before: " + sizeBefore.get() + " bytes, after: " + sizeAfter.get() + " bytes");
+    }
+}
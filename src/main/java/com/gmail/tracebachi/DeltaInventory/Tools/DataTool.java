@@ -0,0 +1,216 @@
+/*
+ * This file is part of DeltaInventory.
+ *
+ * DeltaInventory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DeltaInventory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DeltaInventory.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gmail.tracebachi.DeltaInventory.Tools;
+
+import com.gmail.tracebachi.DeltaInventory.Storage.BufferPool;
+import com.gmail.tracebachi.DeltaInventory.Storage.CompressionCodec;
+import com.gmail.tracebachi.DeltaInventory.Storage.ItemIndex;
+import com.gmail.tracebachi.DeltaInventory.Storage.ItemStackCache;
+import com.gmail.tracebachi.DeltaInventory.Storage.PlayerDataCodec;
+import com.gmail.tracebachi.DeltaInventory.Storage.PlayerDataFormat;
+import com.gmail.tracebachi.DeltaInventory.Storage.PlayerFileIo;
+import com.gmail.tracebachi.DeltaInventory.Storage.PlayerFileLayout;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Command line tool for the player data folder, for use while no server is
+ * running (files saved by a server during a conversion may be overwritten).
+ * The CraftBukkit server jar must be on the class path (the tools jar
+ * expects it next to itself as spigot.jar):
+ * <pre>
+ * java -jar DeltaInventory-tools.jar convert &lt;folder&gt; [--format YAML|BINARY]
+ *     [--encoding UTF-16|UTF-8] [--compression NONE|DEFLATE|DEFLATE_DICTIONARY]
+ *     [--level 0-9] [--layout FIRST_CHARACTER|HASHED]
+ * java -jar DeltaInventory-tools.jar verify &lt;folder&gt;
+ * java -jar DeltaInventory-tools.jar analyze &lt;folder&gt; [--top 20]
+ * java -jar DeltaInventory-tools.jar index &lt;folder&gt; --database &lt;file&gt;
+ * </pre>
+ * Every command also takes --threads (default: number of processors) and
+ * --rate (most MB read and written per second, default: unlimited).
+ */
+public final class DataTool
+{
+    private static final long PROGRESS_INTERVAL = 5;
+
+    private DataTool()
+    {
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        if(args.length < 2)
+        {
+            printUsage();
+            System.exit(2);
+            return;
+        }
+
+        String command = args[0].toLowerCase();
+        Path folder = Paths.get(args[1]);
+        Map<String, String> options = parseOptions(args);
+
+        if(options == null || !Files.isDirectory(folder))
+        {
+            System.err.println(options == null ? "Options must be pairs of --name value" : folder + " is not a folder");
+            printUsage();
+            System.exit(2);
+            return;
+        }
+
+        int threads = Integer.parseInt(options.getOrDefault("threads",
+            Integer.toString(Runtime.getRuntime().availableProcessors())));
+        long rate = Long.parseLong(options.getOrDefault("rate", "0"));
+        IoRateLimiter rateLimiter = (rate > 0) ? new IoRateLimiter(rate * 1024 * 1024) : null;
+        PlayerFileIo fileIo = new PlayerFileIo(new BufferPool(65536, threads), 1048576);
+        ItemIndex itemIndex = null;
+        FileTask task;
+
+        switch(command)
+        {
+            case "convert":
+                task = new ConvertTask(fileIo, rateLimiter, createCodec(options), folder,
+                    options.containsKey("layout") ? PlayerFileLayout.fromName(options.get("layout")) : null);
+                break;
+            case "verify":
+                task = new VerifyTask(fileIo, rateLimiter, createCodec(options));
+                break;
+            case "analyze":
+                task = new AnalyzeTask(fileIo, rateLimiter, Integer.parseInt(options.getOrDefault("top", "20")));
+                break;
+            case "index":
+                if(!options.containsKey("database"))
+                {
+                    System.err.println("The index command needs --database");
+                    printUsage();
+                    System.exit(2);
+                    return;
+                }
+
+                itemIndex = new ItemIndex(new File(options.get("database")), 256, threads * 64);
+                itemIndex.start();
+                task = new IndexTask(fileIo, rateLimiter, createCodec(options), itemIndex);
+                break;
+            default:
+                printUsage();
+                System.exit(2);
+                return;
+        }
+
+        if(!command.equals("analyze"))
+        {
+            OfflineServer.start();
+        }
+
+        long startedAt = System.nanoTime();
+        ScheduledExecutorService progress = Executors.newSingleThreadScheduledExecutor((runnable) ->
+        {
+            Thread thread = new Thread(runnable, "DeltaInventory-Progress");
+            thread.setDaemon(true);
+            return thread;
+        });
+        progress.scheduleAtFixedRate(() -> printProgress(task, startedAt),
+            PROGRESS_INTERVAL, PROGRESS_INTERVAL, TimeUnit.SECONDS);
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+
+        try
+        {
+            pool.invoke(new FolderWalker(folder, task));
+        }
+        finally
+        {
+            pool.shutdown();
+            progress.shutdownNow();
+
+            if(itemIndex != null)
+            {
+                // Commits the updates that are still queued
+                itemIndex.shutdown();
+            }
+        }
+
+        printProgress(task, startedAt);
+        task.printSummary(System.out);
+        System.exit(task.getFailedCount() > 0 ? 1 : 0);
+    }
+
+    private static PlayerDataCodec createCodec(Map<String, String> options)
+    {
+        PlayerDataFormat format = PlayerDataFormat.fromName(options.getOrDefault("format", "BINARY"));
+        Charset yamlCharset = options.getOrDefault("encoding", "UTF-8").equalsIgnoreCase("UTF-16") ?
+            StandardCharsets.UTF_16 : StandardCharsets.UTF_8;
+        CompressionCodec compression = CompressionCodec.fromName(options.getOrDefault("compression", "NONE"));
+        int level = Math.max(0, Math.min(9, Integer.parseInt(options.getOrDefault("level", "6"))));
+
+        return new PlayerDataCodec(format, new ItemStackCache(4096),
+            (compression == CompressionCodec.NONE) ? null : compression, level, 512, yamlCharset);
+    }
+
+    private static void printProgress(FileTask task, long startedAt)
+    {
+        double seconds = Math.max(1, System.nanoTime() - startedAt) / 1e9;
+        long processed = task.getProcessedCount();
+
+        System.out.println(String.format("%d files (%d failed), %.1f MB, %.0f files/s",
+            processed, task.getFailedCount(), task.getByteCount() / (1024.0 * 1024), processed / seconds));
+    }
+
+    /**
+     * @return Options after the folder by name (without the dashes) or null
+     * if they are not pairs
+     */
+    private static Map<String, String> parseOptions(String[] args)
+    {
+        Map<String, String> options = new HashMap<>();
+
+        for(int i = 2; i < args.length; i += 2)
+        {
+            if(!args[i].startsWith("--") || i + 1 >= args.length)
+            {
+                return null;
+            }
+
+            options.put(args[i].substring(2).toLowerCase(), args[i + 1]);
+        }
+        return options;
+    }
+
+    private static void printUsage()
+    {
+        System.err.println("Usage:");
+        System.err.println("  convert <folder> [--format YAML|BINARY] [--encoding UTF-16|UTF-8]");
+        System.err.println("      [--compression NONE|DEFLATE|DEFLATE_DICTIONARY] [--level 0-9]");
+        System.err.println("      [--layout FIRST_CHARACTER|HASHED]");
+        System.err.println("  verify <folder>");
+        System.err.println("  analyze <folder> [--top 20]");
+        System.err.println("  index <folder> --database <file>");
+        System.err.println("Options of every command: [--threads n] [--rate MB/s]");
+        System.err.println("Stop all servers using the folder before converting.");
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * This file is part of DeltaInventory.
+ *
+ * DeltaInventory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DeltaInventory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DeltaInventory.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gmail.tracebachi.DeltaInventory.Tools;
+
+import com.gmail.tracebachi.DeltaInventory.Storage.PlayerDataFormat;
+import com.gmail.tracebachi.DeltaInventory.Storage.PlayerFileIo;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Work done by the {@link DataTool} for every player file. Files that are
+ * not player files are skipped. Failures are printed and counted, and do
+ * not stop the other files from being processed.
+ */
+abstract class FileTask
+{
+    protected final PlayerFileIo fileIo;
+    private final IoRateLimiter rateLimiter;
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+
+    /**
+     * @param fileIo Locked file access to read and write files with
+     * @param rateLimiter Limit of bytes transferred per second or null
+     */
+    FileTask(PlayerFileIo fileIo, IoRateLimiter rateLimiter)
+    {
+        this.fileIo = fileIo;
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * @param path Player file
+     * @param name Name of the player
+     * @param format Format of the player file
+     */
+    protected abstract void process(Path path, String name, PlayerDataFormat format) throws Exception;
+
+    abstract void printSummary(PrintStream out);
+
+    final void process(Path path)
+    {
+        String fileName = path.getFileName().toString();
+        PlayerDataFormat format = getFormat(fileName);
+
+        if(format == null)
+        {
+            return;
+        }
+
+        String name = fileName.substring(0, fileName.length() - format.getExtension().length());
+
+        try
+        {
+            process(path, name, format);
+            processed.incrementAndGet();
+        }
+        catch(InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            failed.incrementAndGet();
+        }
+        catch(Exception ex)
+        {
+            failed.incrementAndGet();
+            System.err.println("Failed to process " + path + ": " + ex);
+        }
+    }
+
+    long getProcessedCount()
+    {
+        return processed.get();
+    }
+
+    long getFailedCount()
+    {
+        return failed.get();
+    }
+
+    long getByteCount()
+    {
+        return bytes.get();
+    }
+
+    protected byte[] read(Path path) throws IOException, InterruptedException
+    {
+        byte[] contents = fileIo.read(path);
+        transferred(contents.length);
+        return contents;
+    }
+
+    protected void write(byte[] contents, Path path) throws IOException, InterruptedException
+    {
+        transferred(contents.length);
+
+        if(!fileIo.write(contents, path, false))
+        {
+            throw new IOException("Failed to write " + path);
+        }
+    }
+
+    /**
+     * Counts the bytes and waits if they exceed the rate limit.
+     */
+    protected void transferred(long count) throws InterruptedException
+    {
+        bytes.addAndGet(count);
+
+        if(rateLimiter != null)
+        {
+            rateLimiter.acquire(count);
+        }
+    }
+
+    static PlayerDataFormat getFormat(String fileName)
+    {
+        for(PlayerDataFormat format : PlayerDataFormat.values())
+        {
+            if(fileName.endsWith(format.getExtension()) &&
+                fileName.length() > format.getExtension().length())
+            {
+                return format;
+            }
+        }
+        return null;
+    }
+}
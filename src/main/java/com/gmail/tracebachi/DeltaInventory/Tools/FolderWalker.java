@@ -0,0 +1,106 @@
+/*
+ * This file is part of DeltaInventory.
+ *
+ * DeltaInventory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DeltaInventory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DeltaInventory.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gmail.tracebachi.DeltaInventory.Tools;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Walks a folder tree on a fork/join pool. Every subfolder becomes its own
+ * task and the files of a folder are handed out in batches, so a folder
+ * with a huge number of files is still processed by all threads.
+ */
+class FolderWalker extends RecursiveAction
+{
+    private static final int BATCH_SIZE = 128;
+
+    private final Path folder;
+    private final FileTask task;
+
+    FolderWalker(Path folder, FileTask task)
+    {
+        this.folder = folder;
+        this.task = task;
+    }
+
+    @Override
+    protected void compute()
+    {
+        List<ForkJoinTask<?>> forked = new ArrayList<>();
+        List<Path> batch = new ArrayList<>(BATCH_SIZE);
+
+        // The folder is streamed since it may hold far too many files for a list
+        try(DirectoryStream<Path> stream = Files.newDirectoryStream(folder))
+        {
+            for(Path path : stream)
+            {
+                if(Files.isDirectory(path))
+                {
+                    forked.add(new FolderWalker(path, task).fork());
+                    continue;
+                }
+
+                batch.add(path);
+
+                if(batch.size() == BATCH_SIZE)
+                {
+                    forked.add(new FileBatch(batch, task).fork());
+                    batch = new ArrayList<>(BATCH_SIZE);
+                }
+            }
+        }
+        catch(IOException ex)
+        {
+            throw new UncheckedIOException("Failed to list " + folder, ex);
+        }
+
+        new FileBatch(batch, task).compute();
+
+        for(ForkJoinTask<?> forkedTask : forked)
+        {
+            forkedTask.join();
+        }
+    }
+
+    private static class FileBatch extends RecursiveAction
+    {
+        private final List<Path> files;
+        private final FileTask task;
+
+        private FileBatch(List<Path> files, FileTask task)
+        {
+            this.files = files;
+            this.task = task;
+        }
+
+        @Override
+        protected void compute()
+        {
+            for(Path file : files)
+            {
+                task.process(file);
+            }
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * This file is part of DeltaInventory.
+ *
+ * DeltaInventory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DeltaInventory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DeltaInventory.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gmail.tracebachi.DeltaInventory.Tools;
+
+import com.gmail.tracebachi.DeltaInventory.Storage.IPlayerEntry;
+import com.gmail.tracebachi.DeltaInventory.Storage.ItemIndex;
+import com.gmail.tracebachi.DeltaInventory.Storage.PlayerDataCodec;
+import com.gmail.tracebachi.DeltaInventory.Storage.PlayerDataFormat;
+import com.gmail.tracebachi.DeltaInventory.Storage.PlayerFileIo;
+
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rebuilds the rows of every player in an {@link ItemIndex}, such as when
+ * the index is first enabled. If a player has files of both formats, only
+ * the newer one is indexed.
+ */
+class IndexTask extends FileTask
+{
+    private final PlayerDataCodec codec;
+    private final ItemIndex itemIndex;
+    private final AtomicLong indexed = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+
+    IndexTask(PlayerFileIo fileIo, IoRateLimiter rateLimiter, PlayerDataCodec codec, ItemIndex itemIndex)
+    {
+        super(fileIo, rateLimiter);
+        this.codec = codec;
+        this.itemIndex = itemIndex;
+    }
+
+    @Override
+    protected void process(Path path, String name, PlayerDataFormat format) throws Exception
+    {
+        Path other = path.resolveSibling(name + format.getOther().getExtension());
+
+        if(Files.exists(other) &&
+            Files.getLastModifiedTime(other).compareTo(Files.getLastModifiedTime(path)) > 0)
+        {
+            skipped.incrementAndGet();
+            return;
+        }
+
+        // Taken before reading, so a later save makes the rows stale
+        long savedAt = Files.getLastModifiedTime(path).toMillis();
+        IPlayerEntry entry = codec.decode(name, read(path), format);
+
+        if(entry == null)
+        {
+            throw new IllegalStateException("Decoded to nothing");
+        }
+
+        if(!itemIndex.update(entry, savedAt))
+        {
+            throw new IllegalStateException("The item index is not running");
+        }
+
+        indexed.incrementAndGet();
+    }
+
+    @Override
+    void printSummary(PrintStream out)
+    {
+        out.println("Indexed players: " + indexed.get());
+        out.println("Skipped older files: " + skipped.get());
+        out.println("Failed files: " + getFailedCount());
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * This file is part of DeltaInventory.
+ *
+ * DeltaInventory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DeltaInventory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DeltaInventory.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gmail.tracebachi.DeltaInventory.Tools;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the bytes read and written per second by all threads together.
+ * Time that goes unused is not saved up, so an idle period is not followed
+ * by a burst.
+ */
+class IoRateLimiter
+{
+    private final double nanosPerByte;
+    private long nextFreeAt = System.nanoTime();
+
+    /**
+     * @param bytesPerSecond Most bytes per second
+     */
+    IoRateLimiter(long bytesPerSecond)
+    {
+        Preconditions.checkArgument(bytesPerSecond > 0, "Rate must be positive.");
+
+        this.nanosPerByte = TimeUnit.SECONDS.toNanos(1) / (double) bytesPerSecond;
+    }
+
+    /**
+     * Waits until the bytes may be transferred.
+     */
+    void acquire(long bytes) throws InterruptedException
+    {
+        long startAt;
+
+        synchronized(this)
+        {
+            startAt = Math.max(nextFreeAt, System.nanoTime());
+            nextFreeAt = startAt + (long) (bytes * nanosPerByte);
+        }
+
+        long waitTime = startAt - System.nanoTime();
+
+        if(waitTime > 0)
+        {
+            TimeUnit.NANOSECONDS.sleep(waitTime);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * This file is part of DeltaInventory.
+ *
+ * DeltaInventory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DeltaInventory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DeltaInventory.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gmail.tracebachi.DeltaInventory.Tools;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Server;
+import org.bukkit.inventory.ItemFactory;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.logging.Logger;
+
+/**
+ * Installs just enough of a server for item stacks with meta and potion
+ * effects to be created and (de)serialized outside of a running server, for
+ * the {@link DataTool} and the benchmarks. This needs the CraftBukkit server
+ * jar on the class path, which provides the real item factory and registers
+ * the potion effect types.
+ */
+public final class OfflineServer
+{
+    private static final String CRAFT_PACKAGE = "org.bukkit.craftbukkit.v1_8_R3";
+    private static final String NMS_PACKAGE = "net.minecraft.server.v1_8_R3";
+
+    private static boolean isStarted;
+
+    private OfflineServer()
+    {
+    }
+
+    public static synchronized void start()
+    {
+        if(isStarted)
+        {
+            return;
+        }
+
+        ItemFactory itemFactory;
+
+        try
+        {
+            // Registers blocks, items and potion effects (and their Bukkit types)
+            Class.forName(NMS_PACKAGE + ".DispenserRegistry").getMethod("c").invoke(null);
+
+            Method instance = Class.forName(CRAFT_PACKAGE + ".inventory.CraftItemFactory").getMethod("instance");
+            itemFactory = (ItemFactory) instance.invoke(null);
+        }
+        catch(ReflectiveOperationException ex)
+        {
+            throw new IllegalStateException("The CraftBukkit server jar must be on the class path", ex);
+        }
+
+        Logger logger = Logger.getLogger("DeltaInventory");
+        Server server = (Server) Proxy.newProxyInstance(
+            Server.class.getClassLoader(),
+            new Class<?>[]{Server.class},
+            (proxy, method, args) ->
+            {
+                switch(method.getName())
+                {
+                    case "getItemFactory":
+                        return itemFactory;
+                    case "getLogger":
+                        return logger;
+                    case "getName":
+                    case "getVersion":
+                    case "getBukkitVersion":
+                        return "DeltaInventoryOffline";
+                    case "isPrimaryThread":
+                        return true;
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "equals":
+                        return proxy == args[0];
+                    case "toString":
+                        return "DeltaInventoryOffline";
+                    default:
+                        return defaultValue(method.getReturnType());
+                }
+            });
+
+        Bukkit.setServer(server);
+        isStarted = true;
+    }
+
+    /**
+     * @return Value a proxy returns for methods that callers do not care
+     * about (proxies must not return null for primitives)
+     */
+    public static Object defaultValue(Class<?> type)
+    {
+        if(!type.isPrimitive() || type == void.class)
+        {
+            return null;
+        }
+        else if(type == boolean.class)
+        {
+            return false;
+        }
+        else if(type == char.class)
+        {
+            return (char) 0;
+        }
+        else if(type == long.class)
+        {
+            return 0L;
+        }
+        else if(type == float.class)
+        {
+            return 0.0f;
+        }
+        else if(type == double.class)
+        {
+            return 0.0;
+        }
+        else if(type == byte.class)
+        {
+            return (byte) 0;
+        }
+        else if(type == short.class)
+        {
+            return (short) 0;
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * This file is part of DeltaInventory.
+ *
+ * DeltaInventory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DeltaInventory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DeltaInventory.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gmail.tracebachi.DeltaInventory.Tools;
+
+import com.gmail.tracebachi.DeltaInventory.Storage.PlayerDataCodec;
+import com.gmail.tracebachi.DeltaInventory.Storage.PlayerDataFormat;
+import com.gmail.tracebachi.DeltaInventory.Storage.PlayerFileIo;
+
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decodes every player file the way a load would, which fails for files
+ * that are truncated, corrupt or contain items that cannot be deserialized.
+ */
+class VerifyTask extends FileTask
+{
+    private final PlayerDataCodec codec;
+    private final Map<PlayerDataFormat, AtomicLong> verified = new EnumMap<>(PlayerDataFormat.class);
+
+    VerifyTask(PlayerFileIo fileIo, IoRateLimiter rateLimiter, PlayerDataCodec codec)
+    {
+        super(fileIo, rateLimiter);
+        this.codec = codec;
+
+        for(PlayerDataFormat format : PlayerDataFormat.values())
+        {
+            verified.put(format, new AtomicLong());
+        }
+    }
+
+    @Override
+    protected void process(Path path, String name, PlayerDataFormat format) throws Exception
+    {
+        if(codec.decode(name, read(path), format) == null)
+        {
+            throw new IllegalStateException("Decoded to nothing");
+        }
+
+        verified.get(format).incrementAndGet();
+    }
+
+    @Override
+    void printSummary(PrintStream out)
+    {
+        for(Map.Entry<PlayerDataFormat, AtomicLong> entry : verified.entrySet())
+        {
+            out.println("Verified " + entry.getKey() + " files: " + entry.getValue().get());
+        }
+
+        out.println("Failed files: " + getFailedCount());
+    }
+}
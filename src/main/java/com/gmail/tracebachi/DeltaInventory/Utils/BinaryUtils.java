@@ -0,0 +1,327 @@
+/*
+ * This file is part of DeltaInventory.
+ *
+ * DeltaInventory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DeltaInventory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DeltaInventory.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gmail.tracebachi.DeltaInventory.Utils;
+
+import com.gmail.tracebachi.DeltaInventory.Storage.ItemStackCache;
+import org.bukkit.Material;
+import org.bukkit.configuration.serialization.ConfigurationSerializable;
+import org.bukkit.configuration.serialization.ConfigurationSerialization;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.potion.PotionEffect;
+import org.bukkit.potion.PotionEffectType;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary counterpart of the YAML serialization. Values are written with a
+ * one byte tag so that ConfigurationSerializable objects (ItemStack, ItemMeta,
+ * etc.) round-trip the same way they would through a YamlConfiguration.
+ */
+public interface BinaryUtils
+{
+    int MAGIC = 0x44494E56; // "DINV"
+    int VERSION = 1;
+
+    int SECTION_END = 0;
+    int SECTION_STATS = 1;
+    int SECTION_EFFECTS = 2;
+    int SECTION_SURVIVAL = 3;
+    int SECTION_CREATIVE = 4;
+    int SECTION_ENDER_CHEST = 5;
+
+    byte TAG_NULL = 0;
+    byte TAG_BOOLEAN = 1;
+    byte TAG_INT = 2;
+    byte TAG_LONG = 3;
+    byte TAG_DOUBLE = 4;
+    byte TAG_STRING = 5;
+    byte TAG_LIST = 6;
+    byte TAG_MAP = 7;
+    byte TAG_SERIALIZABLE = 8;
+
+    static void writeString(DataOutput out, String value) throws IOException
+    {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInput in) throws IOException
+    {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static void writeItemStacks(DataOutput out, ItemStack[] itemStacks) throws IOException
+    {
+        writeItemStacks(out, itemStacks, null);
+    }
+
+    /**
+     * Writes the non-empty slots of the array as (slot, length, item) entries
+     * preceded by the array size and the number of entries.
+     *
+     * @param cache Cache of serialized item stacks or null
+     */
+    static void writeItemStacks(DataOutput out, ItemStack[] itemStacks, ItemStackCache cache)
+        throws IOException
+    {
+        int count = 0;
+
+        for(ItemStack itemStack : itemStacks)
+        {
+            if(itemStack != null && itemStack.getType() != Material.AIR)
+            {
+                count++;
+            }
+        }
+
+        out.writeShort(itemStacks.length);
+        out.writeShort(count);
+
+        for(int i = 0; i < itemStacks.length; ++i)
+        {
+            if(itemStacks[i] != null && itemStacks[i].getType() != Material.AIR)
+            {
+                byte[] bytes = (cache != null) ? cache.encode(itemStacks[i]) : encodeItemStack(itemStacks[i]);
+
+                out.writeShort(i);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+    }
+
+    /**
+     * @param cache Cache of deserialized item stacks or null
+     */
+    static ItemStack[] readItemStacks(DataInput in, int maxSize, ItemStackCache cache)
+        throws IOException
+    {
+        ItemStack[] destination = new ItemStack[maxSize];
+        int size = in.readUnsignedShort();
+        int count = in.readUnsignedShort();
+
+        for(int i = 0; i < count; ++i)
+        {
+            int slot = in.readUnsignedShort();
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+
+            ItemStack itemStack = (cache != null) ? cache.decode(bytes) : decodeItemStack(bytes);
+
+            if(slot < size && slot < maxSize && itemStack != null)
+            {
+                destination[slot] = itemStack;
+            }
+        }
+
+        return destination;
+    }
+
+    static byte[] encodeItemStack(ItemStack itemStack) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        writeValue(new DataOutputStream(bytes), itemStack);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return Deserialized item stack or null if the bytes hold another value
+     */
+    static ItemStack decodeItemStack(byte[] bytes) throws IOException
+    {
+        Object value = readValue(new DataInputStream(new ByteArrayInputStream(bytes)));
+        return (value instanceof ItemStack) ? (ItemStack) value : null;
+    }
+
+    static void writeEffects(DataOutput out, Collection<PotionEffect> effects) throws IOException
+    {
+        out.writeShort(effects.size());
+
+        for(PotionEffect effect : effects)
+        {
+            writeString(out, effect.getType().getName());
+            out.writeInt(effect.getAmplifier());
+            out.writeInt(effect.getDuration());
+        }
+    }
+
+    static List<PotionEffect> readEffects(DataInput in) throws IOException
+    {
+        int count = in.readUnsignedShort();
+        List<PotionEffect> effects = new ArrayList<>(count);
+
+        for(int i = 0; i < count; ++i)
+        {
+            PotionEffectType type = PotionEffectType.getByName(readString(in));
+            int amplifier = in.readInt();
+            int duration = in.readInt();
+
+            if(type != null)
+            {
+                effects.add(new PotionEffect(type, duration, amplifier));
+            }
+        }
+
+        return effects;
+    }
+
+    /**
+     * Writes a value as it would be represented after a YAML round-trip.
+     * Integral numbers become int (or long), decimals become double and
+     * any collection becomes a list.
+     */
+    static void writeValue(DataOutput out, Object value) throws IOException
+    {
+        if(value == null)
+        {
+            out.writeByte(TAG_NULL);
+        }
+        else if(value instanceof Boolean)
+        {
+            out.writeByte(TAG_BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        }
+        else if(value instanceof Integer || value instanceof Short || value instanceof Byte)
+        {
+            out.writeByte(TAG_INT);
+            out.writeInt(((Number) value).intValue());
+        }
+        else if(value instanceof Long)
+        {
+            out.writeByte(TAG_LONG);
+            out.writeLong((Long) value);
+        }
+        else if(value instanceof Double || value instanceof Float)
+        {
+            out.writeByte(TAG_DOUBLE);
+            out.writeDouble(((Number) value).doubleValue());
+        }
+        else if(value instanceof String)
+        {
+            out.writeByte(TAG_STRING);
+            writeString(out, (String) value);
+        }
+        else if(value instanceof Collection)
+        {
+            Collection<?> collection = (Collection<?>) value;
+
+            out.writeByte(TAG_LIST);
+            out.writeInt(collection.size());
+
+            for(Object element : collection)
+            {
+                writeValue(out, element);
+            }
+        }
+        else if(value instanceof Map)
+        {
+            out.writeByte(TAG_MAP);
+            writeMap(out, (Map<?, ?>) value);
+        }
+        else if(value instanceof ConfigurationSerializable)
+        {
+            ConfigurationSerializable serializable = (ConfigurationSerializable) value;
+
+            out.writeByte(TAG_SERIALIZABLE);
+            writeString(out, ConfigurationSerialization.getAlias(serializable.getClass()));
+            writeMap(out, serializable.serialize());
+        }
+        else
+        {
+            throw new IOException("Unsupported type: " + value.getClass().getName());
+        }
+    }
+
+    static Object readValue(DataInput in) throws IOException
+    {
+        byte tag = in.readByte();
+
+        switch(tag)
+        {
+            case TAG_NULL:
+                return null;
+            case TAG_BOOLEAN:
+                return in.readBoolean();
+            case TAG_INT:
+                return in.readInt();
+            case TAG_LONG:
+                return in.readLong();
+            case TAG_DOUBLE:
+                return in.readDouble();
+            case TAG_STRING:
+                return readString(in);
+            case TAG_LIST:
+                int size = in.readInt();
+                List<Object> list = new ArrayList<>(size);
+
+                for(int i = 0; i < size; ++i)
+                {
+                    list.add(readValue(in));
+                }
+                return list;
+            case TAG_MAP:
+                return readMap(in);
+            case TAG_SERIALIZABLE:
+                String alias = readString(in);
+                Map<String, Object> map = readMap(in);
+                map.put(ConfigurationSerialization.SERIALIZED_TYPE_KEY, alias);
+                return ConfigurationSerialization.deserializeObject(map);
+            default:
+                throw new IOException("Unknown tag: " + tag);
+        }
+    }
+
+    static void writeMap(DataOutput out, Map<?, ?> map) throws IOException
+    {
+        out.writeInt(map.size());
+
+        for(Map.Entry<?, ?> entry : map.entrySet())
+        {
+            writeString(out, String.valueOf(entry.getKey()));
+            writeValue(out, entry.getValue());
+        }
+    }
+
+    static Map<String, Object> readMap(DataInput in) throws IOException
+    {
+        int size = in.readInt();
+        Map<String, Object> map = new LinkedHashMap<>();
+
+        for(int i = 0; i < size; ++i)
+        {
+            String key = readString(in);
+            map.put(key, readValue(in));
+        }
+
+        return map;
+    }
+}
@@ -16,17 +16,221 @@
  */
 package com.gmail.tracebachi.DeltaInventory.Utils;
 
+import com.gmail.tracebachi.DeltaInventory.Storage.CompressionCodec;
+
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
 
 /**
  * Created by Trace Bachi (tracebachi@gmail.com, BigBossZee) on 12/12/15.
  */
 public interface CompressionUtils
 {
+    /**
+     * Header bytes below this value identify a codec. Unframed data (UTF-16
+     * YAML starting with a byte order mark, UTF-8 YAML starting with a key or
+     * the binary format starting with its magic number) always starts with a
+     * larger byte.
+     */
+    int MAX_CODEC_ID = 0x0F;
+
+    /**
+     * Largest original length accepted from a header. Player data is far
+     * smaller, so anything above this is a corrupt header.
+     */
+    int MAX_DECODED_LENGTH = 64 * 1024 * 1024;
+
+    /**
+     * Deflate never shrinks data by more than this factor, so a header
+     * claiming more than this many bytes per input byte is corrupt.
+     */
+    int MAX_DEFLATE_RATIO = 1032;
+
+    /**
+     * Preset dictionary used by {@link CompressionCodec#DEFLATE_DICTIONARY}.
+     * The keys are stored in UTF-8 (binary format) and in UTF-16 (YAML format)
+     * with the most common keys last. Changing the contents breaks every file
+     * written with it, so a new dictionary needs a new codec id.
+     */
+    byte[] DICTIONARY = buildDictionary(
+        "BOOK_AND_QUILL", "WRITTEN_BOOK", "BOOK_SIGNED", "title", "author", "pages",
+        "SKULL", "skull-owner", "LEATHER_ARMOR", "color", "FIREWORK", "firework-effects",
+        "POTION", "custom-effects", "ENCHANTED", "stored-enchants", "repair-cost",
+        "ItemFlags", "HIDE_ENCHANTS", "HIDE_ATTRIBUTES", "LOOT_BONUS_BLOCKS",
+        "PROTECTION_ENVIRONMENTAL", "DIG_SPEED", "DAMAGE_ALL", "DURABILITY",
+        "LastSave", "Health", "Hunger", "XpLevel", "XpProgress", "Gamemode: SURVIVAL",
+        "Effects", "EnderChest", "Creative", "Survival", "Armor", "Contents",
+        "DIAMOND_SWORD", "DIAMOND_PICKAXE", "COBBLESTONE", "STONE", "DIRT",
+        "display-name", "lore", "enchants", "meta-type: UNSPECIFIC", "meta",
+        "==: ItemMeta", "ItemMeta", "amount", "damage",
+        "==: org.bukkit.inventory.ItemStack", "org.bukkit.inventory.ItemStack", "type");
+
+    static byte[] buildDictionary(String... keys)
+    {
+        StringBuilder builder = new StringBuilder(1024);
+
+        for(String key : keys)
+        {
+            builder.append(key).append('\n');
+        }
+
+        String joined = builder.toString();
+        byte[] utf16 = joined.getBytes(StandardCharsets.UTF_16BE);
+        byte[] utf8 = joined.getBytes(StandardCharsets.UTF_8);
+        byte[] result = new byte[utf16.length + utf8.length];
+
+        System.arraycopy(utf16, 0, result, 0, utf16.length);
+        System.arraycopy(utf8, 0, result, utf16.length, utf8.length);
+        return result;
+    }
+
+    /**
+     * Frames the source with a codec header byte. Deflated frames also store
+     * the original length. Sources smaller than minimumSize (or sources that
+     * do not shrink) are stored with {@link CompressionCodec#NONE}.
+     */
+    static byte[] encode(byte[] source, CompressionCodec codec, int level, int minimumSize)
+    {
+        if(codec != CompressionCodec.NONE && source.length > 5 && source.length >= minimumSize)
+        {
+            Deflater deflater = new Deflater(level);
+
+            try
+            {
+                if(codec == CompressionCodec.DEFLATE_DICTIONARY)
+                {
+                    deflater.setDictionary(DICTIONARY);
+                }
+
+                deflater.setInput(source);
+                deflater.finish();
+
+                byte[] result = new byte[source.length];
+                result[0] = codec.getId();
+                result[1] = (byte) (source.length >>> 24);
+                result[2] = (byte) (source.length >>> 16);
+                result[3] = (byte) (source.length >>> 8);
+                result[4] = (byte) source.length;
+
+                int length = 5;
+                while(!deflater.finished() && length < result.length)
+                {
+                    length += deflater.deflate(result, length, result.length - length);
+                }
+
+                // Only keep the compressed form if it is actually smaller
+                if(deflater.finished() && length < result.length)
+                {
+                    byte[] trimmed = new byte[length];
+                    System.arraycopy(result, 0, trimmed, 0, length);
+                    return trimmed;
+                }
+            }
+            finally
+            {
+                deflater.end();
+            }
+        }
+
+        byte[] result = new byte[source.length + 1];
+        result[0] = CompressionCodec.NONE.getId();
+        System.arraycopy(source, 0, result, 1, source.length);
+        return result;
+    }
+
+    /**
+     * Reverses {@link #encode(byte[], CompressionCodec, int, int)}. Data
+     * without a codec header is returned as is.
+     */
+    static byte[] decode(byte[] source) throws IOException
+    {
+        if(source.length == 0 || (source[0] & 0xFF) > MAX_CODEC_ID)
+        {
+            return source;
+        }
+
+        CompressionCodec codec = CompressionCodec.fromId(source[0]);
+        if(codec == null)
+        {
+            throw new IOException("Unknown compression codec: " + source[0]);
+        }
+
+        if(codec == CompressionCodec.NONE)
+        {
+            byte[] result = new byte[source.length - 1];
+            System.arraycopy(source, 1, result, 0, result.length);
+            return result;
+        }
+
+        if(source.length < 5)
+        {
+            throw new IOException("Truncated compression header");
+        }
+
+        int length = ((source[1] & 0xFF) << 24) | ((source[2] & 0xFF) << 16) |
+            ((source[3] & 0xFF) << 8) | (source[4] & 0xFF);
+
+        // Checked before allocating, so a corrupt header cannot exhaust the heap
+        long maxLength = Math.min(MAX_DECODED_LENGTH, (source.length - 5L) * MAX_DEFLATE_RATIO);
+        if(length < 0 || length > maxLength)
+        {
+            throw new IOException("Invalid original length " + (length & 0xFFFFFFFFL) +
+                " in compression header of " + source.length + " bytes");
+        }
+
+        byte[] result = new byte[length];
+        Inflater inflater = new Inflater();
+
+        try
+        {
+            inflater.setInput(source, 5, source.length - 5);
+
+            int read = 0;
+            while(read < length && !inflater.finished())
+            {
+                int count = inflater.inflate(result, read, length - read);
+
+                if(count == 0 && inflater.needsDictionary())
+                {
+                    inflater.setDictionary(DICTIONARY);
+                }
+                else if(count == 0 && (inflater.needsInput() || inflater.finished()))
+                {
+                    break;
+                }
+                read += count;
+            }
+
+            // The stream has to end exactly at the original length
+            if(read == length && !inflater.finished())
+            {
+                read += inflater.inflate(new byte[1]);
+            }
+
+            if(read != length || !inflater.finished())
+            {
+                throw new IOException("Expected " + length + " bytes, inflated " +
+                    (inflater.finished() ? "" : "at least ") + read);
+            }
+            return result;
+        }
+        catch(DataFormatException ex)
+        {
+            throw new IOException(ex);
+        }
+        finally
+        {
+            inflater.end();
+        }
+    }
+
     static byte[] compress(byte[] decompressed) throws IOException
     {
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
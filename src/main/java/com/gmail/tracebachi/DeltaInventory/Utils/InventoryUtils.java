@@ -16,18 +16,35 @@
  */
 package com.gmail.tracebachi.DeltaInventory.Utils;
 
+import com.gmail.tracebachi.DeltaInventory.Storage.ItemStackCache;
 import com.gmail.tracebachi.DeltaInventory.Storage.SavedInventory;
 import org.bukkit.Material;
 import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.configuration.serialization.ConfigurationSerializable;
+import org.bukkit.configuration.serialization.ConfigurationSerialization;
 import org.bukkit.inventory.ItemStack;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 /**
  * Created by Trace Bachi (tracebachi@gmail.com, BigBossZee) on 12/12/15.
  */
 public interface InventoryUtils
 {
     static YamlConfiguration toYamlSection(ItemStack[] itemStacks)
+    {
+        return toYamlSection(itemStacks, null);
+    }
+
+    /**
+     * @param cache Cache of serialized item stacks or null
+     */
+    static YamlConfiguration toYamlSection(ItemStack[] itemStacks, ItemStackCache cache)
     {
         YamlConfiguration configuration = new YamlConfiguration();
 
@@ -35,13 +52,85 @@ public interface InventoryUtils
         {
             if(itemStacks[i] != null && itemStacks[i].getType() != Material.AIR)
             {
-                configuration.set(Integer.toString(i), itemStacks[i]);
+                configuration.set(Integer.toString(i),
+                    (cache != null) ? cache.toYaml(itemStacks[i]) : itemStacks[i]);
             }
         }
 
         return configuration;
     }
 
+    /**
+     * Same layout as {@link #toYamlSection(ItemStack[], ItemStackCache)}, as
+     * a plain map that can be dumped without building a configuration.
+     *
+     * @param cache Cache of serialized item stacks or null
+     */
+    static Map<String, Object> toYamlMap(ItemStack[] itemStacks, ItemStackCache cache)
+    {
+        Map<String, Object> result = new LinkedHashMap<>();
+
+        for(int i = 0; i < itemStacks.length; ++i)
+        {
+            if(itemStacks[i] != null && itemStacks[i].getType() != Material.AIR)
+            {
+                result.put(Integer.toString(i),
+                    (cache != null) ? cache.toYaml(itemStacks[i]) : itemStacks[i]);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Converts the object to the map a YAML dump would represent it with,
+     * including the type key, so it is read back as the same object.
+     * Nested serializable objects are converted as well.
+     */
+    static Map<String, Object> toSerializedMap(ConfigurationSerializable serializable)
+    {
+        Map<String, Object> result = new LinkedHashMap<>();
+
+        result.put(ConfigurationSerialization.SERIALIZED_TYPE_KEY,
+            ConfigurationSerialization.getAlias(serializable.getClass()));
+
+        for(Map.Entry<String, Object> entry : serializable.serialize().entrySet())
+        {
+            result.put(entry.getKey(), toSerializedValue(entry.getValue()));
+        }
+
+        return result;
+    }
+
+    static Object toSerializedValue(Object value)
+    {
+        if(value instanceof ConfigurationSerializable)
+        {
+            return toSerializedMap((ConfigurationSerializable) value);
+        }
+        else if(value instanceof Map)
+        {
+            Map<Object, Object> result = new LinkedHashMap<>();
+
+            for(Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet())
+            {
+                result.put(entry.getKey(), toSerializedValue(entry.getValue()));
+            }
+            return result;
+        }
+        else if(value instanceof Collection)
+        {
+            List<Object> result = new ArrayList<>(((Collection<?>) value).size());
+
+            for(Object element : (Collection<?>) value)
+            {
+                result.add(toSerializedValue(element));
+            }
+            return result;
+        }
+        return value;
+    }
+
     static ItemStack[] toItemStacks(ConfigurationSection section, int maxSize)
     {
         ItemStack[] destination = new ItemStack[maxSize];
@@ -75,4 +164,32 @@ public interface InventoryUtils
         }
         return SavedInventory.EMPTY;
     }
+
+    /**
+     * @return Copy of the item stacks that stays the same while the player
+     * keeps changing the originals (empty slots are null)
+     */
+    static ItemStack[] copyOf(ItemStack[] itemStacks)
+    {
+        return copyOf(itemStacks, itemStacks.length);
+    }
+
+    /**
+     * @param size Length of the copy (extra item stacks are left out and
+     *             missing ones are null)
+     */
+    static ItemStack[] copyOf(ItemStack[] itemStacks, int size)
+    {
+        ItemStack[] copy = new ItemStack[size];
+
+        for(int i = 0; i < Math.min(size, itemStacks.length); ++i)
+        {
+            if(itemStacks[i] != null && itemStacks[i].getType() != Material.AIR)
+            {
+                copy[i] = itemStacks[i].clone();
+            }
+        }
+
+        return copy;
+    }
 }
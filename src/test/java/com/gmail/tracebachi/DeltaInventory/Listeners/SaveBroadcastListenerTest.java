@@ -0,0 +1,124 @@
+/*
+ * This file is part of DeltaInventory.
+ *
+ * DeltaInventory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DeltaInventory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DeltaInventory.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gmail.tracebachi.DeltaInventory.Listeners;
+
+import com.gmail.tracebachi.DeltaInventory.DeltaInventoryPlugin;
+import com.gmail.tracebachi.DeltaInventory.Storage.PrefetchCache;
+import com.gmail.tracebachi.DeltaInventory.Storage.RecentEntryCache;
+import com.yahoo.tracebachi.DeltaRedis.Shared.Servers;
+import com.yahoo.tracebachi.DeltaRedis.Spigot.DeltaRedisPlugin;
+import com.yahoo.tracebachi.DeltaRedis.Spigot.Events.DeltaRedisMessageEvent;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class SaveBroadcastListenerTest
+{
+    private static final String NAME = "alice";
+    private static final byte[] DATA = {1, 2, 3};
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private DeltaRedisPlugin deltaRedisPlugin;
+    private DeltaInventoryPlugin plugin;
+    private PrefetchCache prefetchCache;
+    private RecentEntryCache recentEntryCache;
+    private SaveBroadcastListener listener;
+    private Path path;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        deltaRedisPlugin = mock(DeltaRedisPlugin.class);
+        when(deltaRedisPlugin.getServerName()).thenReturn("survival");
+
+        plugin = mock(DeltaInventoryPlugin.class);
+        prefetchCache = mock(PrefetchCache.class);
+        recentEntryCache = new RecentEntryCache(16, 1 << 20, 60000);
+        listener = new SaveBroadcastListener(deltaRedisPlugin, prefetchCache, recentEntryCache, plugin);
+
+        // As written by the last save of this server
+        path = temporaryFolder.newFile(NAME + ".bin").toPath();
+        Files.write(path, DATA);
+        recentEntryCache.put(NAME, path, DATA);
+    }
+
+    @Test
+    public void savesOfThisServerArePublished()
+    {
+        listener.publish(NAME, 7);
+
+        verify(deltaRedisPlugin).publish(Servers.SPIGOT, SaveBroadcastListener.CHANNEL, "alice/7");
+        verify(prefetchCache).onSaved(NAME, 7);
+        assertNotNull("Data of the save is kept", recentEntryCache.get(NAME, path));
+    }
+
+    @Test
+    public void savesOfOtherServersInvalidateKeptData()
+    {
+        listener.onDeltaRedisMessage(message("creative", "Alice/8"));
+
+        verify(prefetchCache).onSaved(NAME, 8);
+        assertNull(recentEntryCache.get(NAME, path));
+    }
+
+    @Test
+    public void ownMessagesAreIgnored()
+    {
+        listener.onDeltaRedisMessage(message("survival", "alice/7"));
+
+        verify(prefetchCache, never()).onSaved(anyString(), anyLong());
+        assertNotNull(recentEntryCache.get(NAME, path));
+    }
+
+    @Test
+    public void invalidMessagesAreRejected()
+    {
+        listener.onDeltaRedisMessage(message("creative", "alice"));
+        listener.onDeltaRedisMessage(message("creative", "alice/latest"));
+
+        verify(plugin, times(2)).severe(startsWith("Invalid save message"));
+        verify(prefetchCache, never()).onSaved(anyString(), anyLong());
+        assertNotNull(recentEntryCache.get(NAME, path));
+    }
+
+    private static DeltaRedisMessageEvent message(String sendingServer, String message)
+    {
+        DeltaRedisMessageEvent event = mock(DeltaRedisMessageEvent.class);
+        when(event.getSendingServer()).thenReturn(sendingServer);
+        when(event.getChannel()).thenReturn(SaveBroadcastListener.CHANNEL);
+        when(event.getMessage()).thenReturn(message);
+        return event;
+    }
+}
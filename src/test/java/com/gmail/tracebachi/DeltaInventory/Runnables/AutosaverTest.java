@@ -0,0 +1,147 @@
+/*
+ * This file is part of DeltaInventory.
+ *
+ * DeltaInventory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DeltaInventory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DeltaInventory.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gmail.tracebachi.DeltaInventory.Runnables;
+
+import com.gmail.tracebachi.DeltaInventory.DeltaInventoryPlugin;
+import com.gmail.tracebachi.DeltaInventory.Listeners.PlayerListener;
+import com.gmail.tracebachi.DeltaInventory.Storage.PlayerSession;
+import com.gmail.tracebachi.DeltaInventory.Storage.PlayerSessions;
+import org.bukkit.entity.Player;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class AutosaverTest
+{
+    private static final long INTERVAL_TICKS = 10;
+
+    private PlayerSessions sessions;
+    private PlayerListener listener;
+    private Autosaver autosaver;
+
+    @Before
+    public void setUp()
+    {
+        sessions = new PlayerSessions();
+        listener = mock(PlayerListener.class);
+        autosaver = new Autosaver(INTERVAL_TICKS, 0, 2, sessions, listener,
+            mock(DeltaInventoryPlugin.class));
+    }
+
+    @Test
+    public void playersAreSavedOncePerInterval()
+    {
+        Player player = mockPlayer("alice");
+        autosaver.schedule(player, sessions.getOrCreate(player));
+
+        runTicks(INTERVAL_TICKS * 3);
+
+        verify(listener, times(3)).autosave(player);
+    }
+
+    @Test
+    public void schedulingAgainReplacesTheScheduledSave()
+    {
+        Player player = mockPlayer("alice");
+        PlayerSession session = sessions.getOrCreate(player);
+        autosaver.schedule(player, session);
+        autosaver.schedule(player, session);
+        autosaver.schedule(player, session);
+
+        assertEquals(1, autosaver.getScheduledCount());
+
+        runTicks(INTERVAL_TICKS * 3);
+
+        verify(listener, times(3)).autosave(player);
+        assertEquals(1, autosaver.getScheduledCount());
+    }
+
+    @Test
+    public void unscheduledPlayersAreNotSaved()
+    {
+        Player player = mockPlayer("alice");
+        autosaver.schedule(player, sessions.getOrCreate(player));
+        autosaver.unschedule(player);
+
+        assertEquals(0, autosaver.getScheduledCount());
+
+        runTicks(INTERVAL_TICKS * 2);
+
+        verify(listener, never()).autosave(any());
+    }
+
+    @Test
+    public void playersWithAnEndedSessionAreDropped()
+    {
+        Player player = mockPlayer("alice");
+        autosaver.schedule(player, sessions.getOrCreate(player));
+
+        // Rejoined with a new session, which is scheduled when it is loaded
+        sessions.remove(player);
+        sessions.getOrCreate(player);
+
+        runTicks(INTERVAL_TICKS);
+
+        verify(listener, never()).autosave(any());
+        assertEquals(0, autosaver.getScheduledCount());
+    }
+
+    @Test
+    public void atMostMaxPerTickPlayersAreSavedInATick()
+    {
+        Autosaver everyTick = new Autosaver(1, 0, 2, sessions, listener,
+            mock(DeltaInventoryPlugin.class));
+
+        for(int i = 0; i < 5; ++i)
+        {
+            Player player = mockPlayer("player" + i);
+            everyTick.schedule(player, sessions.getOrCreate(player));
+        }
+
+        everyTick.run();
+        verify(listener, times(2)).autosave(any());
+
+        everyTick.run();
+        verify(listener, times(4)).autosave(any());
+    }
+
+    private void runTicks(long ticks)
+    {
+        for(long i = 0; i < ticks; ++i)
+        {
+            autosaver.run();
+        }
+    }
+
+    private static Player mockPlayer(String name)
+    {
+        Player player = mock(Player.class);
+        when(player.getUniqueId()).thenReturn(UUID.randomUUID());
+        when(player.getName()).thenReturn(name);
+        when(player.isOnline()).thenReturn(true);
+        return player;
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * This file is part of DeltaInventory.
+ *
+ * DeltaInventory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DeltaInventory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DeltaInventory.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gmail.tracebachi.DeltaInventory.Runnables;
+
+import com.gmail.tracebachi.DeltaInventory.DeltaInventoryPlugin;
+import com.gmail.tracebachi.DeltaInventory.Runnables.PlayerIoExecutor.Priority;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class LoadAdmissionTest
+{
+    // Loads never take longer than this, so the limit stays at the maximum
+    private static final long TARGET_LATENCY_MILLIS = 60000;
+
+    private PlayerIoExecutor executor;
+    private List<String> loaded;
+    private int ranCount;
+
+    @Before
+    public void setUp()
+    {
+        // Admitted loads are only queued, the tests run them
+        executor = mock(PlayerIoExecutor.class);
+        when(executor.execute(any(), any())).thenReturn(true);
+        loaded = new ArrayList<>();
+    }
+
+    @Test
+    public void loadsOverTheLimitWait()
+    {
+        LoadAdmission admission = createAdmission(2);
+
+        submit(admission, "alice", false);
+        submit(admission, "bob", false);
+        submit(admission, "carol", false);
+
+        assertEquals(2, admission.getInFlightCount());
+        assertEquals(1, admission.getWaitingCount());
+        assertEquals(1, admission.getPosition("carol"));
+        assertEquals(0, admission.getPosition("alice"));
+
+        runAdmitted();
+        assertEquals(2, admission.getInFlightCount());
+        assertEquals(0, admission.getWaitingCount());
+
+        runAdmitted();
+        runAdmitted();
+        assertEquals(Arrays.asList("alice", "bob", "carol"), loaded);
+        assertEquals(0, admission.getInFlightCount());
+    }
+
+    @Test
+    public void serverSwitchesAreAdmittedBeforeLogins()
+    {
+        LoadAdmission admission = createAdmission(1);
+
+        submit(admission, "alice", false);
+        submit(admission, "bob", false);
+        submit(admission, "carol", true);
+
+        assertEquals(1, admission.getPosition("carol"));
+        assertEquals(2, admission.getPosition("bob"));
+
+        runAdmitted();
+        runAdmitted();
+        runAdmitted();
+        assertEquals(Arrays.asList("alice", "carol", "bob"), loaded);
+
+        ArgumentCaptor<Priority> priorities = ArgumentCaptor.forClass(Priority.class);
+        verify(executor, atLeastOnce()).execute(any(), priorities.capture());
+        assertEquals(Arrays.asList(Priority.LOGIN_LOAD, Priority.SWITCH_LOAD, Priority.LOGIN_LOAD),
+            priorities.getAllValues());
+    }
+
+    @Test
+    public void cancelledLoadsAreNotAdmitted()
+    {
+        LoadAdmission admission = createAdmission(1);
+
+        submit(admission, "alice", false);
+        submit(admission, "bob", false);
+
+        assertTrue(admission.cancel("bob"));
+        assertFalse(admission.cancel("bob"));
+        assertFalse("Admitted loads are not cancelled", admission.cancel("alice"));
+        assertEquals(0, admission.getPosition("bob"));
+
+        runAdmitted();
+        assertEquals(Arrays.asList("alice"), loaded);
+        assertEquals(0, admission.getWaitingCount());
+    }
+
+    @Test
+    public void resubmittedLoadsReplaceTheWaitingOne()
+    {
+        LoadAdmission admission = createAdmission(1);
+
+        submit(admission, "alice", false);
+        submit(admission, "bob", false);
+        admission.submit("bob", () -> loaded.add("bob again"), true);
+
+        assertEquals(1, admission.getWaitingCount());
+
+        runAdmitted();
+        runAdmitted();
+        assertEquals(Arrays.asList("alice", "bob again"), loaded);
+    }
+
+    private LoadAdmission createAdmission(int maxConcurrent)
+    {
+        return new LoadAdmission(1, maxConcurrent, TARGET_LATENCY_MILLIS, executor,
+            mock(DeltaInventoryPlugin.class));
+    }
+
+    private void submit(LoadAdmission admission, String name, boolean isServerSwitch)
+    {
+        admission.submit(name, () -> loaded.add(name), isServerSwitch);
+    }
+
+    /**
+     * Runs the oldest admitted load that has not run yet, which admits the
+     * next waiting load.
+     */
+    private void runAdmitted()
+    {
+        ArgumentCaptor<Runnable> runnables = ArgumentCaptor.forClass(Runnable.class);
+        verify(executor, atLeastOnce()).execute(runnables.capture(), any());
+
+        List<Runnable> admitted = runnables.getAllValues();
+        admitted.get(ranCount++).run();
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * This file is part of DeltaInventory.
+ *
+ * DeltaInventory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DeltaInventory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DeltaInventory.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gmail.tracebachi.DeltaInventory.Runnables;
+
+import com.gmail.tracebachi.DeltaInventory.DeltaInventoryPlugin;
+import com.gmail.tracebachi.DeltaInventory.Runnables.PlayerIoExecutor.Priority;
+import com.gmail.tracebachi.DeltaInventory.Stats.PluginStats;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class PlayerIoExecutorTest
+{
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final List<String> ran = Collections.synchronizedList(new ArrayList<>());
+    private DeltaInventoryPlugin plugin;
+    private PlayerIoExecutor executor;
+
+    @Before
+    public void setUp()
+    {
+        plugin = mock(DeltaInventoryPlugin.class);
+        when(plugin.getStats()).thenReturn(new PluginStats());
+    }
+
+    @After
+    public void tearDown()
+    {
+        release.countDown();
+
+        if(executor != null)
+        {
+            executor.shutdown(5000, 1000);
+        }
+    }
+
+    @Test
+    public void queuedWorkRunsByPriorityThenInSubmissionOrder() throws InterruptedException
+    {
+        executor = new PlayerIoExecutor(1, 100, plugin);
+        occupyWorker();
+
+        submit("autosave-1", Priority.AUTOSAVE);
+        submit("quit-1", Priority.QUIT_SAVE);
+        submit("login-1", Priority.LOGIN_LOAD);
+        submit("prefetch-1", Priority.PREFETCH_LOAD);
+        submit("switch-save-1", Priority.SERVER_SWITCH_SAVE);
+        submit("quit-2", Priority.QUIT_SAVE);
+        submit("switch-load-1", Priority.SWITCH_LOAD);
+        submit("login-2", Priority.LOGIN_LOAD);
+        submit("autosave-2", Priority.AUTOSAVE);
+        submit("switch-save-2", Priority.SERVER_SWITCH_SAVE);
+
+        assertEquals(10, executor.getQueueDepth());
+        assertEquals(2, executor.getQueueDepth(Priority.QUIT_SAVE));
+
+        release.countDown();
+        assertTrue(executor.shutdown(5000, 1000));
+
+        assertEquals(Arrays.asList("switch-save-1", "switch-save-2", "switch-load-1", "login-1",
+            "login-2", "quit-1", "quit-2", "prefetch-1", "autosave-1", "autosave-2"), ran);
+        assertEquals(0, executor.getQueueDepth());
+        assertEquals(11, executor.getCompletedCount());
+    }
+
+    @Test
+    public void optionalWorkIsRejectedAtTheQueueLimit() throws InterruptedException
+    {
+        executor = new PlayerIoExecutor(1, 2, plugin);
+        occupyWorker();
+
+        assertTrue(submit("autosave-1", Priority.AUTOSAVE));
+        assertTrue(submit("prefetch-1", Priority.PREFETCH_LOAD));
+
+        // Prefetches and autosaves are retried or done another way
+        assertFalse(submit("autosave-2", Priority.AUTOSAVE));
+        assertFalse(submit("prefetch-2", Priority.PREFETCH_LOAD));
+
+        // Everything else is always queued
+        assertTrue(submit("quit-1", Priority.QUIT_SAVE));
+        assertTrue(submit("login-1", Priority.LOGIN_LOAD));
+        assertTrue(submit("switch-save-1", Priority.SERVER_SWITCH_SAVE));
+
+        assertEquals(2, executor.getRejectedCount());
+        assertEquals(5, executor.getQueueDepth());
+
+        release.countDown();
+        assertTrue(executor.shutdown(5000, 1000));
+        assertEquals(Arrays.asList("switch-save-1", "login-1", "quit-1", "prefetch-1", "autosave-1"), ran);
+    }
+
+    @Test
+    public void workIsRejectedAfterShutdown()
+    {
+        executor = new PlayerIoExecutor(1, 100, plugin);
+
+        assertTrue(executor.shutdown(5000, 1000));
+        assertFalse(submit("quit-1", Priority.QUIT_SAVE));
+        assertEquals(1, executor.getRejectedCount());
+        assertEquals(0, executor.getQueueDepth());
+    }
+
+    @Test
+    public void failingWorkDoesNotStopTheWorker() throws InterruptedException
+    {
+        executor = new PlayerIoExecutor(1, 100, plugin);
+
+        executor.execute(() ->
+        {
+            throw new IllegalStateException("Expected by the test");
+        }, Priority.QUIT_SAVE);
+        submit("quit-2", Priority.QUIT_SAVE);
+
+        assertTrue(executor.shutdown(5000, 1000));
+        assertEquals(Collections.singletonList("quit-2"), ran);
+        assertEquals(2, executor.getCompletedCount());
+    }
+
+    /**
+     * Keeps the only worker busy until {@link #release} is counted down, so
+     * everything submitted after this is queued.
+     */
+    private void occupyWorker() throws InterruptedException
+    {
+        executor.execute(() ->
+        {
+            started.countDown();
+
+            try
+            {
+                release.await();
+            }
+            catch(InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }, Priority.SERVER_SWITCH_SAVE);
+
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+    }
+
+    private boolean submit(String label, Priority priority)
+    {
+        return executor.execute(() -> ran.add(label), priority);
+    }
+}
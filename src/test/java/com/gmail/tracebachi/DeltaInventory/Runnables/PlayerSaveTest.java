@@ -0,0 +1,181 @@
+/*
+ * This file is part of DeltaInventory.
+ *
+ * DeltaInventory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DeltaInventory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DeltaInventory.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gmail.tracebachi.DeltaInventory.Runnables;
+
+import com.gmail.tracebachi.DeltaInventory.DeltaInventoryPlugin;
+import com.gmail.tracebachi.DeltaInventory.Listeners.PlayerListener;
+import com.gmail.tracebachi.DeltaInventory.Runnables.PlayerIoExecutor.Priority;
+import com.gmail.tracebachi.DeltaInventory.Stats.PluginStats;
+import com.gmail.tracebachi.DeltaInventory.Storage.PlayerDataCodec;
+import com.gmail.tracebachi.DeltaInventory.Storage.PlayerDataFormat;
+import com.gmail.tracebachi.DeltaInventory.Storage.PlayerEntry;
+import com.gmail.tracebachi.DeltaInventory.Storage.PlayerStorage;
+import com.gmail.tracebachi.DeltaInventory.TestFixtures;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class PlayerSaveTest
+{
+    private static final String NAME = "alice";
+    private static final PlayerDataCodec CODEC =
+        new PlayerDataCodec(PlayerDataFormat.BINARY, null, null, 6, 0);
+
+    private DeltaInventoryPlugin plugin;
+    private PlayerStorage storage;
+    private PlayerListener listener;
+    private PlayerIoExecutor executor;
+
+    @Before
+    public void setUp()
+    {
+        storage = mock(PlayerStorage.class);
+        when(storage.write(anyString(), any(), any(), anyBoolean(), anyBoolean())).thenReturn(true);
+
+        plugin = mock(DeltaInventoryPlugin.class);
+        when(plugin.getPlayerStorage()).thenReturn(storage);
+        when(plugin.getPlayerDataFormat()).thenReturn(PlayerDataFormat.BINARY);
+        when(plugin.getPlayerDataCodec()).thenReturn(CODEC);
+        when(plugin.getStats()).thenReturn(new PluginStats());
+
+        listener = mock(PlayerListener.class);
+
+        // Saves are only queued, the tests run them
+        executor = mock(PlayerIoExecutor.class);
+        when(executor.execute(any(), any())).thenReturn(true);
+    }
+
+    @Test
+    public void mergedSavesWriteTheNewestEntryOnce() throws Exception
+    {
+        PlayerSave save = queue(1, null, Priority.QUIT_SAVE);
+
+        assertTrue(save.merge(entry(2), null, Priority.QUIT_SAVE));
+        assertTrue(save.merge(entry(3), null, Priority.AUTOSAVE));
+        save.run();
+
+        assertEquals(3, writtenRevision());
+        verify(listener, times(3)).onInventorySaved(NAME);
+    }
+
+    @Test
+    public void higherPrioritySavesAreNotMergedIntoQueuedSaves()
+    {
+        PlayerSave autosave = queueAutosave(1);
+        PlayerSave quitSave = queue(1, null, Priority.QUIT_SAVE);
+
+        assertFalse(autosave.merge(entry(2), null, Priority.QUIT_SAVE));
+        assertFalse(quitSave.merge(entry(2), "hub", Priority.SERVER_SWITCH_SAVE));
+        assertTrue(quitSave.merge(entry(2), null, null));
+    }
+
+    @Test
+    public void higherPrioritySaveTakesOverQueuedSave() throws Exception
+    {
+        PlayerSave quitSave = queue(1, null, Priority.QUIT_SAVE);
+        PlayerSave switchSave = new PlayerSave(entry(2), listener, plugin, true, "hub");
+
+        assertTrue(switchSave.takeOver(quitSave));
+        assertTrue(quitSave.isCancelled());
+        assertTrue(quitSave.isCompleted());
+        assertFalse(quitSave.merge(entry(3), null, Priority.QUIT_SAVE));
+
+        // The executor still runs the cancelled save, which does nothing
+        quitSave.run();
+        verify(storage, never()).write(anyString(), any(), any(), anyBoolean(), anyBoolean());
+
+        switchSave.execute(executor, Priority.SERVER_SWITCH_SAVE);
+        switchSave.run();
+
+        assertEquals(2, writtenRevision());
+        verify(listener, times(2)).onInventorySaved(NAME);
+    }
+
+    @Test
+    public void takenOverAutosaveDoesNotCompleteAsAutosave() throws Exception
+    {
+        PlayerSave autosave = queueAutosave(1);
+        PlayerSave quitSave = new PlayerSave(entry(2), listener, plugin, true);
+
+        assertTrue(quitSave.takeOver(autosave));
+        autosave.run();
+        quitSave.run();
+
+        assertEquals(2, writtenRevision());
+        verify(listener).onInventorySaved(NAME);
+        verify(listener, never()).onAutosaveCompleted(anyString(), anyBoolean());
+    }
+
+    @Test
+    public void startedSavesAreNeitherMergedNorTakenOver() throws Exception
+    {
+        PlayerSave save = queue(1, null, Priority.QUIT_SAVE);
+        save.run();
+
+        PlayerSave newer = new PlayerSave(entry(2), listener, plugin, true);
+
+        assertFalse(save.merge(entry(2), null, Priority.QUIT_SAVE));
+        assertFalse(newer.takeOver(save));
+        assertFalse(save.isCancelled());
+        assertEquals(1, writtenRevision());
+    }
+
+    private PlayerSave queue(long revision, String destination, Priority priority)
+    {
+        PlayerSave save = new PlayerSave(entry(revision), listener, plugin, true, destination);
+        assertTrue(save.execute(executor, priority));
+        return save;
+    }
+
+    private PlayerSave queueAutosave(long revision)
+    {
+        PlayerSave save = new PlayerSave(entry(revision), listener, plugin, true, null, true);
+        assertTrue(save.execute(executor, Priority.AUTOSAVE));
+        return save;
+    }
+
+    /**
+     * @return Revision of the only entry written to the storage
+     */
+    private long writtenRevision() throws Exception
+    {
+        ArgumentCaptor<byte[]> source = ArgumentCaptor.forClass(byte[].class);
+        verify(storage).write(eq(NAME), eq(PlayerDataFormat.BINARY), source.capture(),
+            anyBoolean(), anyBoolean());
+        return CODEC.readRevision(source.getValue(), PlayerDataFormat.BINARY);
+    }
+
+    private static PlayerEntry entry(long revision)
+    {
+        PlayerEntry entry = TestFixtures.createPlainEntry(NAME);
+        entry.setRevision(revision);
+        return entry;
+    }
+}
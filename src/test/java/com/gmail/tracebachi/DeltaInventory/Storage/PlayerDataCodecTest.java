@@ -0,0 +1,282 @@
+/*
+ * This file is part of DeltaInventory.
+ *
+ * DeltaInventory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DeltaInventory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DeltaInventory.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gmail.tracebachi.DeltaInventory.Storage;
+
+import com.gmail.tracebachi.DeltaInventory.TestFixtures;
+import com.gmail.tracebachi.DeltaInventory.Utils.BinaryUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+public class PlayerDataCodecTest
+{
+    private static final String NAME = "tester";
+
+    @Test
+    public void plainEntriesRoundTripWithEveryCodec() throws Exception
+    {
+        for(CodecCase codecCase : createCodecCases())
+        {
+            PlayerDataCodec codec = codecCase.codec;
+            IPlayerEntry expected = TestFixtures.createPlainEntry(NAME);
+            IPlayerEntry result = codec.decode(NAME, codec.encode(expected), codec.getFormat());
+
+            assertEntryEquals(codecCase.description, expected, result);
+        }
+    }
+
+    @Test
+    public void entriesRoundTripWithEveryCodec() throws Exception
+    {
+        TestFixtures.assumeServer();
+
+        for(CodecCase codecCase : createCodecCases())
+        {
+            PlayerDataCodec codec = codecCase.codec;
+            IPlayerEntry expected = TestFixtures.createEntry(NAME);
+            IPlayerEntry result = codec.decode(NAME, codec.encode(expected), codec.getFormat());
+
+            assertEntryEquals(codecCase.description, expected, result);
+        }
+    }
+
+    @Test
+    public void decodedEntriesRoundTripAgain() throws Exception
+    {
+        TestFixtures.assumeServer();
+
+        // Decoded entries carry the sections (or maps) reused by the next save
+        for(CodecCase codecCase : createCodecCases())
+        {
+            PlayerDataCodec codec = codecCase.codec;
+            IPlayerEntry expected = TestFixtures.createEntry(NAME);
+            IPlayerEntry decoded = codec.decode(NAME, codec.encode(expected), codec.getFormat());
+            IPlayerEntry result = codec.decode(NAME, codec.encode(decoded), codec.getFormat());
+
+            assertEntryEquals(codecCase.description, expected, result);
+        }
+    }
+
+    @Test
+    public void filesOfTheOtherFormatAreDecoded() throws Exception
+    {
+        for(CodecCase codecCase : createCodecCases())
+        {
+            PlayerDataCodec codec = codecCase.codec;
+            PlayerDataFormat other = codec.getFormat().getOther();
+            PlayerDataCodec writer = new PlayerDataCodec(other, null, CompressionCodec.DEFLATE, 6, 0);
+            IPlayerEntry expected = TestFixtures.createPlainEntry(NAME);
+            IPlayerEntry result = codec.decode(NAME, writer.encode(expected), other);
+
+            assertEntryEquals(codecCase.description, expected, result);
+        }
+    }
+
+    @Test
+    public void revisionIsReadFromEncodedData() throws Exception
+    {
+        for(CodecCase codecCase : createCodecCases())
+        {
+            PlayerDataCodec codec = codecCase.codec;
+            byte[] source = codec.encode(TestFixtures.createPlainEntry(NAME));
+
+            assertEquals(codecCase.description, 42, codec.readRevision(source, codec.getFormat()));
+        }
+    }
+
+    @Test
+    public void unknownSectionsAndFieldsAreSkipped() throws Exception
+    {
+        PlayerEntry expected = TestFixtures.createPlainEntry(NAME);
+        byte[] source = writeFileWithUnknownData(expected);
+
+        for(CodecCase codecCase : createCodecCases())
+        {
+            PlayerDataCodec codec = codecCase.codec;
+            IPlayerEntry result = codec.decode(NAME, source, PlayerDataFormat.BINARY);
+            assertEntryEquals(codecCase.description, expected, result);
+        }
+    }
+
+    @Test
+    public void truncatedFilesAreRejected() throws Exception
+    {
+        for(CodecCase codecCase : createCodecCases())
+        {
+            // Half of an uncompressed YAML document may still be valid YAML
+            if(codecCase.isTruncationDetected())
+            {
+                PlayerDataCodec codec = codecCase.codec;
+                byte[] source = codec.encode(TestFixtures.createPlainEntry(NAME));
+                byte[] truncated = Arrays.copyOf(source, source.length / 2);
+
+                try
+                {
+                    codec.decode(NAME, truncated, codec.getFormat());
+                    fail(codecCase.description + ": decoded a truncated file");
+                }
+                catch(IOException expected)
+                {
+                    // Nothing is returned for a truncated file
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Codecs of both formats, every compression codec (and none),
+     * both YAML charsets and with and without an item stack cache
+     */
+    private static List<CodecCase> createCodecCases()
+    {
+        List<CodecCase> codecCases = new ArrayList<>();
+        List<CompressionCodec> compressionCodecs = new ArrayList<>(Arrays.asList(CompressionCodec.values()));
+        compressionCodecs.add(null);
+
+        for(PlayerDataFormat format : PlayerDataFormat.values())
+        {
+            Charset[] charsets = (format == PlayerDataFormat.YAML) ?
+                new Charset[]{StandardCharsets.UTF_16, StandardCharsets.UTF_8} :
+                new Charset[]{StandardCharsets.UTF_16};
+
+            for(Charset charset : charsets)
+            {
+                for(CompressionCodec compressionCodec : compressionCodecs)
+                {
+                    codecCases.add(new CodecCase(format, compressionCodec, charset, false));
+                    codecCases.add(new CodecCase(format, compressionCodec, charset, true));
+                }
+            }
+        }
+        return codecCases;
+    }
+
+    private static void assertEntryEquals(String message, IPlayerEntry expected, IPlayerEntry actual)
+    {
+        assertNotNull(message, actual);
+        assertEquals(message, expected.getName(), actual.getName());
+        assertEquals(message, expected.getRevision(), actual.getRevision());
+        assertEquals(message, expected.getHealth(), actual.getHealth(), 0.0);
+        assertEquals(message, expected.getFoodLevel(), actual.getFoodLevel());
+        assertEquals(message, expected.getXpLevel(), actual.getXpLevel());
+        assertEquals(message, expected.getXpProgress(), actual.getXpProgress(), 0.0);
+        assertEquals(message, expected.getGameMode(), actual.getGameMode());
+        assertEquals(message, new ArrayList<>(expected.getPotionEffects()),
+            new ArrayList<>(actual.getPotionEffects()));
+        assertInventoryEquals(message, expected.getSurvival(), actual.getSurvival());
+        assertInventoryEquals(message, expected.getCreative(), actual.getCreative());
+        assertArrayEquals(message, TestFixtures.withoutAir(expected.getEnderChest()), actual.getEnderChest());
+    }
+
+    private static void assertInventoryEquals(String message, SavedInventory expected, SavedInventory actual)
+    {
+        assertArrayEquals(message, TestFixtures.withoutAir(expected.getArmor()), actual.getArmor());
+        assertArrayEquals(message, TestFixtures.withoutAir(expected.getContents()), actual.getContents());
+    }
+
+    /**
+     * Writes the entry with a field after the known stats and a section
+     * this version does not know, as a newer version might.
+     */
+    private static byte[] writeFileWithUnknownData(IPlayerEntry entry) throws IOException
+    {
+        ByteArrayOutputStream resultBytes = new ByteArrayOutputStream();
+        DataOutputStream result = new DataOutputStream(resultBytes);
+        ByteArrayOutputStream sectionBytes = new ByteArrayOutputStream();
+        DataOutputStream section = new DataOutputStream(sectionBytes);
+
+        result.writeInt(BinaryUtils.MAGIC);
+        result.writeByte(BinaryUtils.VERSION);
+
+        section.writeLong(System.currentTimeMillis());
+        section.writeLong(entry.getRevision());
+        section.writeDouble(entry.getHealth());
+        section.writeInt(entry.getFoodLevel());
+        section.writeInt(entry.getXpLevel());
+        section.writeDouble(entry.getXpProgress());
+        BinaryUtils.writeString(section, entry.getGameMode().toString());
+        section.writeLong(Long.MAX_VALUE);
+        writeSection(result, BinaryUtils.SECTION_STATS, sectionBytes);
+
+        BinaryUtils.writeString(section, "Unknown");
+        writeSection(result, 99, sectionBytes);
+
+        BinaryUtils.writeEffects(section, entry.getPotionEffects());
+        writeSection(result, BinaryUtils.SECTION_EFFECTS, sectionBytes);
+
+        BinaryUtils.writeItemStacks(section, entry.getSurvival().getArmor());
+        BinaryUtils.writeItemStacks(section, entry.getSurvival().getContents());
+        writeSection(result, BinaryUtils.SECTION_SURVIVAL, sectionBytes);
+
+        BinaryUtils.writeItemStacks(section, entry.getCreative().getArmor());
+        BinaryUtils.writeItemStacks(section, entry.getCreative().getContents());
+        writeSection(result, BinaryUtils.SECTION_CREATIVE, sectionBytes);
+
+        BinaryUtils.writeItemStacks(section, entry.getEnderChest());
+        writeSection(result, BinaryUtils.SECTION_ENDER_CHEST, sectionBytes);
+
+        result.writeByte(BinaryUtils.SECTION_END);
+        return resultBytes.toByteArray();
+    }
+
+    private static void writeSection(DataOutputStream out, int sectionId,
+        ByteArrayOutputStream sectionBytes) throws IOException
+    {
+        out.writeByte(sectionId);
+        out.writeInt(sectionBytes.size());
+        sectionBytes.writeTo(out);
+        sectionBytes.reset();
+    }
+
+    private static class CodecCase
+    {
+        private final String description;
+        private final PlayerDataFormat format;
+        private final CompressionCodec compressionCodec;
+        private final PlayerDataCodec codec;
+
+        private CodecCase(PlayerDataFormat format, CompressionCodec compressionCodec,
+            Charset charset, boolean isCached)
+        {
+            this.description = format + "/" + compressionCodec + "/" + charset.name() +
+                (isCached ? "/cached" : "");
+            this.format = format;
+            this.compressionCodec = compressionCodec;
+            this.codec = new PlayerDataCodec(format, isCached ? new ItemStackCache(256) : null,
+                compressionCodec, 6, 0, charset);
+        }
+
+        private boolean isTruncationDetected()
+        {
+            return format == PlayerDataFormat.BINARY ||
+                compressionCodec == CompressionCodec.DEFLATE ||
+                compressionCodec == CompressionCodec.DEFLATE_DICTIONARY;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * This file is part of DeltaInventory.
+ *
+ * DeltaInventory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DeltaInventory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DeltaInventory.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gmail.tracebachi.DeltaInventory.Storage;
+
+import com.gmail.tracebachi.DeltaInventory.DeltaInventoryPlugin;
+import com.gmail.tracebachi.DeltaInventory.Listeners.PlayerListener;
+import com.gmail.tracebachi.DeltaInventory.Runnables.PlayerLoad;
+import com.gmail.tracebachi.DeltaInventory.Stats.PluginStats;
+import com.gmail.tracebachi.DeltaInventory.TestFixtures;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class PrefetchCacheTest
+{
+    private static final String NAME = "alice";
+    private static final PlayerDataCodec CODEC =
+        new PlayerDataCodec(PlayerDataFormat.BINARY, null, null, 6, 0);
+
+    private PlayerStorage storage;
+    private PlayerLoad playerLoad;
+    private PrefetchCache prefetchCache;
+
+    @Before
+    public void setUp()
+    {
+        storage = mock(PlayerStorage.class);
+
+        DeltaInventoryPlugin plugin = mock(DeltaInventoryPlugin.class);
+        when(plugin.getPlayerStorage()).thenReturn(storage);
+        when(plugin.getPlayerDataCodec()).thenReturn(CODEC);
+        when(plugin.getStats()).thenReturn(new PluginStats());
+
+        playerLoad = new PlayerLoad(NAME, mock(PlayerListener.class), plugin);
+        prefetchCache = new PrefetchCache(60000, 1000);
+    }
+
+    @Test
+    public void prefetchWithTheSavedRevisionIsUsed() throws IOException
+    {
+        prefetch(2);
+        prefetchCache.onSaved(NAME, 2);
+
+        PlayerLoad.Result result = prefetchCache.take(NAME);
+        assertNotNull(result);
+        assertEquals(2, result.getRevision());
+    }
+
+    @Test
+    public void newerSaveDiscardsCompletedPrefetch() throws IOException
+    {
+        prefetch(1);
+        prefetchCache.onSaved(NAME, 2);
+
+        assertNull(prefetchCache.take(NAME));
+    }
+
+    @Test
+    public void newerSaveDiscardsRunningPrefetch() throws IOException
+    {
+        PrefetchCache.Prefetch prefetch = prefetchCache.start(NAME);
+        assertNotNull(prefetch);
+        prefetch.begin();
+
+        // The save is announced while the old data is being read
+        prefetchCache.onSaved(NAME, 2);
+        storeRevision(1);
+        prefetch.complete(playerLoad.load());
+
+        assertNull(prefetchCache.take(NAME));
+    }
+
+    @Test
+    public void saveAnnouncedBeforeThePrefetchIsRemembered() throws IOException
+    {
+        // The saved data was not visible yet when it was read
+        prefetchCache.onSaved(NAME, 3);
+        prefetch(2);
+        assertNull(prefetchCache.take(NAME));
+
+        prefetch(3);
+        assertNotNull(prefetchCache.take(NAME));
+    }
+
+    @Test
+    public void anySaveDiscardsPrefetchThatFoundNoData() throws IOException
+    {
+        PrefetchCache.Prefetch prefetch = prefetchCache.start(NAME);
+        assertNotNull(prefetch);
+        prefetch.begin();
+        prefetch.complete(playerLoad.load());
+        prefetchCache.onSaved(NAME, 1);
+
+        assertNull(prefetchCache.take(NAME));
+    }
+
+    private void prefetch(long revision) throws IOException
+    {
+        storeRevision(revision);
+
+        PrefetchCache.Prefetch prefetch = prefetchCache.start(NAME);
+        assertNotNull(prefetch);
+        prefetch.begin();
+        prefetch.complete(playerLoad.load());
+    }
+
+    private void storeRevision(long revision) throws IOException
+    {
+        PlayerEntry entry = TestFixtures.createPlainEntry(NAME);
+        entry.setRevision(revision);
+
+        when(storage.read(NAME)).thenReturn(
+            new StoredPlayerData(PlayerDataFormat.BINARY, CODEC.encode(entry), null));
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * This file is part of DeltaInventory.
+ *
+ * DeltaInventory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DeltaInventory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DeltaInventory.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gmail.tracebachi.DeltaInventory.Storage;
+
+import com.gmail.tracebachi.DeltaInventory.DeltaInventoryPlugin;
+import com.gmail.tracebachi.DeltaInventory.TestFixtures;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.aryEq;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class SaveJournalTest
+{
+    private static final byte[] ALICE_OLD = "alice-1".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] ALICE = "alice-2".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] BOB = "bob-2".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] CAROL = "carol-1".getBytes(StandardCharsets.UTF_8);
+    private static final PlayerDataCodec CODEC =
+        new PlayerDataCodec(PlayerDataFormat.BINARY, null, null, 6, 0);
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final List<SaveJournal> journals = new ArrayList<>();
+    private File folder;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        folder = temporaryFolder.newFolder("Journal");
+    }
+
+    @After
+    public void tearDown()
+    {
+        for(SaveJournal journal : journals)
+        {
+            journal.shutdown();
+        }
+    }
+
+    @Test
+    public void uncompactedEntriesAreReplayed() throws IOException
+    {
+        writeUncompactedJournal();
+
+        PlayerStorage storage = mockStorage();
+        startJournal(storage);
+
+        verify(storage).write(eq("alice"), eq(PlayerDataFormat.YAML), aryEq(ALICE), anyBoolean(), anyBoolean());
+        verify(storage).write(eq("bob"), eq(PlayerDataFormat.BINARY), aryEq(BOB), anyBoolean(), anyBoolean());
+        verify(storage).write(eq("carol"), eq(PlayerDataFormat.YAML), aryEq(CAROL), anyBoolean(), anyBoolean());
+        verify(storage, never()).write(anyString(), any(), aryEq(ALICE_OLD), anyBoolean(), anyBoolean());
+        assertEquals("Replayed segments are deleted", 1, listSegments().length);
+    }
+
+    @Test
+    public void truncatedTailIsIgnored() throws IOException
+    {
+        writeUncompactedJournal();
+        File segment = listSegments()[0];
+
+        try(RandomAccessFile file = new RandomAccessFile(segment, "rw"))
+        {
+            file.setLength(file.length() - 3);
+        }
+
+        PlayerStorage storage = mockStorage();
+        DeltaInventoryPlugin plugin = mockPlugin(storage);
+        startJournal(plugin);
+
+        verify(plugin).severe(startsWith("Truncated record"));
+        verify(storage).write(eq("alice"), any(), aryEq(ALICE), anyBoolean(), anyBoolean());
+        verify(storage).write(eq("bob"), any(), aryEq(BOB), anyBoolean(), anyBoolean());
+        verify(storage, never()).write(eq("carol"), any(), any(), anyBoolean(), anyBoolean());
+    }
+
+    @Test
+    public void corruptTailIsIgnored() throws IOException
+    {
+        writeUncompactedJournal();
+        File segment = listSegments()[0];
+
+        try(RandomAccessFile file = new RandomAccessFile(segment, "rw"))
+        {
+            file.seek(file.length() - 1);
+            int last = file.read();
+            file.seek(file.length() - 1);
+            file.write(last ^ 0xFF);
+        }
+
+        PlayerStorage storage = mockStorage();
+        DeltaInventoryPlugin plugin = mockPlugin(storage);
+        startJournal(plugin);
+
+        verify(plugin).severe(startsWith("Corrupt record"));
+        verify(storage).write(eq("alice"), any(), aryEq(ALICE), anyBoolean(), anyBoolean());
+        verify(storage).write(eq("bob"), any(), aryEq(BOB), anyBoolean(), anyBoolean());
+        verify(storage, never()).write(eq("carol"), any(), any(), anyBoolean(), anyBoolean());
+    }
+
+    @Test
+    public void entriesWithoutANewerRevisionThanTheStoredDataAreSkipped() throws IOException
+    {
+        writeUncompactedJournal();
+
+        // Another server saved alice and bob after the crash. Carol's stored
+        // data is the revision before the one in the journal.
+        PlayerStorage storage = mockStorage();
+        storeRevision(storage, "alice", 3);
+        storeRevision(storage, "bob", 1);
+        storeRevision(storage, "carol", 0);
+        startJournal(storage);
+
+        verify(storage, never()).write(eq("alice"), any(), any(), anyBoolean(), anyBoolean());
+        verify(storage, never()).write(eq("bob"), any(), any(), anyBoolean(), anyBoolean());
+        verify(storage).write(eq("carol"), eq(PlayerDataFormat.YAML), aryEq(CAROL), anyBoolean(), anyBoolean());
+        assertEquals("Replayed segments are deleted", 1, listSegments().length);
+    }
+
+    @Test
+    public void unreadableStoredDataIsReplaced() throws IOException
+    {
+        writeUncompactedJournal();
+
+        PlayerStorage storage = mockStorage();
+        when(storage.read(anyString())).thenReturn(
+            new StoredPlayerData(PlayerDataFormat.BINARY, new byte[]{1, 2, 3}, null));
+        startJournal(storage);
+
+        verify(storage).write(eq("alice"), any(), aryEq(ALICE), anyBoolean(), anyBoolean());
+        verify(storage).write(eq("bob"), any(), aryEq(BOB), anyBoolean(), anyBoolean());
+        verify(storage).write(eq("carol"), any(), aryEq(CAROL), anyBoolean(), anyBoolean());
+    }
+
+    @Test
+    public void writeThroughAppendsAreStoredBeforeReturning() throws IOException
+    {
+        PlayerStorage storage = mockStorage();
+        SaveJournal journal = startJournal(storage);
+
+        assertTrue(journal.append("alice", PlayerDataFormat.YAML, ALICE, 2, true));
+        verify(storage).write(eq("alice"), eq(PlayerDataFormat.YAML), aryEq(ALICE), anyBoolean(), anyBoolean());
+    }
+
+    @Test
+    public void uncompactedEntriesKeepTheirRevision() throws IOException
+    {
+        PlayerStorage storage = mockStorage();
+        when(storage.write(anyString(), any(), any(), anyBoolean(), anyBoolean())).thenReturn(false);
+        SaveJournal journal = startJournal(storage);
+
+        assertTrue(journal.append("bob", PlayerDataFormat.BINARY, BOB, 7, false));
+        assertEquals(7, journal.getUncompacted("bob").getRevision());
+        assertEquals(PlayerDataFormat.BINARY, journal.getUncompacted("bob").getFormat());
+    }
+
+    /**
+     * Leaves a segment with records of alice (revisions 1 and 2), bob
+     * (revision 2) and carol (revision 1, last) behind, as if the server had
+     * crashed before they were compacted.
+     */
+    private void writeUncompactedJournal() throws IOException
+    {
+        // Writes to the player files fail, so nothing is compacted
+        PlayerStorage storage = mockStorage();
+        when(storage.write(anyString(), any(), any(), anyBoolean(), anyBoolean())).thenReturn(false);
+
+        SaveJournal journal = new SaveJournal(folder, 1 << 20, 0, mockPlugin(storage));
+        journal.start();
+
+        assertTrue(journal.append("alice", PlayerDataFormat.YAML, ALICE_OLD, 1, false));
+        assertTrue(journal.append("bob", PlayerDataFormat.BINARY, BOB, 2, false));
+        assertTrue(journal.append("alice", PlayerDataFormat.YAML, ALICE, 2, false));
+        assertTrue(journal.append("carol", PlayerDataFormat.YAML, CAROL, 1, false));
+        journal.shutdown();
+
+        assertEquals(1, listSegments().length);
+    }
+
+    private SaveJournal startJournal(PlayerStorage storage) throws IOException
+    {
+        return startJournal(mockPlugin(storage));
+    }
+
+    private SaveJournal startJournal(DeltaInventoryPlugin plugin) throws IOException
+    {
+        SaveJournal journal = new SaveJournal(folder, 1 << 20, 0, plugin);
+        journal.start();
+        journals.add(journal);
+        return journal;
+    }
+
+    private File[] listSegments()
+    {
+        File[] segments = folder.listFiles((dir, fileName) -> fileName.endsWith(".log"));
+        return (segments != null) ? segments : new File[0];
+    }
+
+    /**
+     * @return Storage without data of any player that accepts every write
+     */
+    private static PlayerStorage mockStorage()
+    {
+        PlayerStorage storage = mock(PlayerStorage.class);
+        when(storage.write(anyString(), any(), any(), anyBoolean(), anyBoolean())).thenReturn(true);
+        return storage;
+    }
+
+    private static void storeRevision(PlayerStorage storage, String name, long revision)
+        throws IOException
+    {
+        PlayerEntry entry = TestFixtures.createPlainEntry(name);
+        entry.setRevision(revision);
+
+        when(storage.read(name)).thenReturn(
+            new StoredPlayerData(PlayerDataFormat.BINARY, CODEC.encode(entry), null));
+    }
+
+    private static DeltaInventoryPlugin mockPlugin(PlayerStorage storage)
+    {
+        DeltaInventoryPlugin plugin = mock(DeltaInventoryPlugin.class);
+        when(plugin.getPlayerStorage()).thenReturn(storage);
+        when(plugin.getPlayerDataCodec()).thenReturn(CODEC);
+        return plugin;
+    }
+}
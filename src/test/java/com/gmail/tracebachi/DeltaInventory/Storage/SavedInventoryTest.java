@@ -0,0 +1,67 @@
+/*
+ * This file is part of DeltaInventory.
+ *
+ * DeltaInventory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DeltaInventory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DeltaInventory.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gmail.tracebachi.DeltaInventory.Storage;
+
+import org.bukkit.Material;
+import org.bukkit.inventory.ItemStack;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class SavedInventoryTest
+{
+    @Test
+    public void emptyInventoryKeepsNoSerializedForm()
+    {
+        SavedInventory.EMPTY.setSerializedSection(new byte[]{1, 2, 3});
+        SavedInventory.EMPTY.setSerializedYaml(Collections.emptyMap());
+
+        assertNull(SavedInventory.EMPTY.getSerializedSection());
+        assertNull(SavedInventory.EMPTY.getSerializedYaml());
+    }
+
+    @Test
+    public void otherInventoriesKeepTheirSerializedForm()
+    {
+        SavedInventory inventory = new SavedInventory(new ItemStack[4], new ItemStack[36]);
+        inventory.setSerializedSection(new byte[]{1, 2, 3});
+        inventory.setSerializedYaml(Collections.emptyMap());
+
+        assertArrayEquals(new byte[]{1, 2, 3}, inventory.getSerializedSection());
+        assertNotNull(inventory.getSerializedYaml());
+    }
+
+    @Test
+    public void itemsCannotBeChangedThroughTheArrays()
+    {
+        ItemStack[] armor = new ItemStack[4];
+        ItemStack[] contents = new ItemStack[36];
+        SavedInventory inventory = new SavedInventory(armor, contents);
+
+        armor[0] = new ItemStack(Material.IRON_HELMET);
+        contents[0] = new ItemStack(Material.STONE);
+        inventory.getArmor()[1] = new ItemStack(Material.IRON_BOOTS);
+        inventory.getContents()[1] = new ItemStack(Material.DIRT);
+
+        assertArrayEquals(new ItemStack[4], inventory.getArmor());
+        assertArrayEquals(new ItemStack[36], inventory.getContents());
+    }
+}
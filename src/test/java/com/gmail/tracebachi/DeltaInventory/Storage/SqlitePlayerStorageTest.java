@@ -0,0 +1,181 @@
+/*
+ * This file is part of DeltaInventory.
+ *
+ * DeltaInventory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DeltaInventory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DeltaInventory.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gmail.tracebachi.DeltaInventory.Storage;
+
+import com.gmail.tracebachi.DeltaInventory.DeltaInventoryPlugin;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+public class SqlitePlayerStorageTest
+{
+    private static final byte[] ALICE_OLD = "alice-1".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] ALICE = "alice-2".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] BOB = "bob-1".getBytes(StandardCharsets.UTF_8);
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final List<SqlitePlayerStorage> storages = new ArrayList<>();
+    private File file;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        file = new File(temporaryFolder.getRoot(), "Players/players.db");
+    }
+
+    @After
+    public void tearDown()
+    {
+        for(SqlitePlayerStorage storage : storages)
+        {
+            storage.shutdown();
+        }
+    }
+
+    @Test
+    public void playersWithoutDataAreNotFound() throws IOException
+    {
+        SqlitePlayerStorage storage = startStorage();
+
+        assertNull(storage.read("alice"));
+        assertNull(storage.getVersion("alice"));
+        assertEquals(0, storage.getSavedAt("alice"));
+    }
+
+    @Test
+    public void writtenDataIsReadBack() throws IOException
+    {
+        SqlitePlayerStorage storage = startStorage();
+        long startTime = System.currentTimeMillis();
+
+        assertTrue(storage.write("alice", PlayerDataFormat.YAML, ALICE_OLD, false, false));
+        assertTrue(storage.write("alice", PlayerDataFormat.BINARY, ALICE, false, false));
+
+        StoredPlayerData data = storage.read("alice");
+        assertEquals(PlayerDataFormat.BINARY, data.getFormat());
+        assertArrayEquals(ALICE, data.getData());
+        assertEquals(storage.getVersion("alice"), data.getVersion());
+        assertTrue(storage.getSavedAt("alice") >= startTime);
+    }
+
+    @Test
+    public void everyWriteStoresANewVersion() throws IOException
+    {
+        SqlitePlayerStorage storage = startStorage();
+
+        assertTrue(storage.write("alice", PlayerDataFormat.BINARY, ALICE_OLD, false, false));
+        Object oldVersion = storage.getVersion("alice");
+        assertTrue(storage.write("bob", PlayerDataFormat.BINARY, BOB, false, false));
+        Object bobVersion = storage.getVersion("bob");
+
+        // The same data again is still a new version
+        assertTrue(storage.write("alice", PlayerDataFormat.BINARY, ALICE_OLD, false, false));
+        Object version = storage.getVersion("alice");
+
+        assertTrue((Long) version > (Long) bobVersion);
+        assertTrue((Long) bobVersion > (Long) oldVersion);
+    }
+
+    @Test
+    public void concurrentWritesAreAllCommitted() throws Exception
+    {
+        SqlitePlayerStorage storage = startStorage();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<Boolean>> results = new ArrayList<>();
+
+        try
+        {
+            for(int i = 0; i < 50; ++i)
+            {
+                String name = "player" + i;
+                byte[] data = name.getBytes(StandardCharsets.UTF_8);
+
+                results.add(executor.submit(() ->
+                    storage.write(name, PlayerDataFormat.BINARY, data, true, false)));
+            }
+
+            for(Future<Boolean> result : results)
+            {
+                assertTrue(result.get());
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+
+        for(int i = 0; i < 50; ++i)
+        {
+            String name = "player" + i;
+            assertArrayEquals(name.getBytes(StandardCharsets.UTF_8), storage.read(name).getData());
+        }
+    }
+
+    @Test
+    public void dataIsKeptAcrossRestarts() throws IOException
+    {
+        SqlitePlayerStorage storage = startStorage();
+        assertTrue(storage.write("alice", PlayerDataFormat.BINARY, ALICE, false, false));
+        Object version = storage.getVersion("alice");
+        storage.shutdown();
+
+        SqlitePlayerStorage restarted = startStorage();
+        assertArrayEquals(ALICE, restarted.read("alice").getData());
+        assertEquals(version, restarted.getVersion("alice"));
+
+        // Versions keep increasing after a restart
+        assertTrue(restarted.write("bob", PlayerDataFormat.BINARY, BOB, false, false));
+        assertTrue((Long) restarted.getVersion("bob") > (Long) version);
+    }
+
+    @Test
+    public void writesAfterShutdownFail() throws IOException
+    {
+        SqlitePlayerStorage storage = startStorage();
+        storage.shutdown();
+
+        assertFalse(storage.write("alice", PlayerDataFormat.BINARY, ALICE, false, false));
+    }
+
+    private SqlitePlayerStorage startStorage() throws IOException
+    {
+        SqlitePlayerStorage storage = new SqlitePlayerStorage(file, 16, mock(DeltaInventoryPlugin.class));
+        storage.start();
+        storages.add(storage);
+        return storage;
+    }
+}
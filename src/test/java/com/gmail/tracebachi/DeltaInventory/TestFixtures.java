@@ -0,0 +1,165 @@
+/*
+ * This file is part of DeltaInventory.
+ *
+ * DeltaInventory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DeltaInventory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DeltaInventory.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gmail.tracebachi.DeltaInventory;
+
+import com.gmail.tracebachi.DeltaInventory.Storage.PlayerEntry;
+import com.gmail.tracebachi.DeltaInventory.Storage.SavedInventory;
+import com.gmail.tracebachi.DeltaInventory.Tools.OfflineServer;
+import org.bukkit.GameMode;
+import org.bukkit.Material;
+import org.bukkit.enchantments.Enchantment;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.meta.BookMeta;
+import org.bukkit.inventory.meta.ItemMeta;
+import org.bukkit.potion.PotionEffect;
+import org.bukkit.potion.PotionEffectType;
+import org.junit.Assume;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Item stacks and player entries shared by the tests.
+ */
+public final class TestFixtures
+{
+    private TestFixtures()
+    {
+    }
+
+    /**
+     * Starts the {@link OfflineServer} or skips the test if the CraftBukkit
+     * server jar is not on the class path (it is with -Pserver-tests).
+     * Item stacks with meta and potion effects cannot be created without it.
+     */
+    public static void assumeServer()
+    {
+        try
+        {
+            OfflineServer.start();
+        }
+        catch(IllegalStateException ex)
+        {
+            Assume.assumeNoException(ex);
+        }
+    }
+
+    /**
+     * @return Array with plain, damaged, enchanted and named item stacks and
+     * a written book, with empty slots (null and air) in between
+     */
+    public static ItemStack[] createItemStacks(int size)
+    {
+        ItemStack[] itemStacks = new ItemStack[size];
+
+        itemStacks[0] = new ItemStack(Material.COBBLESTONE, 64);
+        itemStacks[1] = new ItemStack(Material.AIR);
+        itemStacks[size - 1] = book("Journal " + size);
+
+        if(size > 4)
+        {
+            itemStacks[2] = new ItemStack(Material.WOOL, 12, (short) 14);
+            itemStacks[3] = new ItemStack(Material.DIAMOND_SWORD, 1, (short) 120);
+            itemStacks[size / 2] = enchanted(Material.DIAMOND_CHESTPLATE, size);
+        }
+        return itemStacks;
+    }
+
+    /**
+     * @return Copy of the array as it is read back, with air as empty slots
+     */
+    public static ItemStack[] withoutAir(ItemStack[] itemStacks)
+    {
+        ItemStack[] result = itemStacks.clone();
+
+        for(int i = 0; i < result.length; ++i)
+        {
+            if(result[i] != null && result[i].getType() == Material.AIR)
+            {
+                result[i] = null;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return Entry with every field set to something other than its default
+     */
+    public static PlayerEntry createEntry(String name)
+    {
+        PlayerEntry entry = new PlayerEntry(name);
+
+        entry.setRevision(42);
+        entry.setHealth(17.5);
+        entry.setFoodLevel(13);
+        entry.setXpLevel(30);
+        entry.setXpProgress(0.25);
+        entry.setGameMode(GameMode.CREATIVE);
+        entry.setPotionEffects(new ArrayList<>(Arrays.asList(
+            new PotionEffect(PotionEffectType.SPEED, 20 * 60, 1),
+            new PotionEffect(PotionEffectType.NIGHT_VISION, 20 * 60 * 8, 0))));
+        entry.setSurvival(new SavedInventory(createItemStacks(4), createItemStacks(36)));
+        entry.setCreative(new SavedInventory(new ItemStack[4], createItemStacks(36)));
+        entry.setEnderChest(createItemStacks(27));
+        return entry;
+    }
+
+    /**
+     * @return Entry with stats set to something other than their defaults,
+     * but no effects or items, which can be encoded without the server
+     */
+    public static PlayerEntry createPlainEntry(String name)
+    {
+        PlayerEntry entry = new PlayerEntry(name);
+
+        entry.setRevision(42);
+        entry.setHealth(17.5);
+        entry.setFoodLevel(13);
+        entry.setXpLevel(30);
+        entry.setXpProgress(0.25);
+        entry.setGameMode(GameMode.CREATIVE);
+        entry.setSurvival(new SavedInventory(new ItemStack[4], new ItemStack[36]));
+        entry.setCreative(new SavedInventory(new ItemStack[4], new ItemStack[36]));
+        entry.setEnderChest(new ItemStack[27]);
+        return entry;
+    }
+
+    private static ItemStack enchanted(Material material, int seed)
+    {
+        ItemStack itemStack = new ItemStack(material);
+        ItemMeta meta = itemStack.getItemMeta();
+
+        meta.setDisplayName("\u00A76Legendary #" + seed);
+        meta.setLore(Arrays.asList("\u00A77Forged in the nether", "\u00A78Kills: " + (seed * 37)));
+        itemStack.setItemMeta(meta);
+        itemStack.addUnsafeEnchantment(Enchantment.PROTECTION_ENVIRONMENTAL, 4);
+        itemStack.addUnsafeEnchantment(Enchantment.DURABILITY, 3);
+        return itemStack;
+    }
+
+    private static ItemStack book(String title)
+    {
+        ItemStack itemStack = new ItemStack(Material.WRITTEN_BOOK);
+        BookMeta meta = (BookMeta) itemStack.getItemMeta();
+
+        meta.setTitle(title);
+        meta.setAuthor("tester");
+        meta.addPage("The quick brown fox", "jumps over the lazy dog \u2603");
+        itemStack.setItemMeta(meta);
+        return itemStack;
+    }
+}
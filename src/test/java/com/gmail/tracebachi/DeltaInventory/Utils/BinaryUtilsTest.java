@@ -0,0 +1,142 @@
+/*
+ * This file is part of DeltaInventory.
+ *
+ * DeltaInventory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DeltaInventory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DeltaInventory.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gmail.tracebachi.DeltaInventory.Utils;
+
+import com.gmail.tracebachi.DeltaInventory.Storage.ItemStackCache;
+import com.gmail.tracebachi.DeltaInventory.TestFixtures;
+import org.bukkit.Material;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.potion.PotionEffect;
+import org.bukkit.potion.PotionEffectType;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class BinaryUtilsTest
+{
+    @Test
+    public void valuesRoundTripAsTheyWouldThroughYaml() throws IOException
+    {
+        Map<String, Object> nested = new LinkedHashMap<>();
+        nested.put("name", "\u00A76Legendary \u2603");
+        nested.put("flag", true);
+
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("int", 7);
+        map.put("short", (short) 3);
+        map.put("long", 1L << 40);
+        map.put("float", 0.5f);
+        map.put("double", 20.0);
+        map.put("null", null);
+        map.put("list", Arrays.asList("a", 1, 2.5));
+        map.put("map", nested);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BinaryUtils.writeMap(new DataOutputStream(bytes), map);
+
+        Map<String, Object> expected = new LinkedHashMap<>(map);
+        expected.put("short", 3);
+        expected.put("float", 0.5);
+
+        assertEquals(expected, BinaryUtils.readMap(toInput(bytes)));
+    }
+
+    @Test(expected = IOException.class)
+    public void unknownTagIsRejected() throws IOException
+    {
+        BinaryUtils.readValue(new DataInputStream(new ByteArrayInputStream(new byte[]{99})));
+    }
+
+    @Test(expected = EOFException.class)
+    public void truncatedStringIsRejected() throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BinaryUtils.writeString(new DataOutputStream(bytes), "DeltaInventory");
+
+        byte[] truncated = Arrays.copyOf(bytes.toByteArray(), bytes.size() - 1);
+        BinaryUtils.readString(new DataInputStream(new ByteArrayInputStream(truncated)));
+    }
+
+    @Test
+    public void itemStacksRoundTrip() throws IOException
+    {
+        TestFixtures.assumeServer();
+
+        ItemStack[] itemStacks = TestFixtures.createItemStacks(36);
+
+        for(ItemStackCache cache : new ItemStackCache[]{null, new ItemStackCache(64)})
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            BinaryUtils.writeItemStacks(new DataOutputStream(bytes), itemStacks, cache);
+
+            ItemStack[] result = BinaryUtils.readItemStacks(toInput(bytes), 36, cache);
+
+            assertArrayEquals(TestFixtures.withoutAir(itemStacks), result);
+        }
+    }
+
+    @Test
+    public void slotsBeyondMaxSizeAreDropped() throws IOException
+    {
+        TestFixtures.assumeServer();
+
+        ItemStack[] itemStacks = new ItemStack[9];
+        itemStacks[2] = new ItemStack(Material.STONE, 64);
+        itemStacks[8] = new ItemStack(Material.DIRT, 1);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BinaryUtils.writeItemStacks(new DataOutputStream(bytes), itemStacks);
+        ItemStack[] result = BinaryUtils.readItemStacks(toInput(bytes), 4, null);
+
+        assertEquals(4, result.length);
+        assertEquals(itemStacks[2], result[2]);
+        assertNull(result[3]);
+    }
+
+    @Test
+    public void effectsRoundTrip() throws IOException
+    {
+        TestFixtures.assumeServer();
+
+        List<PotionEffect> effects = Arrays.asList(
+            new PotionEffect(PotionEffectType.SPEED, 20 * 60, 1),
+            new PotionEffect(PotionEffectType.NIGHT_VISION, 20 * 60 * 8, 0));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BinaryUtils.writeEffects(new DataOutputStream(bytes), effects);
+
+        assertEquals(effects, BinaryUtils.readEffects(toInput(bytes)));
+    }
+
+    private static DataInputStream toInput(ByteArrayOutputStream bytes)
+    {
+        return new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * This file is part of DeltaInventory.
+ *
+ * DeltaInventory is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DeltaInventory is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with DeltaInventory.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.gmail.tracebachi.DeltaInventory.Utils;
+
+import com.gmail.tracebachi.DeltaInventory.Storage.CompressionCodec;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CompressionUtilsTest
+{
+    private static final byte[] SOURCE = createSource();
+
+    @Test
+    public void everyCodecRoundTrips() throws IOException
+    {
+        for(CompressionCodec codec : CompressionCodec.values())
+        {
+            byte[] encoded = CompressionUtils.encode(SOURCE, codec, 6, 0);
+
+            assertEquals(codec.name(), codec.getId(), encoded[0]);
+            assertArrayEquals(codec.name(), SOURCE, CompressionUtils.decode(encoded));
+        }
+    }
+
+    @Test
+    public void smallSourcesAreNotCompressed() throws IOException
+    {
+        byte[] encoded = CompressionUtils.encode(SOURCE, CompressionCodec.DEFLATE, 6, SOURCE.length + 1);
+
+        assertEquals(CompressionCodec.NONE.getId(), encoded[0]);
+        assertArrayEquals(SOURCE, CompressionUtils.decode(encoded));
+    }
+
+    @Test
+    public void unframedDataIsReturnedAsIs() throws IOException
+    {
+        byte[] yaml = "Health: 20.0\n".getBytes(StandardCharsets.UTF_8);
+
+        assertSame(yaml, CompressionUtils.decode(yaml));
+    }
+
+    @Test(expected = IOException.class)
+    public void unknownCodecIsRejected() throws IOException
+    {
+        CompressionUtils.decode(new byte[]{CompressionUtils.MAX_CODEC_ID, 0, 0, 0, 0});
+    }
+
+    @Test
+    public void oversizedLengthIsRejectedBeforeAllocating()
+    {
+        byte[] encoded = CompressionUtils.encode(SOURCE, CompressionCodec.DEFLATE, 6, 0);
+
+        assertRejected(withLength(encoded, Integer.MAX_VALUE));
+        assertRejected(withLength(encoded, -1));
+        assertRejected(withLength(encoded, CompressionUtils.MAX_DECODED_LENGTH + 1));
+
+        // More than deflate could ever expand the input to
+        assertRejected(withLength(encoded, (encoded.length - 5) * CompressionUtils.MAX_DEFLATE_RATIO + 1));
+    }
+
+    @Test
+    public void wrongLengthIsRejected()
+    {
+        byte[] encoded = CompressionUtils.encode(SOURCE, CompressionCodec.DEFLATE, 6, 0);
+
+        assertRejected(withLength(encoded, SOURCE.length - 1));
+        assertRejected(withLength(encoded, SOURCE.length + 1));
+    }
+
+    @Test
+    public void truncatedDataIsRejected()
+    {
+        CompressionCodec[] codecs = {CompressionCodec.DEFLATE, CompressionCodec.DEFLATE_DICTIONARY};
+
+        for(CompressionCodec codec : codecs)
+        {
+            byte[] encoded = CompressionUtils.encode(SOURCE, codec, 6, 0);
+
+            assertTrue(codec.name(), encoded.length < SOURCE.length);
+            assertRejected(Arrays.copyOf(encoded, encoded.length / 2));
+            assertRejected(Arrays.copyOf(encoded, 3));
+        }
+    }
+
+    private static void assertRejected(byte[] encoded)
+    {
+        try
+        {
+            CompressionUtils.decode(encoded);
+            fail("Decoded invalid data");
+        }
+        catch(IOException expected)
+        {
+            // Nothing is returned for invalid data
+        }
+    }
+
+    private static byte[] withLength(byte[] encoded, int length)
+    {
+        byte[] result = encoded.clone();
+        result[1] = (byte) (length >>> 24);
+        result[2] = (byte) (length >>> 16);
+        result[3] = (byte) (length >>> 8);
+        result[4] = (byte) length;
+        return result;
+    }
+
+    private static byte[] createSource()
+    {
+        StringBuilder builder = new StringBuilder(4096);
+
+        for(int i = 0; i < 64; ++i)
+        {
+            builder.append("  '").append(i).append("':\n    ==: org.bukkit.inventory.ItemStack\n")
+                .append("    type: COBBLESTONE\n    amount: ").append(i + 1).append('\n');
+        }
+        return builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}